@@ -1,65 +1,70 @@
 package com.mashang.bac.web.advisor;
 
+import com.mashang.bac.web.moderation.AhoCorasickMatcher;
+import com.mashang.bac.web.moderation.ProhibitedWordDictionary;
+import com.mashang.bac.web.moderation.StreamingModerator;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.advisor.api.*;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
 import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 违禁词校验 Advisor
- * 检查用户输入是否包含违禁词
+ * 检查用户输入是否包含违禁词，模型输出(流式和非流式)按配置打码或截断
  * 违禁词来源 https://gitee.com/crazypoo/badwords
+ * <p>
+ * 排在对话记忆拦截器之内、语义缓存之外：用户输入被拒绝时本轮不会写入对话记忆，
+ * 对话记忆保存的是审核后的回答；缓存命中的回答同样按当前词库审核。
  */
 @Slf4j
 public class ProhibitedWordAdvisor implements CallAroundAdvisor, StreamAroundAdvisor {
 
-    private static final String DEFAULT_PROHIBITED_WORDS_FILE = "prohibited/prohibited-words.txt";
-    private final List<String> prohibitedWords;
+    public static final int ORDER = Advisor.DEFAULT_CHAT_MEMORY_PRECEDENCE_ORDER + 50;
+
+    /**
+     * 违禁词词库，每次检查时取当前生效的自动机，词库热更新后自动生效
+     */
+    private final ProhibitedWordDictionary dictionary;
+
+    /**
+     * 流式输出命中违禁词后的处理方式
+     */
+    private final StreamingModerator.Mode streamMode;
 
     /**
      * 创建默认违禁词Advisor，从默认文件读取违禁词列表
      */
     public ProhibitedWordAdvisor() {
-        this.prohibitedWords = loadProhibitedWordsFromFile(DEFAULT_PROHIBITED_WORDS_FILE);
-        log.info("初始化违禁词Advisor，违禁词数量: {}", prohibitedWords.size());
+        this(ProhibitedWordDictionary.DEFAULT_PROHIBITED_WORDS_FILE);
     }
 
     /**
      * 创建违禁词Advisor，从指定文件读取违禁词列表
      */
     public ProhibitedWordAdvisor(String prohibitedWordsFile) {
-        this.prohibitedWords = loadProhibitedWordsFromFile(prohibitedWordsFile);
-        log.info("初始化违禁词Advisor，违禁词数量: {}", prohibitedWords.size());
+        this(ProhibitedWordDictionary.ofClasspath(prohibitedWordsFile));
     }
 
     /**
-     * 从文件加载违禁词列表
+     * 创建违禁词Advisor，使用共享词库
      */
-    private List<String> loadProhibitedWordsFromFile(String filePath) {
-        try {
-            var resource = new ClassPathResource(filePath);
-            var reader = new BufferedReader(
-                    new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8));
-
-            List<String> words = reader.lines()
-                    .filter(StringUtils::hasText)
-                    .map(String::trim)
-                    .collect(Collectors.toList());
-
-            log.info("从文件 {} 加载违禁词 {} 个", filePath, words.size());
-            return words;
-        } catch (Exception e) {
-            log.error("加载违禁词文件 {} 失败", filePath, e);
-            return new ArrayList<>();
-        }
+    public ProhibitedWordAdvisor(ProhibitedWordDictionary dictionary) {
+        this(dictionary, StreamingModerator.Mode.MASK);
+    }
+
+    /**
+     * 创建违禁词Advisor，使用共享词库，并指定流式输出命中后的处理方式
+     */
+    public ProhibitedWordAdvisor(ProhibitedWordDictionary dictionary, StreamingModerator.Mode streamMode) {
+        this.dictionary = dictionary;
+        this.streamMode = streamMode;
     }
 
     @Override
@@ -69,7 +74,7 @@ public class ProhibitedWordAdvisor implements CallAroundAdvisor, StreamAroundAdv
 
     @Override
     public int getOrder() {
-        return -100; // 确保在其他Advisor之前执行
+        return ORDER;
     }
 
     /**
@@ -77,37 +82,107 @@ public class ProhibitedWordAdvisor implements CallAroundAdvisor, StreamAroundAdv
      */
     private AdvisedRequest checkRequest(AdvisedRequest request) {
         String userText = request.userText();
-        if (containsProhibitedWord(userText)) {
-            log.warn("检测到违禁词在用户输入中: {}", userText);
+        AhoCorasickMatcher.Match match = findProhibitedWord(userText);
+        if (match != null) {
+            log.warn("检测到违禁词在用户输入中: {}, 违禁词: {}, 位置: {}", userText, match.word(), match.start());
             throw new ProhibitedWordException("用户输入包含违禁词");
         }
         return request;
     }
 
     /**
-     * 检查文本中是否包含违禁词
+     * 查找文本中的违禁词-自动机单遍扫描
+     *
+     * @return 命中结果，没有命中返回 null
      */
-    private boolean containsProhibitedWord(String text) {
+    private AhoCorasickMatcher.Match findProhibitedWord(String text) {
         if (!StringUtils.hasText(text)) {
-            return false;
+            return null;
         }
-
-        for (String word : prohibitedWords) {
-            if (text.toLowerCase().contains(word.toLowerCase())) {
-                return true;
-            }
-        }
-        return false;
+        return dictionary.current().findFirst(text);
     }
 
     @Override
     public AdvisedResponse aroundCall(AdvisedRequest advisedRequest, CallAroundAdvisorChain chain) {
-        return chain.nextAroundCall(checkRequest(advisedRequest));
+        AdvisedResponse response = chain.nextAroundCall(checkRequest(advisedRequest));
+        String text = textOf(response);
+        if (!StringUtils.hasText(text)) {
+            return response;
+        }
+        // 整段回答按流式同样的规则处理，打码或截断
+        StreamingModerator moderator = new StreamingModerator(dictionary.current(), streamMode);
+        String safe = moderator.accept(text) + moderator.flush();
+        if (moderator.getMatchedWord() == null) {
+            return response;
+        }
+        log.warn("检测到违禁词在模型输出中，已{}，违禁词: {}", moderator.isBlocked() ? "截断输出" : "打码",
+                moderator.getMatchedWord());
+        return withText(response, safe);
     }
 
+    /**
+     * 流式处理-请求照常校验，输出逐块增量检查，命中后按配置打码或截断
+     */
     @Override
     public Flux<AdvisedResponse> aroundStream(AdvisedRequest advisedRequest, StreamAroundAdvisorChain chain) {
-        return chain.nextAroundStream(checkRequest(advisedRequest));
+        AdvisedRequest checkedRequest = checkRequest(advisedRequest);
+        return Flux.defer(() -> {
+            // 每条流一个检查器，状态跨分块保留；整条流固定使用开始时的自动机，不受中途热更新影响
+            StreamingModerator moderator = new StreamingModerator(dictionary.current(), streamMode);
+            AtomicReference<AdvisedResponse> last = new AtomicReference<>();
+            Flux<AdvisedResponse> moderated = chain.nextAroundStream(checkedRequest)
+                    .map(response -> {
+                        last.set(response);
+                        String text = textOf(response);
+                        if (text == null) {
+                            return response;
+                        }
+                        String safe = moderator.accept(text);
+                        if (moderator.isBlocked()) {
+                            log.warn("检测到违禁词在模型输出中，已截断输出，违禁词: {}", moderator.getMatchedWord());
+                        }
+                        return withText(response, safe);
+                    })
+                    .takeUntil(response -> moderator.isBlocked());
+            // 流结束后把扣留的尾巴补发出去，结束原因和用量已随最后一个分块发出，尾巴不再携带
+            Mono<AdvisedResponse> tail = Mono.fromSupplier(() -> {
+                String rest = moderator.flush();
+                if (rest.isEmpty() || last.get() == null) {
+                    return null;
+                }
+                ChatResponse tailResponse = new ChatResponse(List.of(new Generation(new AssistantMessage(rest))));
+                return new AdvisedResponse(tailResponse, last.get().adviseContext());
+            });
+            return moderated.concatWith(tail);
+        });
+    }
+
+    /**
+     * 取出分块中的文本，没有文本(例如仅携带元数据的结束块)返回 null
+     */
+    private static String textOf(AdvisedResponse response) {
+        ChatResponse chatResponse = response.response();
+        if (chatResponse == null || chatResponse.getResult() == null
+                || chatResponse.getResult().getOutput() == null) {
+            return null;
+        }
+        return chatResponse.getResult().getOutput().getText();
+    }
+
+    /**
+     * 用新文本替换分块内容，保留原有元数据
+     */
+    private static AdvisedResponse withText(AdvisedResponse response, String text) {
+        ChatResponse chatResponse = response.response();
+        Generation generation = chatResponse.getResult();
+        AssistantMessage output = generation.getOutput();
+        AssistantMessage moderated = new AssistantMessage(text, output.getMetadata(), output.getToolCalls(),
+                output.getMedia());
+        ChatResponse moderatedResponse = ChatResponse.builder()
+                .from(chatResponse)
+                .generations(List.of(new Generation(moderated, generation.getMetadata())))
+                .build();
+        return new AdvisedResponse(moderatedResponse, response.adviseContext());
     }
 
     /**
@@ -0,0 +1,137 @@
+package com.mashang.bac.web.advisor;
+
+import com.mashang.bac.web.rag.cache.SemanticAnswerCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.advisor.api.AdvisedRequest;
+import org.springframework.ai.chat.client.advisor.api.AdvisedResponse;
+import org.springframework.ai.chat.client.advisor.api.Advisor;
+import org.springframework.ai.chat.client.advisor.api.CallAroundAdvisor;
+import org.springframework.ai.chat.client.advisor.api.CallAroundAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAroundAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAroundAdvisorChain;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.model.MessageAggregator;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 语义回答缓存拦截器
+ * <p>
+ * 排在对话记忆之后、检索和 {@link MyAdvisor} 之前：用(改写后的)问题查 {@link SemanticAnswerCache}，
+ * 命中时直接返回缓存的回答，不再检索也不调用大模型；未命中照常往下走，拿到回答后写入缓存。
+ * 命中的回答同样经过对话记忆拦截器，会话历史保持完整。
+ * <p>
+ * 缓存键只有问题、路由和过滤条件，因此只对没有对话历史的请求(会话第一轮)查询和写入；
+ * 带有历史的追问(例如"那我该怎么办？")在不同会话里含义不同，直接往下走。
+ */
+@Slf4j
+public class SemanticCacheAdvisor implements CallAroundAdvisor, StreamAroundAdvisor {
+
+    /**
+     * 命中缓存时在上下文里置为 true
+     */
+    public static final String CACHE_HIT_KEY = "semantic_cache_hit";
+
+    private final SemanticAnswerCache cache;
+    private final String route;
+    private final String filter;
+
+    /**
+     * @param cache  语义回答缓存
+     * @param route  路由名，用于分区和单独关闭
+     * @param filter 检索过滤条件，不同条件的回答互不复用
+     */
+    public SemanticCacheAdvisor(SemanticAnswerCache cache, String route, String filter) {
+        this.cache = cache;
+        this.route = route;
+        this.filter = filter;
+    }
+
+    @Override
+    public String getName() {
+        return "semantic-cache-advisor";
+    }
+
+    @Override
+    public int getOrder() {
+        return Advisor.DEFAULT_CHAT_MEMORY_PRECEDENCE_ORDER + 100;
+    }
+
+    @Override
+    public AdvisedResponse aroundCall(AdvisedRequest advisedRequest, CallAroundAdvisorChain chain) {
+        if (!cacheable(advisedRequest)) {
+            cache.bypass();
+            return chain.nextAroundCall(advisedRequest);
+        }
+        float[] vector = cache.embed(advisedRequest.userText());
+        String answer = cache.find(route, filter, vector);
+        if (answer != null) {
+            log.info("语义缓存命中，路由: {}，问题: {}", route, advisedRequest.userText());
+            return cached(advisedRequest, answer);
+        }
+        AdvisedResponse advisedResponse = chain.nextAroundCall(advisedRequest);
+        store(vector, advisedResponse);
+        return advisedResponse;
+    }
+
+    @Override
+    public Flux<AdvisedResponse> aroundStream(AdvisedRequest advisedRequest, StreamAroundAdvisorChain chain) {
+        if (!cacheable(advisedRequest)) {
+            cache.bypass();
+            return chain.nextAroundStream(advisedRequest);
+        }
+        return Flux.defer(() -> {
+            float[] vector = cache.embed(advisedRequest.userText());
+            String answer = cache.find(route, filter, vector);
+            if (answer != null) {
+                return Flux.just(cached(advisedRequest, answer));
+            }
+            return new MessageAggregator().aggregateAdvisedResponse(chain.nextAroundStream(advisedRequest),
+                    aggregated -> store(vector, aggregated));
+        });
+    }
+
+    private boolean cacheable(AdvisedRequest advisedRequest) {
+        return cache.isEnabled(route) && StringUtils.hasText(advisedRequest.userText())
+                && !hasHistory(advisedRequest);
+    }
+
+    /**
+     * 优先看 {@link TokenBudgetMemoryAdvisor} 记录的历史条数(历史可能全部被压缩成摘要)，
+     * 其他对话记忆拦截器按请求里是否带有历史消息判断
+     */
+    private static boolean hasHistory(AdvisedRequest advisedRequest) {
+        if (advisedRequest.adviseContext().get(TokenBudgetMemoryAdvisor.CHAT_MEMORY_HISTORY_SIZE_KEY)
+                instanceof Integer historySize) {
+            return historySize > 0;
+        }
+        return advisedRequest.messages() != null && !advisedRequest.messages().isEmpty();
+    }
+
+    private AdvisedResponse cached(AdvisedRequest advisedRequest, String answer) {
+        ChatResponse response = new ChatResponse(List.of(new Generation(new AssistantMessage(answer))));
+        Map<String, Object> context = new HashMap<>(advisedRequest.adviseContext());
+        context.put(CACHE_HIT_KEY, true);
+        return new AdvisedResponse(response, context);
+    }
+
+    /**
+     * 只缓存有内容的回答
+     */
+    private void store(float[] vector, AdvisedResponse advisedResponse) {
+        ChatResponse response = advisedResponse.response();
+        if (response == null || response.getResult() == null || response.getResult().getOutput() == null) {
+            return;
+        }
+        String answer = response.getResult().getOutput().getText();
+        if (StringUtils.hasText(answer)) {
+            cache.put(route, filter, vector, answer);
+        }
+    }
+}
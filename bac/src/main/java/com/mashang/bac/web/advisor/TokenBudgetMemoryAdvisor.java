@@ -0,0 +1,186 @@
+package com.mashang.bac.web.advisor;
+
+import com.mashang.bac.web.chatmemory.ConversationSummarizer;
+import com.mashang.bac.web.chatmemory.MessageTokenCounter;
+import com.mashang.bac.web.chatmemory.TokenBudgetedChatMemory;
+import com.mashang.bac.web.chatmemory.VersionedChatMemory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor;
+import org.springframework.ai.chat.client.advisor.api.AdvisedRequest;
+import org.springframework.ai.chat.client.advisor.api.AdvisedResponse;
+import org.springframework.ai.chat.client.advisor.api.Advisor;
+import org.springframework.ai.chat.client.advisor.api.CallAroundAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAroundAdvisorChain;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.MessageAggregator;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按 token 预算选取历史的对话记忆拦截器
+ * <p>
+ * 与 MessageChatMemoryAdvisor 的区别：不再固定取最近 N 条，而是从最新的消息往前累加 token，
+ * 直到超出预算为止，长消息不会把提示词撑大。
+ * 预算之外的较早消息交给 {@link ConversationSummarizer} 在后台合并成摘要，
+ * 本次请求只使用已经生成好的摘要(拼在系统提示词后面)，不会在请求线程上等待摘要生成。
+ * <p>
+ * CHAT_MEMORY_RETRIEVE_SIZE_KEY 在这里表示最多考察多少条历史，实际条数由预算决定；
+ * 单次请求可通过 {@link #CHAT_MEMORY_TOKEN_BUDGET_KEY} 覆盖预算。
+ * <p>
+ * 存储实现了 {@link TokenBudgetedChatMemory} 时直接用写入时保存的 token 前缀和二分查找，请求线程不分词。
+ * <p>
+ * 用户消息不在请求前写入，而是拿到回答后与回答一起作为一轮追加，同一会话的并发请求不会交错；
+ * 存储实现了 {@link VersionedChatMemory} 时，按读取历史时的版本号做乐观检查，重复提交的轮次会被合并掉。
+ */
+@Slf4j
+public class TokenBudgetMemoryAdvisor extends AbstractChatMemoryAdvisor<ChatMemory> {
+
+    public static final String CHAT_MEMORY_TOKEN_BUDGET_KEY = "chat_memory_token_budget";
+
+    /**
+     * 本次请求读取到的历史条数(含只以摘要形式出现的部分)，放在上下文里供后续拦截器判断是否为会话的第一轮
+     */
+    public static final String CHAT_MEMORY_HISTORY_SIZE_KEY = "chat_memory_history_size";
+
+    /**
+     * 默认最多考察的历史条数
+     */
+    public static final int DEFAULT_HISTORY_SIZE = 50;
+
+    public static final int DEFAULT_TOKEN_BUDGET = 2000;
+
+    private static final String SUMMARY_PARAM = "conversation_summary";
+    private static final String SUMMARY_HEADER = "\n\n以下是与用户更早对话的摘要，供参考：\n";
+
+    /**
+     * 在请求上下文中传递本轮的用户消息和读取历史时的版本号
+     */
+    private static final String PENDING_USER_MESSAGE_KEY = "chat_memory_pending_user_message";
+    private static final String EXPECTED_VERSION_KEY = "chat_memory_expected_version";
+
+    private final ConversationSummarizer summarizer;
+    private final int tokenBudget;
+
+    public TokenBudgetMemoryAdvisor(ChatMemory chatMemory, ConversationSummarizer summarizer, int tokenBudget) {
+        this(chatMemory, summarizer, tokenBudget, DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * @param chatMemory  对话记忆
+     * @param summarizer  摘要器，为空则只截断不摘要
+     * @param tokenBudget 历史消息的 token 预算
+     * @param historySize 最多考察的历史条数
+     */
+    public TokenBudgetMemoryAdvisor(ChatMemory chatMemory, ConversationSummarizer summarizer,
+                                    int tokenBudget, int historySize) {
+        super(chatMemory, DEFAULT_CHAT_MEMORY_CONVERSATION_ID, historySize, true,
+                Advisor.DEFAULT_CHAT_MEMORY_PRECEDENCE_ORDER);
+        this.summarizer = summarizer;
+        this.tokenBudget = tokenBudget;
+    }
+
+    @Override
+    public AdvisedResponse aroundCall(AdvisedRequest advisedRequest, CallAroundAdvisorChain chain) {
+        AdvisedResponse advisedResponse = chain.nextAroundCall(before(advisedRequest));
+        observeAfter(advisedResponse);
+        return advisedResponse;
+    }
+
+    @Override
+    public Flux<AdvisedResponse> aroundStream(AdvisedRequest advisedRequest, StreamAroundAdvisorChain chain) {
+        Flux<AdvisedResponse> advisedResponses = doNextWithProtectFromBlockingBefore(advisedRequest, chain, this::before);
+        return new MessageAggregator().aggregateAdvisedResponse(advisedResponses, this::observeAfter);
+    }
+
+    private AdvisedRequest before(AdvisedRequest request) {
+        String conversationId = doGetConversationId(request.adviseContext());
+        // 版本号在读取历史之前取，期间的写入一定会被检测到
+        long version = getChatMemoryStore() instanceof VersionedChatMemory versioned
+                ? versioned.getVersion(conversationId) : -1;
+        List<Message> history = getChatMemoryStore().get(conversationId,
+                doGetChatMemoryRetrieveSize(request.adviseContext()));
+        int budget = tokenBudget(request.adviseContext());
+        int start;
+        if (getChatMemoryStore() instanceof TokenBudgetedChatMemory budgeted) {
+            start = Math.max(0, history.size() - budgeted.countWithinTokenBudget(conversationId, budget));
+        } else {
+            // 从最新往前累加，超出预算即停
+            start = history.size();
+            int used = 0;
+            while (start > 0) {
+                int tokens = MessageTokenCounter.count(history.get(start - 1));
+                if (used + tokens > budget) {
+                    break;
+                }
+                used += tokens;
+                start--;
+            }
+        }
+        if (start > 0 && summarizer != null) {
+            summarizer.submit(conversationId, history.subList(0, start));
+        }
+
+        List<Message> advisedMessages = new ArrayList<>(request.messages());
+        advisedMessages.addAll(history.subList(start, history.size()));
+        Map<String, Object> context = new HashMap<>(request.adviseContext());
+        context.put(PENDING_USER_MESSAGE_KEY, new UserMessage(request.userText(), request.media()));
+        context.put(EXPECTED_VERSION_KEY, version);
+        context.put(CHAT_MEMORY_HISTORY_SIZE_KEY, history.size());
+        AdvisedRequest.Builder builder = AdvisedRequest.from(request).messages(advisedMessages).adviseContext(context);
+        ConversationSummarizer.Summary summary = summarizer == null ? null : summarizer.get(conversationId);
+        if (summary != null) {
+            appendSummary(builder, request, summary.text());
+        }
+        log.debug("会话 {} 选取历史 {}/{} 条，摘要: {}",
+                conversationId, history.size() - start, history.size(), summary != null);
+        return builder.build();
+    }
+
+    private void observeAfter(AdvisedResponse advisedResponse) {
+        Map<String, Object> context = advisedResponse.adviseContext();
+        String conversationId = doGetConversationId(context);
+        List<Message> turn = new ArrayList<>();
+        if (context.get(PENDING_USER_MESSAGE_KEY) instanceof Message userMessage) {
+            turn.add(userMessage);
+        }
+        advisedResponse.response().getResults().forEach(generation -> turn.add(generation.getOutput()));
+        if (getChatMemoryStore() instanceof VersionedChatMemory versioned
+                && context.get(EXPECTED_VERSION_KEY) instanceof Long expectedVersion && expectedVersion >= 0) {
+            VersionedChatMemory.AppendResult result = versioned.appendTurn(conversationId, expectedVersion, turn);
+            if (result.conflict()) {
+                log.info("会话 {} 存在并发请求，{}", conversationId,
+                        result.appended() == 0 ? "本轮与已写入的轮次重复，已合并" : "本轮整体追加在其后");
+            }
+            return;
+        }
+        // 一次写入整轮，不会与同一会话的其他请求交错
+        getChatMemoryStore().add(conversationId, turn);
+    }
+
+    /**
+     * 摘要拼到系统提示词后面。系统提示词只有带参数时才会按模板渲染，
+     * 此时摘要也作为参数传入，避免摘要里的花括号被当成模板变量
+     */
+    private static void appendSummary(AdvisedRequest.Builder builder, AdvisedRequest request, String summary) {
+        String systemText = request.systemText() == null ? "" : request.systemText();
+        if (request.systemParams() == null || request.systemParams().isEmpty()) {
+            builder.systemText(systemText + SUMMARY_HEADER + summary);
+            return;
+        }
+        Map<String, Object> systemParams = new HashMap<>(request.systemParams());
+        systemParams.put(SUMMARY_PARAM, summary);
+        builder.systemText(systemText + SUMMARY_HEADER + "{" + SUMMARY_PARAM + "}")
+                .systemParams(systemParams);
+    }
+
+    private int tokenBudget(Map<String, Object> context) {
+        Object budget = context.get(CHAT_MEMORY_TOKEN_BUDGET_KEY);
+        return budget != null ? Integer.parseInt(budget.toString()) : tokenBudget;
+    }
+}
@@ -0,0 +1,189 @@
+package com.mashang.bac.web.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对话滚动摘要
+ * <p>
+ * 超出 token 预算窗口的早期对话由后台线程压缩成一段摘要并缓存，请求线程只读取已有摘要，从不等待模型生成。
+ * 每次把"已有摘要 + 新滑出窗口的消息"合并成新摘要，摘要长度有上限，因此每轮提示词大小基本恒定。
+ * <p>
+ * 同一会话同时只有一个摘要任务，队列满时直接放弃本次，下一轮对话会再次触发。
+ */
+@Component
+@Slf4j
+public class ConversationSummarizer implements DisposableBean {
+
+    private static final String SUMMARY_PROMPT = """
+            你是对话记录员。请把"已有摘要"和"新增对话"合并成一段简明的中文摘要，
+            保留用户的基本情况、主要诉求、已经给出的关键建议以及尚未解决的问题。
+            不超过 %d 字，只输出摘要本身。
+            """;
+
+    /**
+     * 单条消息送去摘要时的最大字符数，避免个别超长消息拖慢摘要
+     */
+    private static final int MAX_MESSAGE_CHARS = 2000;
+
+    private static final int QUEUE_CAPACITY = 256;
+
+    private final ChatClient chatClient;
+    private final int maxSummaryChars;
+    private final int maxConversations;
+    private final ThreadPoolExecutor executor;
+
+    // accessOrder=true 的 LinkedHashMap 即 LRU
+    private final LinkedHashMap<String, Summary> summaries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public ConversationSummarizer(ChatModel dashscopeChatModel,
+                                  @Value("${app.chat-memory.summary.max-chars:300}") int maxSummaryChars,
+                                  @Value("${app.chat-memory.summary.max-conversations:10000}") int maxConversations) {
+        this(ChatClient.builder(dashscopeChatModel).build(), maxSummaryChars, maxConversations);
+    }
+
+    /**
+     * @param chatClient       生成摘要用的客户端
+     * @param maxSummaryChars  摘要最大字数
+     * @param maxConversations 最多缓存的摘要数
+     */
+    public ConversationSummarizer(ChatClient chatClient, int maxSummaryChars, int maxConversations) {
+        this.chatClient = chatClient;
+        this.maxSummaryChars = maxSummaryChars;
+        this.maxConversations = maxConversations;
+        this.executor = new ThreadPoolExecutor(1, 2, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread thread = new Thread(r, "chat-memory-summarizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 会话当前的摘要，没有返回 null
+     */
+    public Summary get(String conversationId) {
+        synchronized (summaries) {
+            return summaries.get(conversationId);
+        }
+    }
+
+    /**
+     * 提交滑出窗口的消息，异步合并进摘要
+     *
+     * @param conversationId 会话id
+     * @param overflow       窗口之外的较早消息(按时间顺序)，已经摘要过的部分会自动跳过
+     */
+    public void submit(String conversationId, List<Message> overflow) {
+        Summary previous = get(conversationId);
+        int start = 0;
+        if (previous != null) {
+            for (int i = overflow.size() - 1; i >= 0; i--) {
+                if (fingerprint(overflow.get(i)) == previous.lastFingerprint()) {
+                    start = i + 1;
+                    break;
+                }
+            }
+        }
+        if (start >= overflow.size() || !inFlight.add(conversationId)) {
+            return;
+        }
+        List<Message> pending = List.copyOf(overflow.subList(start, overflow.size()));
+        try {
+            executor.execute(() -> {
+                try {
+                    summarize(conversationId, previous, pending);
+                } catch (Exception e) {
+                    log.warn("会话 {} 生成摘要失败: {}", conversationId, e.getMessage());
+                } finally {
+                    inFlight.remove(conversationId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(conversationId);
+            log.debug("摘要队列已满，跳过会话 {}", conversationId);
+        }
+    }
+
+    public void clear(String conversationId) {
+        synchronized (summaries) {
+            summaries.remove(conversationId);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private void summarize(String conversationId, Summary previous, List<Message> pending) {
+        StringBuilder content = new StringBuilder();
+        if (previous != null) {
+            content.append("已有摘要：\n").append(previous.text()).append("\n\n");
+        }
+        content.append("新增对话：\n");
+        for (Message message : pending) {
+            String text = message.getText();
+            if (text == null || text.isBlank()) {
+                continue;
+            }
+            if (text.length() > MAX_MESSAGE_CHARS) {
+                text = text.substring(0, MAX_MESSAGE_CHARS) + "…";
+            }
+            content.append(message.getMessageType() == MessageType.USER ? "用户：" : "助手：")
+                    .append(text).append('\n');
+        }
+        String text = chatClient.prompt()
+                .system(SUMMARY_PROMPT.formatted(maxSummaryChars))
+                .user(content.toString())
+                .call()
+                .content();
+        if (text == null || text.isBlank()) {
+            return;
+        }
+        Summary summary = new Summary(text.strip(), fingerprint(pending.get(pending.size() - 1)));
+        synchronized (summaries) {
+            summaries.put(conversationId, summary);
+            if (summaries.size() > maxConversations) {
+                Map.Entry<String, Summary> eldest = summaries.entrySet().iterator().next();
+                summaries.remove(eldest.getKey());
+            }
+        }
+        log.debug("会话 {} 摘要已更新，合并 {} 条消息", conversationId, pending.size());
+    }
+
+    /**
+     * 消息指纹，用于判断摘要覆盖到了哪条消息(存储返回的消息对象不一定是同一个实例)
+     */
+    private static long fingerprint(Message message) {
+        return 31L * message.getMessageType().ordinal() + String.valueOf(message.getText()).hashCode();
+    }
+
+    /**
+     * 摘要
+     *
+     * @param text            摘要内容
+     * @param lastFingerprint 摘要覆盖的最后一条消息的指纹
+     */
+    public record Summary(String text, long lastFingerprint) {
+    }
+}
@@ -1,43 +1,92 @@
 package com.mashang.bac.web.chatmemory;
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
-import com.esotericsoftware.kryo.util.*;
-import org.objenesis.strategy.StdInstantiatorStrategy;
-import org.springframework.ai.chat.memory.ChatMemory;
-import org.springframework.ai.chat.messages.AssistantMessage;
+import com.mashang.bac.web.chatmemory.codec.BinaryMessageCodec;
+import com.mashang.bac.web.chatmemory.codec.KryoMessageCodec;
+import com.mashang.bac.web.chatmemory.codec.MessageCodec;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.messages.Message;
-import org.springframework.ai.chat.messages.SystemMessage;
-import org.springframework.ai.chat.messages.UserMessage;
-import org.springframework.ai.model.Media;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.io.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
 
+/**
+ * 文件对话记忆-每个会话一个只追加的记录日志
+ * <p>
+ * 文件布局：
+ * <ul>
+ *     <li>{@code <chatId>.log}：消息帧，每帧为 4 字节长度 + {@link MessageCodec} 序列化内容，只追加不改写</li>
+ *     <li>{@code <chatId>.idx}：每条消息在 .log 中的起始偏移(8 字节)，与消息一一对应</li>
+ *     <li>{@code <chatId>.tok}：截至每条消息(含)的累计 token 数(8 字节)，写入时计算，即 token 前缀和</li>
+ * </ul>
+ * add 只追加新消息，get(lastN) 直接从索引定位到倒数第 N 条消息的偏移读取尾部，
+ * 每轮对话的开销与会话总长度无关。
+ * <p>
+ * 先写 .log 再写 .idx、.tok，崩溃时最多留下一段没有被索引的尾巴。读取只解析索引范围内的帧，不受影响；
+ * 下次追加前先截掉这段尾巴，新消息紧跟在最后一条被索引的帧之后。
+ * .tok 缺失或落后于索引时(旧数据或崩溃)，下次用到时补算缺少的部分。
+ * <p>
+ * 编解码器线程安全(默认使用 {@link BinaryMessageCodec}，之前用 Kryo 写入的消息照常读取)，不同会话可以并行读写。
+ */
 @Component
-public class FileBasedChatMemory implements ChatMemory {
+@Slf4j
+public class FileBasedChatMemory implements SyncableChatMemory, TokenBudgetedChatMemory, VersionedChatMemory {
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TOKENS_SUFFIX = ".tok";
+    /**
+     * 旧版整文件序列化格式，首次访问时迁移为日志格式
+     */
+    private static final String LEGACY_SUFFIX = ".kryo";
+
+    private static final int OFFSET_BYTES = Long.BYTES;
+    private static final int TOKENS_BYTES = Long.BYTES;
+    private static final int LENGTH_BYTES = Integer.BYTES;
 
     private final String BASE_DIR;
-    private static final Kryo kryo = new Kryo();
+    private final MessageCodec codec;
+    private final KryoMessageCodec legacyCodec = new KryoMessageCodec();
 
-    static {
-        kryo.setRegistrationRequired(false);
-        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
-        
-        // 注册 Spring AI 相关类
-        kryo.register(Media.class);
-        kryo.register(ArrayList.class);
-        kryo.register(UserMessage.class);
-        kryo.register(AssistantMessage.class);
-        kryo.register(SystemMessage.class);
-    }
+    /**
+     * 会话写锁(按 id 分段)，保证同一会话的 .log 与 .idx 追加顺序一致
+     */
+    private final StripedLocks locks;
 
+    @Autowired
     public FileBasedChatMemory(@Value("${app.chat-memory.dir:./chat-memory}") String dir) {
+        this(dir, null);
+    }
+
+    /**
+     * @param dir   存储目录
+     * @param codec 消息编解码器，为空时使用二进制格式
+     */
+    public FileBasedChatMemory(String dir, MessageCodec codec) {
+        this(dir, codec, StripedLocks.DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param dir     存储目录
+     * @param codec   消息编解码器，为空时使用二进制格式
+     * @param stripes 锁分段数
+     */
+    public FileBasedChatMemory(String dir, MessageCodec codec, int stripes) {
         this.BASE_DIR = dir;
+        this.locks = new StripedLocks(stripes);
+        this.codec = codec != null ? codec : new BinaryMessageCodec(legacyCodec);
         File baseDir = new File(dir);
         if (!baseDir.exists()) {
             baseDir.mkdirs();
@@ -46,63 +95,382 @@ public class FileBasedChatMemory implements ChatMemory {
 
     @Override
     public void add(String conversationId, Message message) {
-        ChatMemory.super.add(conversationId, message);
+        SyncableChatMemory.super.add(conversationId, message);
     }
 
     @Override
     public List<Message> get(String conversationId, int lastN) {
-        List<Message> allMessages = getOrCreateConversation(conversationId);
-        return allMessages.stream()
-                .skip(Math.max(0, allMessages.size() - lastN))
-                .toList();
+        if (lastN <= 0) {
+            return List.of();
+        }
+        migrateLegacyFile(conversationId);
+        Path indexPath = indexPath(conversationId);
+        Path logPath = logPath(conversationId);
+        if (!Files.exists(indexPath) || !Files.exists(logPath)) {
+            return List.of();
+        }
+        try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ);
+             FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            long count = index.size() / OFFSET_BYTES;
+            if (count == 0) {
+                return List.of();
+            }
+            long first = Math.max(0, count - lastN);
+            ByteBuffer offsetBuffer = ByteBuffer.allocate(OFFSET_BYTES);
+            readFully(index, offsetBuffer, first * OFFSET_BYTES);
+            long offset = offsetBuffer.flip().getLong();
+
+            // 从倒数第 N 条消息开始读到文件尾
+            ByteBuffer tail = ByteBuffer.allocate(Math.toIntExact(logChannel.size() - offset));
+            readFully(logChannel, tail, offset);
+            tail.flip();
+            return decodeFrames(tail, (int) (count - first));
+        } catch (Exception e) {
+            log.error("读取会话 {} 记忆失败", conversationId, e);
+            return List.of();
+        }
     }
 
     @Override
     public void clear(String conversationId) {
-        File file = getConversationFile(conversationId);
-        if (file.exists()) {
-            file.delete();
+        synchronized (lockFor(conversationId)) {
+            try {
+                Files.deleteIfExists(logPath(conversationId));
+                Files.deleteIfExists(indexPath(conversationId));
+                Files.deleteIfExists(tokensPath(conversationId));
+                Files.deleteIfExists(legacyPath(conversationId));
+            } catch (IOException e) {
+                log.error("清理会话 {} 记忆失败", conversationId, e);
+            }
         }
     }
 
-    private List<Message> getOrCreateConversation(String conversationId) {
-        File file = getConversationFile(conversationId);
-        List<Message> messages = new ArrayList<>();
-        if (file.exists()) {
-            try (Input input = new Input(new FileInputStream(file))) {
-                List<Message> rawMessages = kryo.readObject(input, ArrayList.class);
-                // 过滤掉 null 元素
-                if (rawMessages != null) {
-                    messages = rawMessages.stream()
-                            .filter(msg -> msg != null)
-                            .collect(java.util.stream.Collectors.toList());
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        // 过滤掉 null 元素
+        List<Message> filteredMessages = messages.stream()
+                .filter(Objects::nonNull)
+                .toList();
+        if (filteredMessages.isEmpty()) {
+            return;
+        }
+        migrateLegacyFile(conversationId);
+        try {
+            append(conversationId, filteredMessages);
+        } catch (Exception e) {
+            log.error("会话 {} 记忆写入失败", conversationId, e);
+        }
+    }
+
+    @Override
+    public int countWithinTokenBudget(String conversationId, int tokenBudget) {
+        migrateLegacyFile(conversationId);
+        if (!Files.exists(indexPath(conversationId)) || !Files.exists(logPath(conversationId))) {
+            return 0;
+        }
+        synchronized (lockFor(conversationId)) {
+            try (FileChannel logChannel = FileChannel.open(logPath(conversationId), StandardOpenOption.READ);
+                 FileChannel index = FileChannel.open(indexPath(conversationId), StandardOpenOption.READ);
+                 FileChannel tokens = FileChannel.open(tokensPath(conversationId),
+                         StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long count = index.size() / OFFSET_BYTES;
+                if (count == 0) {
+                    return 0;
                 }
+                ensureTokens(logChannel, index, tokens, count);
+                // 后缀和 = 总数 - 前缀和，随起点单调递减，二分找最靠前的满足预算的起点
+                ByteBuffer buffer = ByteBuffer.allocate(TOKENS_BYTES);
+                long total = cumulativeTokens(tokens, count - 1, buffer);
+                long low = 0;
+                long high = count;
+                while (low < high) {
+                    long mid = (low + high) >>> 1;
+                    long before = mid == 0 ? 0 : cumulativeTokens(tokens, mid - 1, buffer);
+                    if (total - before <= tokenBudget) {
+                        high = mid;
+                    } else {
+                        low = mid + 1;
+                    }
+                }
+                return Math.toIntExact(count - low);
             } catch (Exception e) {
-                // 如果序列化失败，删除旧文件并重新开始
-                System.err.println("序列化读取失败，清理旧文件: " + e.getMessage());
-                file.delete();
-                messages = new ArrayList<>();
+                log.error("读取会话 {} token 计数失败", conversationId, e);
+                return 0;
             }
         }
-        return messages;
     }
 
     @Override
-    public void add(String conversationId, List<Message> messages) {
-        File file = getConversationFile(conversationId);
-        try (Output output = new Output(new FileOutputStream(file))) {
-            // 过滤掉 null 元素
-            List<Message> filteredMessages = messages.stream()
-                    .filter(msg -> msg != null)
-                    .collect(java.util.stream.Collectors.toList());
-            kryo.writeObject(output, filteredMessages);
-        } catch (Exception e) {
-            System.err.println("序列化写入失败: " + e.getMessage());
-            e.printStackTrace();
+    public long getVersion(String conversationId) {
+        migrateLegacyFile(conversationId);
+        try {
+            Path indexPath = indexPath(conversationId);
+            return Files.exists(indexPath) ? Files.size(indexPath) / OFFSET_BYTES : 0;
+        } catch (IOException e) {
+            log.error("读取会话 {} 版本失败", conversationId, e);
+            return 0;
+        }
+    }
+
+    @Override
+    public AppendResult appendTurn(String conversationId, long expectedVersion, List<Message> turn) {
+        List<Message> filtered = turn.stream().filter(Objects::nonNull).toList();
+        migrateLegacyFile(conversationId);
+        synchronized (lockFor(conversationId)) {
+            long version = getVersion(conversationId);
+            boolean conflict = version != expectedVersion;
+            List<Message> toAppend = filtered;
+            if (conflict) {
+                List<Message> concurrent = version > expectedVersion
+                        ? get(conversationId, Math.toIntExact(version - expectedVersion)) : List.of();
+                toAppend = VersionedChatMemory.merge(concurrent, filtered);
+            }
+            if (toAppend.isEmpty()) {
+                return new AppendResult(version, conflict, 0);
+            }
+            try {
+                append(conversationId, toAppend);
+            } catch (IOException e) {
+                log.error("会话 {} 记忆写入失败", conversationId, e);
+                return new AppendResult(version, conflict, 0);
+            }
+            return new AppendResult(version + toAppend.size(), conflict, toAppend.size());
+        }
+    }
+
+    /**
+     * 追加消息：先写消息帧，再写偏移索引和累计 token 数
+     */
+    private void append(String conversationId, List<Message> messages) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(messages.size());
+        int[] messageTokens = new int[messages.size()];
+        int frameBytes = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            byte[] payload = codec.encode(messages.get(i));
+            payloads.add(payload);
+            messageTokens[i] = MessageTokenCounter.count(messages.get(i));
+            frameBytes += LENGTH_BYTES + payload.length;
+        }
+        synchronized (lockFor(conversationId)) {
+            try (FileChannel logChannel = FileChannel.open(logPath(conversationId),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel index = FileChannel.open(indexPath(conversationId),
+                         StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel tokens = FileChannel.open(tokensPath(conversationId),
+                         StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // 截掉上次崩溃留下的未索引帧和写了一半的索引项，新帧紧跟在最后一条被索引的帧之后
+                long count = truncateToIndexed(conversationId, logChannel, index);
+                long indexEnd = count * OFFSET_BYTES;
+                long position = logChannel.size();
+                ByteBuffer frames = ByteBuffer.allocate(frameBytes);
+                ByteBuffer offsets = ByteBuffer.allocate(payloads.size() * OFFSET_BYTES);
+                for (byte[] payload : payloads) {
+                    offsets.putLong(position + frames.position());
+                    frames.putInt(payload.length).put(payload);
+                }
+                writeFully(logChannel, frames.flip(), position);
+                // 先补齐已有消息的 token 数，新消息的累计值才能接上
+                long total = count == 0 ? 0 : ensureTokens(logChannel, index, tokens, count);
+                writeFully(index, offsets.flip(), indexEnd);
+                ByteBuffer cumulative = ByteBuffer.allocate(messageTokens.length * TOKENS_BYTES);
+                for (int messageToken : messageTokens) {
+                    total += messageToken;
+                    cumulative.putLong(total);
+                }
+                writeFully(tokens, cumulative.flip(), count * TOKENS_BYTES);
+            }
+        }
+    }
+
+    /**
+     * 保证 .tok 与索引条数一致：多余的截掉，缺少的解码消息补算
+     *
+     * @return 全部 count 条消息的累计 token 数
+     */
+    private long ensureTokens(FileChannel logChannel, FileChannel index, FileChannel tokens, long count)
+            throws IOException {
+        long known = tokens.size() / TOKENS_BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(OFFSET_BYTES, TOKENS_BYTES));
+        if (known >= count) {
+            tokens.truncate(count * TOKENS_BYTES);
+            return cumulativeTokens(tokens, count - 1, buffer);
+        }
+        long total = known == 0 ? 0 : cumulativeTokens(tokens, known - 1, buffer);
+        buffer.clear();
+        readFully(index, buffer.limit(OFFSET_BYTES), known * OFFSET_BYTES);
+        long offset = buffer.flip().getLong();
+        ByteBuffer tail = ByteBuffer.allocate(Math.toIntExact(logChannel.size() - offset));
+        readFully(logChannel, tail, offset);
+        List<Message> missing = decodeFrames(tail.flip(), Math.toIntExact(count - known));
+        ByteBuffer cumulative = ByteBuffer.allocate(missing.size() * TOKENS_BYTES);
+        for (Message message : missing) {
+            total += MessageTokenCounter.count(message);
+            cumulative.putLong(total);
+        }
+        tokens.truncate(known * TOKENS_BYTES);
+        writeFully(tokens, cumulative.flip(), known * TOKENS_BYTES);
+        return total;
+    }
+
+    private static long cumulativeTokens(FileChannel tokens, long position, ByteBuffer buffer) throws IOException {
+        buffer.clear().limit(TOKENS_BYTES);
+        readFully(tokens, buffer, position * TOKENS_BYTES);
+        return buffer.flip().getLong();
+    }
+
+    @Override
+    public void sync(Collection<String> conversationIds) {
+        for (String conversationId : conversationIds) {
+            synchronized (lockFor(conversationId)) {
+                force(logPath(conversationId));
+                force(indexPath(conversationId));
+                force(tokensPath(conversationId));
+            }
+        }
+    }
+
+    /**
+     * 丢弃帧不完整的索引项，并截掉日志末尾没有被索引的数据
+     */
+    @Override
+    public void recover(Collection<String> conversationIds) {
+        for (String conversationId : conversationIds) {
+            Path logPath = logPath(conversationId);
+            Path indexPath = indexPath(conversationId);
+            if (!Files.exists(logPath) || !Files.exists(indexPath)) {
+                continue;
+            }
+            synchronized (lockFor(conversationId)) {
+                try (FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                     FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    truncateToIndexed(conversationId, logChannel, index);
+                } catch (IOException e) {
+                    log.error("恢复会话 {} 记忆失败", conversationId, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在会话锁内调用：从最后一条索引项往前找第一条帧完整的消息，截掉之后的索引项和日志数据。
+     * 累计 token 数多出来的部分下次用到时会被截掉
+     *
+     * @return 保留的消息条数
+     */
+    private long truncateToIndexed(String conversationId, FileChannel logChannel, FileChannel index)
+            throws IOException {
+        long count = index.size() / OFFSET_BYTES;
+        long logSize = logChannel.size();
+        long validEnd = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(OFFSET_BYTES);
+        while (count > 0) {
+            buffer.clear();
+            readFully(index, buffer, (count - 1) * OFFSET_BYTES);
+            long offset = buffer.flip().getLong();
+            if (offset >= 0 && offset + LENGTH_BYTES <= logSize) {
+                buffer.clear().limit(LENGTH_BYTES);
+                readFully(logChannel, buffer, offset);
+                long end = offset + LENGTH_BYTES + buffer.flip().getInt();
+                if (end <= logSize) {
+                    validEnd = end;
+                    break;
+                }
+            }
+            count--;
+        }
+        if (count * OFFSET_BYTES != index.size() || validEnd != logSize) {
+            log.warn("会话 {} 记忆存在未完整写入的数据，已恢复到 {} 条消息", conversationId, count);
+            index.truncate(count * OFFSET_BYTES);
+            logChannel.truncate(validEnd);
+        }
+        return count;
+    }
+
+    private void force(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.error("文件 {} 刷盘失败", path, e);
+        }
+    }
+
+    private List<Message> decodeFrames(ByteBuffer buffer, int count) {
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count && buffer.remaining() >= LENGTH_BYTES; i++) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                log.warn("记忆日志帧不完整，已忽略尾部数据");
+                break;
+            }
+            Message message = codec.decode(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            if (message != null) {
+                messages.add(message);
+            }
         }
+        return messages;
+    }
+
+    /**
+     * 旧版 .kryo 整文件迁移为日志格式
+     */
+    private void migrateLegacyFile(String conversationId) {
+        File legacy = legacyPath(conversationId).toFile();
+        if (!legacy.exists()) {
+            return;
+        }
+        synchronized (lockFor(conversationId)) {
+            if (!legacy.exists()) {
+                return;
+            }
+            try (FileInputStream input = new FileInputStream(legacy)) {
+                List<Message> rawMessages = legacyCodec.decodeLegacyList(input);
+                if (rawMessages != null) {
+                    append(conversationId, rawMessages.stream().filter(Objects::nonNull).toList());
+                }
+            } catch (Exception e) {
+                log.warn("旧版记忆文件 {} 无法读取，已丢弃: {}", legacy, e.getMessage());
+            }
+            legacy.delete();
+        }
+    }
+
+    private Object lockFor(String conversationId) {
+        return locks.get(conversationId);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("文件提前结束");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private Path logPath(String conversationId) {
+        return Path.of(BASE_DIR, conversationId + LOG_SUFFIX);
+    }
+
+    private Path indexPath(String conversationId) {
+        return Path.of(BASE_DIR, conversationId + INDEX_SUFFIX);
+    }
+
+    private Path tokensPath(String conversationId) {
+        return Path.of(BASE_DIR, conversationId + TOKENS_SUFFIX);
     }
 
-    private File getConversationFile(String conversationId) {
-        return new File(BASE_DIR, conversationId + ".kryo");
+    private Path legacyPath(String conversationId) {
+        return Path.of(BASE_DIR, conversationId + LEGACY_SUFFIX);
     }
 }
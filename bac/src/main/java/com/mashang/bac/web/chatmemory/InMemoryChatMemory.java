@@ -1,42 +1,527 @@
 package com.mashang.bac.web.chatmemory;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * 内存聊天记忆实现 - 临时解决方案
+ * 内存聊天记忆实现-有界、线程安全
+ * <p>
+ * 每个会话一个固定容量的环形缓冲区，容量取对话记忆拦截器最多读取的历史条数，
+ * 超出的旧消息直接被覆盖(反正也取不到)。
+ * 空闲超时的会话会被清理；会话总数或全部消息的估算堆内存超过上限时按最近访问时间淘汰最久未用的会话，
+ * 几个特别长的会话也撑不爆堆。配置了溢出存储时淘汰前先把内容写过去(降级)，之后再访问会从溢出存储加载回来(升级)，
+ * 加载后溢出存储中的副本随即删除，常驻期间以内存为准。加载在新会话自己的锁内进行，不占用 Map 的分桶锁。
+ * 溢出存储拒绝写入(例如堆外内存已满)时会话留在内存里，不丢数据，之后一段时间内不再因超出上限而淘汰。
+ * 默认使用 {@link OffHeapChatMemory} 作为溢出存储，空闲会话压缩后放到堆外，堆上只保留活跃会话。
+ * <p>
+ * 清理不依赖后台线程，由写入操作顺带触发(同一时刻只有一个线程执行)。
+ * <p>
+ * 写入时计算每条消息的 token 数并维护累计值，按预算选取历史时在环形缓冲区上二分查找。
+ * <p>
+ * 每个会话自带锁(会话对象本身)，不同会话之间不存在共享锁；版本号为会话累计写入的消息条数。
+ * <p>
+ * 常驻会话数、堆内存估算、淘汰/降级/升级次数以及堆外溢出存储的占用注册为 chat.memory.* 指标，
+ * 见 /actuator/metrics。
  */
 @Component
-public class InMemoryChatMemory implements ChatMemory {
+@Slf4j
+public class InMemoryChatMemory implements TokenBudgetedChatMemory, VersionedChatMemory, MeterBinder {
 
-    private final ConcurrentMap<String, List<Message>> conversations = new ConcurrentHashMap<>();
+    /**
+     * 默认容量，与 TokenBudgetMemoryAdvisor 最多考察的历史条数(50)一致
+     */
+    public static final int DEFAULT_CAPACITY = 50;
+    /**
+     * 空闲多久后降级到溢出存储
+     */
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 5 * 60 * 1000L;
+    public static final int DEFAULT_MAX_CONVERSATIONS = 10_000;
+    public static final long DEFAULT_MAX_HEAP_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * 两次空闲清理之间的最小间隔
+     */
+    private static final long SWEEP_INTERVAL_MILLIS = 10_000L;
+
+    /**
+     * 超过上限时一次淘汰到上限的该比例，避免每次写入都触发淘汰
+     */
+    private static final double EVICT_TO_RATIO = 0.9;
+
+    /**
+     * 单条消息除文本外的大致堆开销(消息对象、元数据 Map、数组槽位)
+     */
+    private static final int MESSAGE_HEAP_OVERHEAD = 256;
+
+    private final ConcurrentMap<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final long maxIdleMillis;
+    private final int maxConversations;
+    private final long maxHeapBytes;
+    private final ChatMemory spillTarget;
+    /**
+     * 常驻消息的估算堆内存，会话锁内增减
+     */
+    private final AtomicLong heapBytes = new AtomicLong();
+
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long lastSweepMillis = System.currentTimeMillis();
+    /**
+     * 降级失败后，在此之前不因超出上限触发淘汰
+     */
+    private volatile long demotionBackoffUntil;
+
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder capacityEvictions = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder demotionFailures = new LongAdder();
+
+    public InMemoryChatMemory() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_IDLE_MILLIS, DEFAULT_MAX_CONVERSATIONS, DEFAULT_MAX_HEAP_BYTES,
+                new OffHeapChatMemory());
+    }
+
+    /**
+     * @param capacity         每个会话保留的最近消息条数
+     * @param maxIdleMillis    会话空闲多久后清理(有溢出存储时为降级)
+     * @param maxConversations 常驻会话数上限
+     * @param maxHeapBytes     常驻消息估算堆内存上限
+     * @param spillTarget      淘汰时的溢出存储，为空则直接丢弃
+     */
+    public InMemoryChatMemory(int capacity, long maxIdleMillis, int maxConversations, long maxHeapBytes,
+                              ChatMemory spillTarget) {
+        this.capacity = capacity;
+        this.maxIdleMillis = maxIdleMillis;
+        this.maxConversations = maxConversations;
+        this.maxHeapBytes = maxHeapBytes;
+        this.spillTarget = spillTarget;
+    }
 
     @Override
     public void add(String conversationId, Message message) {
-        conversations.computeIfAbsent(conversationId, k -> new ArrayList<>()).add(message);
+        add(conversationId, List.of(message));
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        List<Message> filtered = messages.stream().filter(Objects::nonNull).toList();
+        // 分词放在锁外
+        int[] tokens = new int[filtered.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = MessageTokenCounter.count(filtered.get(i));
+        }
+        while (true) {
+            Conversation conversation = conversation(conversationId);
+            synchronized (conversation) {
+                if (conversation.evicted) {
+                    continue;
+                }
+                long delta = 0;
+                for (int i = 0; i < tokens.length; i++) {
+                    delta += conversation.append(filtered.get(i), tokens[i]);
+                }
+                heapBytes.addAndGet(delta);
+                conversation.touch();
+            }
+            break;
+        }
+        maintain();
     }
 
     @Override
     public List<Message> get(String conversationId, int lastN) {
-        List<Message> messages = conversations.getOrDefault(conversationId, new ArrayList<>());
-        return messages.stream()
-                .skip(Math.max(0, messages.size() - lastN))
-                .toList();
+        Conversation conversation = existing(conversationId);
+        if (conversation == null) {
+            return List.of();
+        }
+        synchronized (conversation) {
+            conversation.touch();
+            return conversation.tail(lastN);
+        }
+    }
+
+    @Override
+    public long getVersion(String conversationId) {
+        Conversation conversation = existing(conversationId);
+        if (conversation == null) {
+            return 0;
+        }
+        synchronized (conversation) {
+            return conversation.version;
+        }
+    }
+
+    @Override
+    public AppendResult appendTurn(String conversationId, long expectedVersion, List<Message> turn) {
+        List<Message> filtered = turn.stream().filter(Objects::nonNull).toList();
+        int[] tokens = new int[filtered.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = MessageTokenCounter.count(filtered.get(i));
+        }
+        AppendResult result;
+        while (true) {
+            Conversation conversation = conversation(conversationId);
+            synchronized (conversation) {
+                if (conversation.evicted) {
+                    continue;
+                }
+                boolean conflict = conversation.version != expectedVersion;
+                boolean keep = true;
+                if (conflict) {
+                    long since = conversation.version - expectedVersion;
+                    List<Message> concurrent = since > 0
+                            ? conversation.tail((int) Math.min(since, capacity)) : List.of();
+                    keep = !VersionedChatMemory.merge(concurrent, filtered).isEmpty();
+                }
+                if (keep) {
+                    long delta = 0;
+                    for (int i = 0; i < tokens.length; i++) {
+                        delta += conversation.append(filtered.get(i), tokens[i]);
+                    }
+                    heapBytes.addAndGet(delta);
+                }
+                conversation.touch();
+                result = new AppendResult(conversation.version, conflict, keep ? tokens.length : 0);
+            }
+            break;
+        }
+        maintain();
+        return result;
+    }
+
+    @Override
+    public int countWithinTokenBudget(String conversationId, int tokenBudget) {
+        Conversation conversation = existing(conversationId);
+        if (conversation == null) {
+            return 0;
+        }
+        synchronized (conversation) {
+            return conversation.countWithin(tokenBudget);
+        }
     }
 
     @Override
     public void clear(String conversationId) {
-        conversations.remove(conversationId);
+        Conversation conversation = conversations.remove(conversationId);
+        if (conversation != null) {
+            synchronized (conversation) {
+                conversation.evicted = true;
+                heapBytes.addAndGet(-conversation.bytes);
+            }
+        }
+        if (spillTarget != null) {
+            spillTarget.clear(conversationId);
+        }
+    }
+
+    /**
+     * 常驻内存的会话数
+     */
+    public int getResidentConversations() {
+        return conversations.size();
+    }
+
+    /**
+     * 常驻会话占用堆内存的估算值(按消息文本长度估算，不含元数据)
+     */
+    public long getEstimatedHeapBytes() {
+        return heapBytes.get();
+    }
+
+    /**
+     * 降级到溢出存储的会话数
+     */
+    public long getDemotions() {
+        return demotions.sum();
+    }
+
+    /**
+     * 溢出存储拒绝写入、留在内存中的次数
+     */
+    public long getDemotionFailures() {
+        return demotionFailures.sum();
+    }
+
+    /**
+     * 从溢出存储加载回内存的会话数
+     */
+    public long getPromotions() {
+        return promotions.sum();
+    }
+
+    /**
+     * 溢出存储，未配置时为 null
+     */
+    public ChatMemory getSpillTarget() {
+        return spillTarget;
     }
 
+    /**
+     * 因空闲超时被清理的会话数
+     */
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    /**
+     * 因超出会话数或堆内存上限被淘汰的会话数
+     */
+    public long getCapacityEvictions() {
+        return capacityEvictions.sum();
+    }
+
+    /**
+     * 只读访问：会话常驻或能从溢出存储加载回来时返回会话，否则返回 null，不为不存在的会话创建空缓冲区
+     */
     @Override
-    public void add(String conversationId, List<Message> messages) {
-        conversations.computeIfAbsent(conversationId, k -> new ArrayList<>()).addAll(messages);
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("chat.memory.resident.conversations", this, InMemoryChatMemory::getResidentConversations)
+                .description("常驻内存的会话数").register(registry);
+        Gauge.builder("chat.memory.heap.bytes", this, InMemoryChatMemory::getEstimatedHeapBytes)
+                .description("常驻会话占用堆内存的估算值").baseUnit("bytes").register(registry);
+        FunctionCounter.builder("chat.memory.evictions", this, InMemoryChatMemory::getIdleEvictions)
+                .description("被清理或淘汰的会话数").tag("cause", "idle").register(registry);
+        FunctionCounter.builder("chat.memory.evictions", this, InMemoryChatMemory::getCapacityEvictions)
+                .description("被清理或淘汰的会话数").tag("cause", "capacity").register(registry);
+        FunctionCounter.builder("chat.memory.demotions", this, InMemoryChatMemory::getDemotions)
+                .description("降级到溢出存储的会话数").register(registry);
+        FunctionCounter.builder("chat.memory.demotion.failures", this, InMemoryChatMemory::getDemotionFailures)
+                .description("溢出存储拒绝写入、留在内存中的次数").register(registry);
+        FunctionCounter.builder("chat.memory.promotions", this, InMemoryChatMemory::getPromotions)
+                .description("从溢出存储加载回内存的会话数").register(registry);
+        if (spillTarget instanceof OffHeapChatMemory offHeap) {
+            Gauge.builder("chat.memory.offheap.conversations", offHeap, OffHeapChatMemory::getStoredConversations)
+                    .description("堆外保存的会话数").register(registry);
+            Gauge.builder("chat.memory.offheap.bytes", offHeap, OffHeapChatMemory::getOffHeapBytes)
+                    .description("占用的堆外内存(压缩后)").baseUnit("bytes").register(registry);
+            Gauge.builder("chat.memory.offheap.raw.bytes", offHeap, OffHeapChatMemory::getRawBytes)
+                    .description("堆外会话压缩前的字节数").baseUnit("bytes").register(registry);
+            FunctionCounter.builder("chat.memory.offheap.rejected.writes", offHeap, OffHeapChatMemory::getRejectedWrites)
+                    .description("因超出堆外内存上限被拒绝的写入次数").register(registry);
+        }
+    }
+
+    private Conversation existing(String conversationId) {
+        Conversation existing = conversations.get(conversationId);
+        if (existing != null || spillTarget == null) {
+            return existing;
+        }
+        if (spillTarget.get(conversationId, 1).isEmpty()) {
+            // 溢出存储里也没有，期间可能被并发写入创建
+            return conversations.get(conversationId);
+        }
+        return conversation(conversationId);
+    }
+
+    private Conversation conversation(String conversationId) {
+        Conversation existing = conversations.get(conversationId);
+        if (existing != null) {
+            return existing;
+        }
+        Conversation created = new Conversation(capacity);
+        boolean promoted = false;
+        // 先持有新会话的锁再发布，并发访问同一会话的线程等加载完成，其他会话不受影响
+        synchronized (created) {
+            Conversation raced = conversations.putIfAbsent(conversationId, created);
+            if (raced != null) {
+                return raced;
+            }
+            // 之前被淘汰到溢出存储的会话加载回来；旧对象移出 Map 之前已写完溢出存储
+            if (spillTarget != null) {
+                List<Message> spilled = spillTarget.get(conversationId, capacity);
+                if (!spilled.isEmpty()) {
+                    long delta = 0;
+                    for (Message message : spilled) {
+                        delta += created.append(message, MessageTokenCounter.count(message));
+                    }
+                    heapBytes.addAndGet(delta);
+                    spillTarget.clear(conversationId);
+                    promotions.increment();
+                    promoted = true;
+                }
+            }
+        }
+        if (promoted) {
+            // 只读的访问也会把会话加载回来，同样要受上限约束
+            maintain();
+        }
+        return created;
+    }
+
+    /**
+     * 空闲清理与容量淘汰，同一时刻只允许一个线程执行
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        boolean overCapacity = (conversations.size() > maxConversations || heapBytes.get() > maxHeapBytes)
+                && now >= demotionBackoffUntil;
+        if (!overCapacity && now - lastSweepMillis < SWEEP_INTERVAL_MILLIS) {
+            return;
+        }
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lastSweepMillis = now;
+            long idleFailures = demotionFailures.sum();
+            for (Map.Entry<String, Conversation> entry : conversations.entrySet()) {
+                if (demotionFailures.sum() > idleFailures) {
+                    break;
+                }
+                if (now - entry.getValue().lastAccess > maxIdleMillis && evict(entry.getKey(), entry.getValue())) {
+                    idleEvictions.increment();
+                }
+            }
+            boolean overConversations = conversations.size() > maxConversations;
+            boolean overBytes = heapBytes.get() > maxHeapBytes;
+            if ((overConversations || overBytes) && now >= demotionBackoffUntil) {
+                int conversationTarget = overConversations ? (int) (maxConversations * EVICT_TO_RATIO) : maxConversations;
+                long bytesTarget = overBytes ? (long) (maxHeapBytes * EVICT_TO_RATIO) : maxHeapBytes;
+                List<Map.Entry<String, Conversation>> lru = new ArrayList<>(conversations.entrySet());
+                lru.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+                int evicted = 0;
+                long failures = demotionFailures.sum();
+                for (Map.Entry<String, Conversation> entry : lru) {
+                    if (conversations.size() <= conversationTarget && heapBytes.get() <= bytesTarget) {
+                        break;
+                    }
+                    if (demotionFailures.sum() > failures) {
+                        // 溢出存储已满，继续淘汰也只会失败
+                        demotionBackoffUntil = now + SWEEP_INTERVAL_MILLIS;
+                        break;
+                    }
+                    if (evict(entry.getKey(), entry.getValue())) {
+                        capacityEvictions.increment();
+                        evicted++;
+                    }
+                }
+                log.debug("内存对话记忆超出上限，淘汰 {} 个最久未用的会话", evicted);
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    private boolean evict(String conversationId, Conversation conversation) {
+        synchronized (conversation) {
+            if (conversation.evicted || conversations.get(conversationId) != conversation) {
+                return false;
+            }
+            // 先写溢出存储再移出，并发访问要么拿到旧对象等锁，要么在移出之后从溢出存储完整加载
+            if (spillTarget != null && conversation.size > 0) {
+                try {
+                    spillTarget.clear(conversationId);
+                    spillTarget.add(conversationId, conversation.tail(capacity));
+                    demotions.increment();
+                } catch (Exception e) {
+                    // 写不进溢出存储就不淘汰，内存里的副本仍是完整的
+                    demotionFailures.increment();
+                    log.warn("会话 {} 降级失败，继续保留在内存中: {}", conversationId, e.getMessage());
+                    return false;
+                }
+            }
+            conversation.evicted = true;
+            heapBytes.addAndGet(-conversation.bytes);
+            conversations.remove(conversationId, conversation);
+            return true;
+        }
+    }
+
+    /**
+     * 单个会话的环形缓冲区，所有方法都在自身锁内调用
+     */
+    private static final class Conversation {
+        private final Message[] ring;
+        // 与 ring 同位置：该消息的 token 数、截至该消息(含)的累计 token 数
+        private final int[] tokens;
+        private final long[] cumulative;
+        private long totalTokens;
+        private long bytes;
+        private long version;
+        private int head;
+        private int size;
+        private boolean evicted;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Conversation(int capacity) {
+            this.ring = new Message[capacity];
+            this.tokens = new int[capacity];
+            this.cumulative = new long[capacity];
+        }
+
+        /**
+         * @return 估算堆内存的变化量，覆盖最旧的消息时扣除它的估算值
+         */
+        long append(Message message, int messageTokens) {
+            int slot = (head + size) % ring.length;
+            long delta = estimateHeapBytes(message) - (size == ring.length ? estimateHeapBytes(ring[slot]) : 0);
+            bytes += delta;
+            ring[slot] = message;
+            totalTokens += messageTokens;
+            tokens[slot] = messageTokens;
+            cumulative[slot] = totalTokens;
+            version++;
+            if (size < ring.length) {
+                size++;
+            } else {
+                head = (head + 1) % ring.length;
+            }
+            return delta;
+        }
+
+        List<Message> tail(int lastN) {
+            int n = Math.min(Math.max(lastN, 0), size);
+            List<Message> result = new ArrayList<>(n);
+            for (int i = size - n; i < size; i++) {
+                result.add(ring[(head + i) % ring.length]);
+            }
+            return result;
+        }
+
+        /**
+         * 二分查找最靠前的起点 i，使 [i, size) 的 token 和不超过预算
+         */
+        int countWithin(int tokenBudget) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int slot = (head + mid) % ring.length;
+                long suffix = totalTokens - (cumulative[slot] - tokens[slot]);
+                if (suffix <= tokenBudget) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return size - low;
+        }
+
+        static long estimateHeapBytes(Message message) {
+            String text = message.getText();
+            return MESSAGE_HEAP_OVERHEAD + (text == null ? 0 : 2L * text.length());
+        }
+
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
     }
 }
@@ -0,0 +1,457 @@
+package com.mashang.bac.web.chatmemory;
+
+import com.mashang.bac.web.chatmemory.codec.BinaryMessageCodec;
+import com.mashang.bac.web.chatmemory.codec.KryoMessageCodec;
+import com.mashang.bac.web.chatmemory.codec.MessageCodec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Postgres 对话记忆
+ * <p>
+ * 消息只追加不修改，存在一张按 (conversation_id, seq) 建主键的表里，seq 由全局序列生成，
+ * 取最近 N 条就是一次按主键倒序的 LIMIT 查询。每条消息写入时同时保存 token 数，
+ * 按预算选取历史用窗口函数在数据库里累加，不需要把消息取回来重新分词。
+ * <p>
+ * 写入先放在内存缓冲区，后台线程按固定间隔把所有会话的新消息合并成多行 INSERT，在一个事务里写入；
+ * 缓冲区积累到一批时提前写入。读取时合并数据库和缓冲区，本节点的写入立即可见，
+ * 其他节点最多延迟一个写入间隔。每个会话的缓冲区被取走写入或放回时都换成新对象，
+ * 读取前后比较本会话的缓冲区对象即可判断查询期间是否发生过写入，其他会话的写入不会让读取重试。
+ * <p>
+ * 版本号为数据库中的消息条数加缓冲区中的条数，本节点的写入和 {@link #appendTurn} 的检查在同一把分段锁内完成。
+ * 数据库中的条数只在会话第一次取版本号时 count 一次，之后本节点写入成功时累加、清空时作废，不再每轮查询；
+ * 其他节点的写入在本地缓存的条数被淘汰后才计入版本号。
+ */
+@Slf4j
+public final class JdbcChatMemory implements TokenBudgetedChatMemory, VersionedChatMemory, DisposableBean {
+
+    public static final String DEFAULT_TABLE_NAME = "chat_memory_message";
+
+    /**
+     * 单条 INSERT 语句最多的行数，每行 4 个参数，远低于 Postgres 的 65535 个参数上限
+     */
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    /**
+     * 数据库不可用时缓冲区最多保留的消息数，超出后丢弃写入失败的批次
+     */
+    private static final int MAX_PENDING_MESSAGES = 100_000;
+
+    /**
+     * 本地缓存数据库消息条数的会话数上限，超出后淘汰最久未使用的会话
+     */
+    private static final int MAX_CACHED_COUNTS = 10_000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final MessageCodec codec;
+    private final String tableName;
+    private final int batchSize;
+    private final ScheduledExecutorService flusher;
+    private final StripedLocks locks = new StripedLocks();
+
+    // 以下状态都在 state 锁内访问
+    private final Object state = new Object();
+    private Map<String, Buffer> pending = new LinkedHashMap<>();
+    private int pendingCount;
+    // 正在写入数据库的批次，写完之前这些会话的读取需要等待，避免同一条消息读到两次
+    private Map<String, Buffer> flushing = Map.of();
+    // 每个会话在数据库中的消息条数，按访问顺序淘汰
+    private final Map<String, Long> persistedCounts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_CACHED_COUNTS;
+        }
+    };
+    // 每次写入或清空数据库加一，count 查询期间有变化时结果不放入缓存
+    private long databaseEpoch;
+
+    private final Object flushLock = new Object();
+
+    /**
+     * @param jdbcTemplate     数据库
+     * @param codec            消息编解码器，为空则使用 {@link BinaryMessageCodec}
+     * @param tableName        表名
+     * @param flushInterval    后台写入间隔
+     * @param batchSize        缓冲区积累到多少条消息时提前写入
+     * @param initializeSchema 是否自动建表
+     */
+    public JdbcChatMemory(JdbcTemplate jdbcTemplate, MessageCodec codec, String tableName,
+                          Duration flushInterval, int batchSize, boolean initializeSchema) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.codec = codec != null ? codec : new BinaryMessageCodec(new KryoMessageCodec());
+        this.tableName = tableName;
+        this.batchSize = batchSize;
+        if (initializeSchema) {
+            initializeSchema();
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-memory-jdbc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = flushInterval.toMillis();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void add(String conversationId, Message message) {
+        add(conversationId, List.of(message));
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        // 编码和分词放在锁外
+        List<Row> rows = messages.stream()
+                .filter(Objects::nonNull)
+                .map(message -> new Row(conversationId, message, codec.encode(message), MessageTokenCounter.count(message)))
+                .toList();
+        if (rows.isEmpty()) {
+            return;
+        }
+        boolean full;
+        synchronized (locks.get(conversationId)) {
+            synchronized (state) {
+                pending.computeIfAbsent(conversationId, id -> new Buffer()).rows.addAll(rows);
+                pendingCount += rows.size();
+                full = pendingCount >= batchSize;
+            }
+        }
+        if (full) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    @Override
+    public List<Message> get(String conversationId, int lastN) {
+        if (lastN <= 0) {
+            return List.of();
+        }
+        return read(conversationId, local -> {
+            List<Message> result = new ArrayList<>(lastN);
+            int fromDatabase = lastN - local.size();
+            if (fromDatabase > 0) {
+                result.addAll(queryTail(conversationId, fromDatabase));
+            }
+            for (Row row : local.subList(Math.max(0, local.size() - lastN), local.size())) {
+                result.add(row.message());
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public int countWithinTokenBudget(String conversationId, int tokenBudget) {
+        return read(conversationId, local -> {
+            int count = 0;
+            long remaining = tokenBudget;
+            for (int i = local.size() - 1; i >= 0; i--) {
+                if (remaining < local.get(i).tokens()) {
+                    return count;
+                }
+                remaining -= local.get(i).tokens();
+                count++;
+            }
+            return count + queryCountWithin(conversationId, remaining);
+        });
+    }
+
+    @Override
+    public long getVersion(String conversationId) {
+        long epoch;
+        synchronized (state) {
+            awaitFlushed(conversationId);
+            Long persisted = persistedCounts.get(conversationId);
+            if (persisted != null) {
+                Buffer buffer = pending.get(conversationId);
+                return persisted + (buffer == null ? 0 : buffer.rows.size());
+            }
+            epoch = databaseEpoch;
+        }
+        long count = queryCount(conversationId);
+        synchronized (state) {
+            if (databaseEpoch == epoch) {
+                persistedCounts.put(conversationId, count);
+                Buffer buffer = pending.get(conversationId);
+                return count + (buffer == null ? 0 : buffer.rows.size());
+            }
+        }
+        // 查询期间数据库有写入，不知道 count 是否包含这些写入，按原来的方式合并读取
+        return read(conversationId, local -> queryCount(conversationId) + local.size());
+    }
+
+    @Override
+    public AppendResult appendTurn(String conversationId, long expectedVersion, List<Message> turn) {
+        List<Message> filtered = turn.stream().filter(Objects::nonNull).toList();
+        synchronized (locks.get(conversationId)) {
+            long version = getVersion(conversationId);
+            boolean conflict = version != expectedVersion;
+            List<Message> toAppend = filtered;
+            if (conflict) {
+                List<Message> concurrent = version > expectedVersion
+                        ? get(conversationId, Math.toIntExact(version - expectedVersion)) : List.of();
+                toAppend = VersionedChatMemory.merge(concurrent, filtered);
+            }
+            add(conversationId, toAppend);
+            return new AppendResult(version + toAppend.size(), conflict, toAppend.size());
+        }
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        synchronized (locks.get(conversationId)) {
+            synchronized (state) {
+                Buffer removed = pending.remove(conversationId);
+                if (removed != null) {
+                    pendingCount -= removed.rows.size();
+                }
+                awaitFlushed(conversationId);
+            }
+            jdbcTemplate.update("DELETE FROM " + tableName + " WHERE conversation_id = ?", conversationId);
+            synchronized (state) {
+                persistedCounts.remove(conversationId);
+                databaseEpoch++;
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        log.info("对话记忆缓冲区已全部写入数据库");
+    }
+
+    /**
+     * 缓冲区中尚未写入数据库的消息数
+     */
+    public int getPendingCount() {
+        synchronized (state) {
+            return pendingCount;
+        }
+    }
+
+    /**
+     * 把缓冲区的消息写入数据库，写入失败时放回缓冲区等待下次重试
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, Buffer> batch;
+            synchronized (state) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                flushing = batch;
+                pending = new LinkedHashMap<>();
+                pendingCount = 0;
+            }
+            boolean inserted = false;
+            try {
+                insert(batch);
+                inserted = true;
+            } catch (RuntimeException e) {
+                requeue(batch);
+                throw e;
+            } finally {
+                synchronized (state) {
+                    if (inserted) {
+                        batch.forEach((id, buffer) ->
+                                persistedCounts.computeIfPresent(id, (key, count) -> count + buffer.rows.size()));
+                        databaseEpoch++;
+                    }
+                    flushing = Map.of();
+                    state.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("对话记忆写入数据库失败，{} 条消息等待重试", getPendingCount(), e);
+        }
+    }
+
+    /**
+     * 写入失败的批次放回缓冲区最前面，保持每个会话内的顺序；合并后的缓冲区都是新对象
+     */
+    private void requeue(Map<String, Buffer> batch) {
+        synchronized (state) {
+            int batchCount = batch.values().stream().mapToInt(buffer -> buffer.rows.size()).sum();
+            if (pendingCount + batchCount > MAX_PENDING_MESSAGES) {
+                log.error("对话记忆缓冲区已满，丢弃写入失败的 {} 条消息", batchCount);
+                return;
+            }
+            Map<String, Buffer> merged = new LinkedHashMap<>();
+            batch.forEach((id, buffer) -> merged.computeIfAbsent(id, key -> new Buffer()).rows.addAll(buffer.rows));
+            pending.forEach((id, buffer) -> merged.computeIfAbsent(id, key -> new Buffer()).rows.addAll(buffer.rows));
+            pending = merged;
+            pendingCount += batchCount;
+        }
+    }
+
+    /**
+     * 合并本会话的缓冲区和数据库：在锁内复制缓冲区，在锁外查询数据库。
+     * 查询期间本会话的缓冲区被取走写入或放回时，结果可能重复或缺失，重读；
+     * 读取时缓冲区为空则数据库里的就是全部消息，不需要重读
+     *
+     * @param reader 参数为缓冲区中的消息，按写入顺序
+     */
+    private <T> T read(String conversationId, Function<List<Row>, T> reader) {
+        while (true) {
+            Buffer seen;
+            List<Row> local;
+            synchronized (state) {
+                awaitFlushed(conversationId);
+                seen = pending.get(conversationId);
+                local = seen == null ? List.of() : List.copyOf(seen.rows);
+            }
+            T result = reader.apply(local);
+            synchronized (state) {
+                if (seen == null || pending.get(conversationId) == seen) {
+                    return result;
+                }
+            }
+        }
+    }
+
+    /**
+     * 在 state 锁内调用
+     */
+    private void awaitFlushed(String conversationId) {
+        while (flushing.containsKey(conversationId)) {
+            try {
+                state.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待对话记忆写入时被中断", e);
+            }
+        }
+    }
+
+    private void insert(Map<String, Buffer> batch) {
+        List<Row> rows = new ArrayList<>();
+        batch.values().forEach(buffer -> rows.addAll(buffer.rows));
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                for (int from = 0; from < rows.size(); from += ROWS_PER_STATEMENT) {
+                    List<Row> chunk = rows.subList(from, Math.min(rows.size(), from + ROWS_PER_STATEMENT));
+                    try (PreparedStatement statement = connection.prepareStatement(insertSql(chunk.size()))) {
+                        int index = 1;
+                        for (Row row : chunk) {
+                            statement.setString(index++, row.conversationId());
+                            statement.setString(index++, row.message().getMessageType().getValue());
+                            statement.setInt(index++, row.tokens());
+                            statement.setBytes(index++, row.payload());
+                        }
+                        statement.executeUpdate();
+                    }
+                }
+                connection.commit();
+            } catch (Exception e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+        log.debug("对话记忆写入数据库 {} 个会话 {} 条消息", batch.size(), rows.size());
+    }
+
+    private String insertSql(int rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName)
+                .append(" (conversation_id, message_type, tokens, payload) VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+        }
+        return sql.toString();
+    }
+
+    private List<Message> queryTail(String conversationId, int limit) {
+        List<Message> messages = jdbcTemplate.query(
+                "SELECT payload FROM " + tableName + " WHERE conversation_id = ? ORDER BY seq DESC LIMIT ?",
+                (rs, rowNum) -> {
+                    byte[] payload = rs.getBytes(1);
+                    return codec.decode(payload, 0, payload.length);
+                },
+                conversationId, limit);
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    private long queryCount(String conversationId) {
+        Long count = jdbcTemplate.queryForObject("SELECT count(*) FROM " + tableName + " WHERE conversation_id = ?",
+                Long.class, conversationId);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 数据库中最近多少条消息的 token 和不超过预算。
+     * 每条消息至少有固定开销，预算内最多 budget / 开销 条，只需倒序扫描这么多行
+     */
+    private int queryCountWithin(String conversationId, long tokenBudget) {
+        long limit = tokenBudget / MessageTokenCounter.MESSAGE_OVERHEAD_TOKENS + 1;
+        Integer count = jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM (SELECT sum(tokens) OVER (ORDER BY seq DESC) AS running FROM " + tableName
+                        + " WHERE conversation_id = ? ORDER BY seq DESC LIMIT ?) recent WHERE running <= ?",
+                Integer.class, conversationId, limit, tokenBudget);
+        return count == null ? 0 : count;
+    }
+
+    private void initializeSchema() {
+        jdbcTemplate.execute("""
+                CREATE TABLE IF NOT EXISTS %s (
+                    conversation_id VARCHAR(255) NOT NULL,
+                    seq BIGSERIAL NOT NULL,
+                    message_type VARCHAR(16) NOT NULL,
+                    tokens INT NOT NULL,
+                    payload BYTEA NOT NULL,
+                    created_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+                    PRIMARY KEY (conversation_id, seq)
+                )""".formatted(tableName));
+    }
+
+    /**
+     * 一条待写入的消息
+     *
+     * @param conversationId 会话id
+     * @param message        消息
+     * @param payload        编码后的消息
+     * @param tokens         token 数
+     */
+    private record Row(String conversationId, Message message, byte[] payload, int tokens) {
+    }
+
+    /**
+     * 一个会话尚未写入数据库的消息，在 state 锁内访问
+     */
+    private static final class Buffer {
+        private final List<Row> rows = new ArrayList<>();
+    }
+}
@@ -0,0 +1,875 @@
+package com.mashang.bac.web.chatmemory;
+
+import com.mashang.bac.web.chatmemory.codec.BinaryMessageCodec;
+import com.mashang.bac.web.chatmemory.codec.KryoMessageCodec;
+import com.mashang.bac.web.chatmemory.codec.MessageCodec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 内存映射对话记忆-所有会话共用少量大段文件
+ * <p>
+ * 文件布局：
+ * <ul>
+ *     <li>{@code segment-<n>.dat}：固定大小的段文件，顺序追加消息记录，写满后换下一个段。
+ *     每条记录带有同一会话上一条记录的位置，构成从新到旧的记录链</li>
+ *     <li>{@code index.dat}：开放寻址哈希表，会话 ID 的 64 位哈希 -> 最新记录位置 + 有效条数，
+ *     以及上一次更新前的记录位置和条数</li>
+ * </ul>
+ * 文件个数与会话数无关，不会耗尽 inode，也没有目录查找开销。
+ * get(lastN) 从索引拿到链头，沿链回溯 N 条，消息直接从映射缓冲区(页缓存)解码，不经过堆数组拷贝。
+ * <p>
+ * 每个会话只保留最近 retainMessages 条，更早的记录以及 clear 掉的会话都视为作废。
+ * 后台线程定期检查已写满的段，作废比例超过阈值时把其中仍有效的会话整段重写到当前段并删除旧段。
+ * <p>
+ * 记录带 CRC 校验，读到写了一半的记录时链在此截断。索引和段文件的脏页落盘顺序不确定，
+ * 恢复时如果最新一批记录没有完整落盘，退回到索引里保存的上一个链头，不会因为链头损坏丢掉整个会话。
+ */
+@Slf4j
+public final class MappedChatMemory implements SyncableChatMemory, DisposableBean {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String INDEX_FILE = "index.dat";
+
+    private static final int SEGMENT_MAGIC = 0x434D5347;
+    private static final int INDEX_MAGIC = 0x434D4958;
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * 索引版本 2 的槽位增加了上一个链头
+     */
+    private static final int INDEX_VERSION = 2;
+    private static final int INDEX_V1_SLOT_BYTES = 24;
+
+    /**
+     * 段头：magic、version、写入位置、保留
+     */
+    private static final int SEGMENT_HEADER_BYTES = 16;
+    private static final int WRITE_POS_OFFSET = 8;
+
+    /**
+     * 记录头：总长度、CRC、上一条记录位置、会话 ID 长度，之后是会话 ID 与消息内容
+     */
+    private static final int RECORD_HEADER_BYTES = 4 + 4 + 8 + 2;
+    private static final int CRC_OFFSET = 4;
+    private static final int PREV_OFFSET = 8;
+    private static final int ID_LENGTH_OFFSET = 16;
+
+    /**
+     * 索引头：magic、version、槽位数、已用槽位数；每个槽位：哈希、链头、条数、上一个条数、上一个链头
+     */
+    private static final int INDEX_HEADER_BYTES = 16;
+    private static final int INDEX_SIZE_OFFSET = 12;
+    private static final int SLOT_BYTES = 32;
+    private static final int SLOT_HEAD_OFFSET = 8;
+    private static final int SLOT_COUNT_OFFSET = 16;
+    private static final int SLOT_PREV_COUNT_OFFSET = 20;
+    private static final int SLOT_PREV_HEAD_OFFSET = 24;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+    private static final double MAX_INDEX_LOAD = 0.7;
+
+    private static final long NIL = -1L;
+
+    private final Path dir;
+    private final MessageCodec codec;
+    private final int segmentSize;
+    private final int retainMessages;
+    private final double compactionThreshold;
+
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private volatile Segment active;
+    private volatile Index index;
+
+    /**
+     * 读锁：普通读写；写锁：索引扩容、删除段文件
+     */
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    /**
+     * 会话级锁(按哈希分片)，保证同一会话的链头更新有序
+     */
+    private final StripedLocks stripes = new StripedLocks();
+    private final Object appendLock = new Object();
+    private final Object indexLock = new Object();
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * @param dir                 存储目录
+     * @param codec               消息编解码器，为空时使用二进制格式
+     * @param segmentSize         单个段文件大小(字节)
+     * @param retainMessages      每个会话保留的最近消息条数
+     * @param compactionInterval  压缩检查间隔
+     * @param compactionThreshold 段内作废数据占比超过该值时压缩
+     */
+    public MappedChatMemory(String dir, MessageCodec codec, int segmentSize, int retainMessages,
+                            Duration compactionInterval, double compactionThreshold) {
+        this.dir = Path.of(dir);
+        this.codec = codec != null ? codec : new BinaryMessageCodec(new KryoMessageCodec());
+        this.segmentSize = segmentSize;
+        this.retainMessages = retainMessages;
+        this.compactionThreshold = compactionThreshold;
+        try {
+            Files.createDirectories(this.dir);
+            openSegments();
+            this.index = Index.open(this.dir.resolve(INDEX_FILE), INITIAL_INDEX_CAPACITY);
+        } catch (IOException e) {
+            throw new UncheckedIOException("打开对话记忆存储 " + dir + " 失败", e);
+        }
+        log.info("对话记忆存储已打开，{} 个段文件，{} 个会话", segments.size(), index.size);
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-memory-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = compactionInterval.toMillis();
+        compactor.scheduleWithFixedDelay(this::compactQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void add(String conversationId, Message message) {
+        SyncableChatMemory.super.add(conversationId, message);
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        List<byte[]> payloads = messages.stream()
+                .filter(Objects::nonNull)
+                .map(codec::encode)
+                .toList();
+        if (payloads.isEmpty()) {
+            return;
+        }
+        byte[] idBytes = conversationId.getBytes(StandardCharsets.UTF_8);
+        ensureIndexCapacity();
+        storeLock.readLock().lock();
+        try {
+            synchronized (stripeFor(conversationId)) {
+                int slot = index.find(idBytes, true, this);
+                long head = index.head(slot);
+                int count = index.count(slot);
+                for (byte[] payload : payloads) {
+                    head = appendRecord(idBytes, payload, head);
+                    count = Math.min(count + 1, retainMessages);
+                }
+                index.update(slot, head, count);
+            }
+        } catch (Exception e) {
+            log.error("会话 {} 记忆写入失败", conversationId, e);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> get(String conversationId, int lastN) {
+        if (lastN <= 0) {
+            return List.of();
+        }
+        byte[] idBytes = conversationId.getBytes(StandardCharsets.UTF_8);
+        storeLock.readLock().lock();
+        try {
+            long head;
+            int count;
+            synchronized (stripeFor(conversationId)) {
+                int slot = index.find(idBytes, false, this);
+                if (slot < 0) {
+                    return List.of();
+                }
+                head = index.head(slot);
+                count = index.count(slot);
+            }
+            List<ByteBuffer> chain = chain(head, Math.min(lastN, count));
+            List<Message> messages = new ArrayList<>(chain.size());
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                Message message = codec.decode(payloadOf(chain.get(i)));
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+            return messages;
+        } catch (Exception e) {
+            log.error("读取会话 {} 记忆失败", conversationId, e);
+            return List.of();
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        byte[] idBytes = conversationId.getBytes(StandardCharsets.UTF_8);
+        storeLock.readLock().lock();
+        try {
+            synchronized (stripeFor(conversationId)) {
+                int slot = index.find(idBytes, false, this);
+                if (slot >= 0) {
+                    index.update(slot, NIL, 0);
+                }
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 映射文件整体刷盘，先段文件后索引
+     */
+    @Override
+    public void sync(Collection<String> conversationIds) {
+        storeLock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+            index.buffer.force();
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 校验会话的记录链，从第一条损坏的记录处截断；最新一批记录没有完整落盘时，
+     * 上一个链头保留的历史更多就退回到上一个链头
+     */
+    @Override
+    public void recover(Collection<String> conversationIds) {
+        storeLock.readLock().lock();
+        try {
+            for (String conversationId : conversationIds) {
+                synchronized (stripeFor(conversationId)) {
+                    int slot = index.find(conversationId.getBytes(StandardCharsets.UTF_8), false, this);
+                    if (slot < 0) {
+                        continue;
+                    }
+                    long head = index.head(slot);
+                    int count = index.count(slot);
+                    int valid = chain(head, count).size();
+                    if (valid == count) {
+                        continue;
+                    }
+                    long previousHead = index.previousHead(slot);
+                    int previousValid = previousHead == NIL
+                            ? 0 : chain(previousHead, index.previousCount(slot)).size();
+                    if (previousValid >= valid) {
+                        head = previousHead;
+                        valid = previousValid;
+                    }
+                    log.warn("会话 {} 记忆存在未完整写入的数据，已恢复到 {} 条消息", conversationId, valid);
+                    index.update(slot, valid == 0 ? NIL : head, valid);
+                }
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        storeLock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                segment.close();
+            }
+            index.buffer.force();
+            index.close();
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 当前段文件个数
+     */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * 压缩作废比例超过阈值的已写满段，返回删除的段数
+     */
+    public int compact() {
+        int removed = 0;
+        for (Segment segment : List.copyOf(segments.values())) {
+            if (segment == active) {
+                continue;
+            }
+            Set<String> conversationIds = new LinkedHashSet<>();
+            long total = scan(segment, conversationIds);
+            long live = 0;
+            for (String conversationId : conversationIds) {
+                live += liveBytes(conversationId, segment);
+            }
+            if (total > 0 && total - live < total * compactionThreshold) {
+                continue;
+            }
+            for (String conversationId : conversationIds) {
+                relocate(conversationId, segment);
+            }
+            retire(segment);
+            removed++;
+            log.info("对话记忆段 {} 已压缩，迁移有效数据 {} 字节，回收 {} 字节", segment.id, live, total - live);
+        }
+        return removed;
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            log.error("对话记忆压缩失败", e);
+        }
+    }
+
+    /**
+     * 在当前段追加一条记录，返回记录位置
+     */
+    private long appendRecord(byte[] idBytes, byte[] payload, long prev) throws IOException {
+        int length = RECORD_HEADER_BYTES + idBytes.length + payload.length;
+        if (length > segmentSize - SEGMENT_HEADER_BYTES) {
+            throw new IllegalArgumentException("消息过大，超出段文件容量: " + length);
+        }
+        synchronized (appendLock) {
+            Segment segment = active;
+            if (segment == null || segment.writePos + length > segment.capacity) {
+                segment = rollSegment();
+            }
+            int offset = segment.writePos;
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.putInt(offset, length);
+            buffer.putLong(offset + PREV_OFFSET, prev);
+            buffer.putShort(offset + ID_LENGTH_OFFSET, (short) idBytes.length);
+            buffer.put(offset + RECORD_HEADER_BYTES, idBytes);
+            buffer.put(offset + RECORD_HEADER_BYTES + idBytes.length, payload);
+            buffer.putInt(offset + CRC_OFFSET, crcOf(buffer.slice(offset, length)));
+            segment.writePos = offset + length;
+            buffer.putInt(WRITE_POS_OFFSET, segment.writePos);
+            return pointer(segment.id, offset);
+        }
+    }
+
+    /**
+     * 从链头回溯最多 limit 条有效记录(新 -> 旧)
+     */
+    private List<ByteBuffer> chain(long head, int limit) {
+        List<ByteBuffer> records = new ArrayList<>(Math.min(limit, retainMessages));
+        long pointer = head;
+        while (pointer != NIL && records.size() < limit) {
+            ByteBuffer record = record(pointer);
+            if (record == null) {
+                break;
+            }
+            records.add(record);
+            pointer = record.getLong(PREV_OFFSET);
+        }
+        return records;
+    }
+
+    /**
+     * 读取并校验一条记录，返回映射缓冲区上的视图；位置非法或校验失败返回 null
+     */
+    private ByteBuffer record(long pointer) {
+        Segment segment = segments.get(segmentOf(pointer));
+        int offset = offsetOf(pointer);
+        if (segment == null || offset < SEGMENT_HEADER_BYTES || offset + RECORD_HEADER_BYTES > segment.writePos) {
+            return null;
+        }
+        int length = segment.buffer.getInt(offset);
+        if (length < RECORD_HEADER_BYTES || offset + length > segment.writePos) {
+            return null;
+        }
+        ByteBuffer record = segment.buffer.slice(offset, length);
+        return crcOf(record) == record.getInt(CRC_OFFSET) ? record : null;
+    }
+
+    /**
+     * 记录链头是否属于该会话(排除 64 位哈希冲突)
+     */
+    private boolean ownedBy(long head, byte[] idBytes) {
+        ByteBuffer record = record(head);
+        if (record == null) {
+            return false;
+        }
+        int idLength = Short.toUnsignedInt(record.getShort(ID_LENGTH_OFFSET));
+        return idLength == idBytes.length
+                && record.slice(RECORD_HEADER_BYTES, idLength).equals(ByteBuffer.wrap(idBytes));
+    }
+
+    private static ByteBuffer payloadOf(ByteBuffer record) {
+        int idLength = Short.toUnsignedInt(record.getShort(ID_LENGTH_OFFSET));
+        int start = RECORD_HEADER_BYTES + idLength;
+        return record.slice(start, record.limit() - start);
+    }
+
+    /**
+     * 遍历段内所有记录，收集会话 ID，返回记录总字节数
+     */
+    private long scan(Segment segment, Set<String> conversationIds) {
+        long total = 0;
+        int offset = SEGMENT_HEADER_BYTES;
+        int end = segment.writePos;
+        while (offset + RECORD_HEADER_BYTES <= end) {
+            int length = segment.buffer.getInt(offset);
+            if (length < RECORD_HEADER_BYTES || offset + length > end) {
+                break;
+            }
+            int idLength = Short.toUnsignedInt(segment.buffer.getShort(offset + ID_LENGTH_OFFSET));
+            byte[] idBytes = new byte[idLength];
+            segment.buffer.get(offset + RECORD_HEADER_BYTES, idBytes);
+            conversationIds.add(new String(idBytes, StandardCharsets.UTF_8));
+            total += length;
+            offset += length;
+        }
+        return total;
+    }
+
+    /**
+     * 会话有效记录中落在指定段内的字节数
+     */
+    private long liveBytes(String conversationId, Segment segment) {
+        storeLock.readLock().lock();
+        try {
+            long head;
+            int count;
+            synchronized (stripeFor(conversationId)) {
+                int slot = index.find(conversationId.getBytes(StandardCharsets.UTF_8), false, this);
+                if (slot < 0) {
+                    return 0;
+                }
+                head = index.head(slot);
+                count = index.count(slot);
+            }
+            long live = 0;
+            long pointer = head;
+            for (ByteBuffer record : chain(head, count)) {
+                if (segmentOf(pointer) == segment.id) {
+                    live += record.limit();
+                }
+                pointer = record.getLong(PREV_OFFSET);
+            }
+            return live;
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 有效记录涉及待回收段的会话，把整条有效链按旧 -> 新重写到当前段
+     */
+    private void relocate(String conversationId, Segment segment) {
+        byte[] idBytes = conversationId.getBytes(StandardCharsets.UTF_8);
+        storeLock.readLock().lock();
+        try {
+            synchronized (stripeFor(conversationId)) {
+                int slot = index.find(idBytes, false, this);
+                if (slot < 0) {
+                    return;
+                }
+                long pointer = index.head(slot);
+                List<ByteBuffer> chain = chain(pointer, index.count(slot));
+                boolean touches = false;
+                for (ByteBuffer record : chain) {
+                    touches |= segmentOf(pointer) == segment.id;
+                    pointer = record.getLong(PREV_OFFSET);
+                }
+                if (!touches) {
+                    return;
+                }
+                long head = NIL;
+                for (int i = chain.size() - 1; i >= 0; i--) {
+                    ByteBuffer payload = payloadOf(chain.get(i));
+                    byte[] bytes = new byte[payload.remaining()];
+                    payload.get(bytes);
+                    head = appendRecord(idBytes, bytes, head);
+                }
+                index.update(slot, head, chain.size());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 删除已无有效数据的段，持写锁确保没有读线程还在访问
+     */
+    private void retire(Segment segment) {
+        storeLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            // Windows 下映射未释放前无法删除，下次启动时作为空段清理
+            log.warn("删除对话记忆段 {} 失败", segment.path, e);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    private Segment rollSegment() throws IOException {
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment segment = Segment.open(dir.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX), id, segmentSize);
+        segments.put(id, segment);
+        active = segment;
+        return segment;
+    }
+
+    private void openSegments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : files.toList()) {
+                String name = path.getFileName().toString();
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, Segment.open(path, id, segmentSize));
+            }
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+    }
+
+    /**
+     * 索引扩容需要独占，在拿读锁之前检查
+     */
+    private void ensureIndexCapacity() {
+        if (!index.needsResize()) {
+            return;
+        }
+        storeLock.writeLock().lock();
+        try {
+            if (index.needsResize()) {
+                index = index.resize(dir.resolve(INDEX_FILE));
+                log.info("对话记忆索引扩容至 {} 个槽位", index.capacity);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("对话记忆索引扩容失败", e);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    private Object stripeFor(String conversationId) {
+        return stripes.get(conversationId);
+    }
+
+    private static int crcOf(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.slice(PREV_OFFSET, record.limit() - PREV_OFFSET));
+        return (int) crc.getValue();
+    }
+
+    private static long pointer(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentOf(long pointer) {
+        return (int) (pointer >>> 32);
+    }
+
+    private static int offsetOf(long pointer) {
+        return (int) pointer;
+    }
+
+    /**
+     * 段文件
+     */
+    private static final class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        // 追加在 appendLock 内进行，读线程只读
+        private volatile int writePos;
+
+        private Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer, int writePos) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+            this.writePos = writePos;
+        }
+
+        static Segment open(Path path, int id, int segmentSize) throws IOException {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean fresh = channel.size() < SEGMENT_HEADER_BYTES;
+            long size = fresh ? segmentSize : channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (fresh) {
+                buffer.putInt(0, SEGMENT_MAGIC);
+                buffer.putInt(4, FORMAT_VERSION);
+                buffer.putInt(WRITE_POS_OFFSET, SEGMENT_HEADER_BYTES);
+            } else if (buffer.getInt(0) != SEGMENT_MAGIC) {
+                channel.close();
+                throw new IOException("不是对话记忆段文件: " + path);
+            }
+            int writePos = buffer.getInt(WRITE_POS_OFFSET);
+            if (writePos < SEGMENT_HEADER_BYTES || writePos > size) {
+                writePos = SEGMENT_HEADER_BYTES;
+            }
+            return new Segment(id, path, channel, buffer, writePos);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("关闭对话记忆段 {} 失败", path, e);
+            }
+        }
+    }
+
+    /**
+     * 磁盘哈希索引，线性探测，槽位哈希为 0 表示空
+     */
+    private static final class Index {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        // 插入在 indexLock 内进行
+        private volatile int size;
+
+        private Index(FileChannel channel, MappedByteBuffer buffer, int capacity, int size) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.size = size;
+        }
+
+        static Index open(Path path, int initialCapacity) throws IOException {
+            if (Files.exists(path) && Files.size(path) >= INDEX_HEADER_BYTES) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                if (buffer.getInt(0) != INDEX_MAGIC) {
+                    channel.close();
+                    throw new IOException("不是对话记忆索引文件: " + path);
+                }
+                Index index = new Index(channel, buffer, buffer.getInt(8), buffer.getInt(INDEX_SIZE_OFFSET));
+                return buffer.getInt(4) == INDEX_VERSION ? index : index.upgrade(path);
+            }
+            return create(path, initialCapacity);
+        }
+
+        static Index create(Path path, int capacity) throws IOException {
+            Files.deleteIfExists(path);
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    INDEX_HEADER_BYTES + (long) capacity * SLOT_BYTES);
+            buffer.putInt(0, INDEX_MAGIC);
+            buffer.putInt(4, INDEX_VERSION);
+            buffer.putInt(8, capacity);
+            buffer.putInt(INDEX_SIZE_OFFSET, 0);
+            return new Index(channel, buffer, capacity, 0);
+        }
+
+        /**
+         * 查找会话槽位
+         *
+         * @param create 不存在时是否插入
+         * @return 槽位下标，不存在且不插入时返回 -1
+         */
+        int find(byte[] idBytes, boolean create, MappedChatMemory store) {
+            long hash = hash(idBytes);
+            int slot = probe(hash, idBytes, store);
+            if (slot >= 0 || !create) {
+                return slot;
+            }
+            synchronized (store.indexLock) {
+                // 其他会话可能同时插入，重新探测
+                slot = probe(hash, idBytes, store);
+                if (slot >= 0) {
+                    return slot;
+                }
+                if (size >= capacity - 1) {
+                    throw new IllegalStateException("对话记忆索引已满");
+                }
+                int i = start(hash);
+                while (slotHash(i) != 0) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                // 先写内容再写哈希，无锁读到哈希时内容已就绪
+                write(i, NIL, 0, NIL, 0);
+                buffer.putLong(offset(i), hash);
+                buffer.putInt(INDEX_SIZE_OFFSET, ++size);
+                return i;
+            }
+        }
+
+        private int probe(long hash, byte[] idBytes, MappedChatMemory store) {
+            for (int i = start(hash), n = 0; n < capacity; i = (i + 1) & (capacity - 1), n++) {
+                long slotHash = slotHash(i);
+                if (slotHash == 0) {
+                    return -1;
+                }
+                if (slotHash == hash) {
+                    long head = head(i);
+                    if (head == NIL || store.ownedBy(head, idBytes)) {
+                        return i;
+                    }
+                    // 链头没有完整落盘时用上一个链头确认归属，恢复时才能找到该会话
+                    long previousHead = previousHead(i);
+                    if (store.record(head) == null && previousHead != NIL && store.ownedBy(previousHead, idBytes)) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        long head(int slot) {
+            return buffer.getLong(offset(slot) + SLOT_HEAD_OFFSET);
+        }
+
+        int count(int slot) {
+            return buffer.getInt(offset(slot) + SLOT_COUNT_OFFSET);
+        }
+
+        long previousHead(int slot) {
+            return buffer.getLong(offset(slot) + SLOT_PREV_HEAD_OFFSET);
+        }
+
+        int previousCount(int slot) {
+            return buffer.getInt(offset(slot) + SLOT_PREV_COUNT_OFFSET);
+        }
+
+        /**
+         * 更新链头，原链头和条数记为上一个，调用方持有会话锁
+         */
+        void update(int slot, long head, int count) {
+            write(slot, head, count, head(slot), count(slot));
+        }
+
+        private void write(int slot, long head, int count, long previousHead, int previousCount) {
+            int offset = offset(slot);
+            buffer.putLong(offset + SLOT_PREV_HEAD_OFFSET, previousHead);
+            buffer.putInt(offset + SLOT_PREV_COUNT_OFFSET, previousCount);
+            buffer.putInt(offset + SLOT_COUNT_OFFSET, count);
+            buffer.putLong(offset + SLOT_HEAD_OFFSET, head);
+        }
+
+        boolean needsResize() {
+            return size + 1 > capacity * MAX_INDEX_LOAD;
+        }
+
+        /**
+         * 容量翻倍重建，丢弃已清空的会话；先写临时文件再原子替换
+         */
+        Index resize(Path path) throws IOException {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Index resized = create(tmp, capacity * 2);
+            int moved = 0;
+            for (int i = 0; i < capacity; i++) {
+                long hash = slotHash(i);
+                if (hash == 0 || head(i) == NIL) {
+                    continue;
+                }
+                int j = resized.start(hash);
+                while (resized.slotHash(j) != 0) {
+                    j = (j + 1) & (resized.capacity - 1);
+                }
+                resized.write(j, head(i), count(i), previousHead(i), previousCount(i));
+                resized.buffer.putLong(Index.offset(j), hash);
+                moved++;
+            }
+            resized.size = moved;
+            resized.buffer.putInt(INDEX_SIZE_OFFSET, moved);
+            resized.buffer.force();
+            close();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return resized;
+        }
+
+        /**
+         * 版本 1 的索引槽位没有上一个链头，按原容量转换成当前格式
+         */
+        private Index upgrade(Path path) throws IOException {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Index upgraded = create(tmp, capacity);
+            for (int i = 0; i < capacity; i++) {
+                int v1Offset = INDEX_HEADER_BYTES + i * INDEX_V1_SLOT_BYTES;
+                long hash = buffer.getLong(v1Offset);
+                if (hash == 0) {
+                    continue;
+                }
+                upgraded.write(i, buffer.getLong(v1Offset + SLOT_HEAD_OFFSET),
+                        buffer.getInt(v1Offset + SLOT_COUNT_OFFSET), NIL, 0);
+                upgraded.buffer.putLong(Index.offset(i), hash);
+            }
+            upgraded.size = size;
+            upgraded.buffer.putInt(INDEX_SIZE_OFFSET, size);
+            upgraded.buffer.force();
+            close();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("对话记忆索引已升级到版本 {}", INDEX_VERSION);
+            return upgraded;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("关闭对话记忆索引失败", e);
+            }
+        }
+
+        private long slotHash(int slot) {
+            return buffer.getLong(offset(slot));
+        }
+
+        private int start(long hash) {
+            return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+        }
+
+        private static int offset(int slot) {
+            return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+        }
+
+        /**
+         * FNV-1a 64 位哈希，0 保留表示空槽位
+         */
+        private static long hash(byte[] bytes) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : bytes) {
+                hash ^= b & 0xFF;
+                hash *= 0x100000001b3L;
+            }
+            return hash == 0 ? 1 : hash;
+        }
+    }
+}
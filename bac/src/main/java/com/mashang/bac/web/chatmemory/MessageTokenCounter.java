@@ -0,0 +1,29 @@
+package com.mashang.bac.web.chatmemory;
+
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+/**
+ * 消息 token 计数
+ * <p>
+ * 记忆存储在写入时调用一次并保存结果，按预算选取历史时不需要再重新分词。
+ * 使用 cl100k 编码估算，与通义千问的实际分词有出入，但用于预算控制足够。
+ */
+public final class MessageTokenCounter {
+
+    /**
+     * 每条消息的角色标记等固定开销
+     */
+    public static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    private static final TokenCountEstimator ESTIMATOR = new JTokkitTokenCountEstimator();
+
+    private MessageTokenCounter() {
+    }
+
+    public static int count(Message message) {
+        String text = message.getText();
+        return MESSAGE_OVERHEAD_TOKENS + (text == null || text.isEmpty() ? 0 : ESTIMATOR.estimate(text));
+    }
+}
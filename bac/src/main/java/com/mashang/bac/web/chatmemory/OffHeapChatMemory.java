@@ -0,0 +1,239 @@
+package com.mashang.bac.web.chatmemory;
+
+import com.mashang.bac.web.chatmemory.codec.BinaryMessageCodec;
+import com.mashang.bac.web.chatmemory.codec.MessageCodec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 堆外压缩对话记忆
+ * <p>
+ * 作为 {@link InMemoryChatMemory} 的溢出存储使用：空闲会话被降级到这里，
+ * 整个会话编码后用 Deflate 压缩，放在直接内存(DirectByteBuffer)里，堆上只剩一个很小的索引对象，
+ * 不再给 GC 带来负担；再次访问时解压加载回内存。
+ * <p>
+ * 格式：varint(条数) + 每条 varint(长度) + {@link BinaryMessageCodec} 编码的消息，整体压缩。
+ * <p>
+ * 写入后会超出堆外内存上限时拒绝写入并抛出 {@link IllegalStateException}，已保存的会话不会被丢弃；
+ * 调用方(InMemoryChatMemory)据此把会话继续留在堆上。拒绝次数见 {@link #getRejectedWrites()}。
+ */
+@Slf4j
+public class OffHeapChatMemory implements ChatMemory {
+
+    public static final long DEFAULT_MAX_OFF_HEAP_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_MAX_MESSAGES = 200;
+
+    private final ConcurrentMap<String, Block> blocks = new ConcurrentHashMap<>();
+    private final MessageCodec codec;
+    private final long maxOffHeapBytes;
+    private final int maxMessages;
+
+    private final AtomicLong offHeapBytes = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final LongAdder rejectedWrites = new LongAdder();
+
+    public OffHeapChatMemory() {
+        this(null, DEFAULT_MAX_OFF_HEAP_BYTES, DEFAULT_MAX_MESSAGES);
+    }
+
+    /**
+     * @param codec           消息编解码器，为空则使用 {@link BinaryMessageCodec}
+     * @param maxOffHeapBytes 堆外内存上限(压缩后)
+     * @param maxMessages     每个会话保留的最近消息条数
+     */
+    public OffHeapChatMemory(MessageCodec codec, long maxOffHeapBytes, int maxMessages) {
+        this.codec = codec != null ? codec : new BinaryMessageCodec();
+        this.maxOffHeapBytes = maxOffHeapBytes;
+        this.maxMessages = maxMessages;
+    }
+
+    @Override
+    public void add(String conversationId, Message message) {
+        add(conversationId, List.of(message));
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        List<Message> filtered = messages.stream().filter(Objects::nonNull).toList();
+        if (filtered.isEmpty()) {
+            return;
+        }
+        boolean[] rejected = new boolean[1];
+        blocks.compute(conversationId, (id, block) -> {
+            List<Message> all = block == null ? new ArrayList<>() : inflate(block);
+            all.addAll(filtered);
+            if (all.size() > maxMessages) {
+                all = all.subList(all.size() - maxMessages, all.size());
+            }
+            Block updated = deflate(all);
+            if (!reserve(capacityOf(updated) - capacityOf(block))) {
+                rejected[0] = true;
+                return block;
+            }
+            rawBytes.addAndGet(rawLengthOf(updated) - rawLengthOf(block));
+            return updated;
+        });
+        if (rejected[0]) {
+            rejectedWrites.increment();
+            log.warn("堆外对话记忆已达上限 {} 字节，拒绝写入会话 {}", maxOffHeapBytes, conversationId);
+            throw new IllegalStateException("堆外对话记忆已满");
+        }
+    }
+
+    @Override
+    public List<Message> get(String conversationId, int lastN) {
+        Block block = blocks.get(conversationId);
+        if (block == null || lastN <= 0) {
+            return List.of();
+        }
+        List<Message> all = inflate(block);
+        return all.size() <= lastN ? all : new ArrayList<>(all.subList(all.size() - lastN, all.size()));
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        blocks.computeIfPresent(conversationId, (id, block) -> {
+            offHeapBytes.addAndGet(-capacityOf(block));
+            rawBytes.addAndGet(-rawLengthOf(block));
+            return null;
+        });
+    }
+
+    /**
+     * 堆外保存的会话数
+     */
+    public int getStoredConversations() {
+        return blocks.size();
+    }
+
+    /**
+     * 占用的堆外内存字节数(压缩后)
+     */
+    public long getOffHeapBytes() {
+        return offHeapBytes.get();
+    }
+
+    /**
+     * 压缩前的字节数，与 {@link #getOffHeapBytes()} 之比即压缩率
+     */
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    /**
+     * 因超出堆外内存上限被拒绝的写入次数
+     */
+    public long getRejectedWrites() {
+        return rejectedWrites.sum();
+    }
+
+    /**
+     * 占用堆外内存，增加后超出上限时不占用并返回 false；减少总是成功
+     */
+    private boolean reserve(long delta) {
+        while (true) {
+            long current = offHeapBytes.get();
+            if (delta > 0 && current + delta > maxOffHeapBytes) {
+                return false;
+            }
+            if (offHeapBytes.compareAndSet(current, current + delta)) {
+                return true;
+            }
+        }
+    }
+
+    private static long capacityOf(Block block) {
+        return block == null ? 0 : block.data.capacity();
+    }
+
+    private static long rawLengthOf(Block block) {
+        return block == null ? 0 : block.rawLength;
+    }
+
+    private Block deflate(List<Message> messages) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(messages.size() * 128);
+        byte[] varInt = new byte[5];
+        raw.write(varInt, 0, BinaryMessageCodec.putVarInt(varInt, 0, messages.size()));
+        for (Message message : messages) {
+            byte[] bytes = codec.encode(message);
+            raw.write(varInt, 0, BinaryMessageCodec.putVarInt(varInt, 0, bytes.length));
+            raw.write(bytes, 0, bytes.length);
+        }
+        byte[] input = raw.toByteArray();
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(input.length / 2 + 16);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                compressed.write(chunk, 0, n);
+            }
+            byte[] output = compressed.toByteArray();
+            ByteBuffer data = ByteBuffer.allocateDirect(output.length).put(output).flip();
+            return new Block(data, input.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private List<Message> inflate(Block block) {
+        byte[] raw = new byte[block.rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            // duplicate 后读取，多个线程可以同时解压同一个会话
+            inflater.setInput(block.data.duplicate());
+            int read = 0;
+            while (read < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, read, raw.length - read);
+                // 数据被截断或需要字典时 inflate 一直返回 0，不能再循环
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("解压 " + read + "/" + raw.length + " 字节后数据不完整");
+                }
+                read += n;
+            }
+            if (read != raw.length) {
+                throw new DataFormatException("解压得到 " + read + " 字节，应为 " + raw.length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("堆外对话记忆数据损坏", e);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer view = ByteBuffer.wrap(raw);
+        int count = BinaryMessageCodec.readVarInt(view);
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = BinaryMessageCodec.readVarInt(view);
+            messages.add(codec.decode(raw, view.position(), length));
+            view.position(view.position() + length);
+        }
+        return messages;
+    }
+
+    /**
+     * 一个会话的压缩数据，创建后不再修改
+     *
+     * @param data      堆外压缩数据
+     * @param rawLength 压缩前长度
+     */
+    private record Block(ByteBuffer data, int rawLength) {
+    }
+}
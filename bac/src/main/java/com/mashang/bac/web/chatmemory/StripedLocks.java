@@ -0,0 +1,44 @@
+package com.mashang.bac.web.chatmemory;
+
+/**
+ * 按会话 id 哈希分段的锁表
+ * <p>
+ * 锁的数量固定，不随会话数增长，也不需要在会话清理时回收(回收按会话创建的锁会和正在持有它的线程产生竞争)；
+ * 不相关的会话落在同一分段的概率为 1/分段数，基本互不阻塞。返回的是对象监视器，配合 synchronized 使用，可重入。
+ */
+public final class StripedLocks {
+
+    public static final int DEFAULT_STRIPES = 256;
+
+    private final Object[] locks;
+    private final int mask;
+
+    public StripedLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes 分段数，向上取整为 2 的幂；为 1 时退化为全局锁
+     */
+    public StripedLocks(int stripes) {
+        int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.locks = new Object[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * 会话对应的锁
+     */
+    public Object get(String conversationId) {
+        int hash = conversationId.hashCode();
+        // 高位参与运算，避免只有高位不同的 id 落到同一分段
+        return locks[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    public int size() {
+        return locks.length;
+    }
+}
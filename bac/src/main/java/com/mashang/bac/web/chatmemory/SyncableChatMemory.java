@@ -0,0 +1,26 @@
+package com.mashang.bac.web.chatmemory;
+
+import org.springframework.ai.chat.memory.ChatMemory;
+
+import java.util.Collection;
+
+/**
+ * 支持显式刷盘与崩溃恢复的对话记忆存储
+ */
+public interface SyncableChatMemory extends ChatMemory {
+
+    /**
+     * 把指定会话已写入的数据强制刷到磁盘(fsync)
+     *
+     * @param conversationIds 会话id
+     */
+    void sync(Collection<String> conversationIds);
+
+    /**
+     * 崩溃恢复：修复指定会话在崩溃时写了一半的数据
+     *
+     * @param conversationIds 会话id
+     */
+    default void recover(Collection<String> conversationIds) {
+    }
+}
@@ -0,0 +1,31 @@
+package com.mashang.bac.web.chatmemory;
+
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+
+import java.util.List;
+
+/**
+ * 写入时保存每条消息 token 数的对话记忆
+ * <p>
+ * 实现类维护 token 前缀和，按预算选取历史只需二分查找，O(log n)，不用重新分词
+ */
+public interface TokenBudgetedChatMemory extends ChatMemory {
+
+    /**
+     * 在预算内最多能放下最近多少条消息
+     *
+     * @param conversationId 会话id
+     * @param tokenBudget    token 预算
+     * @return 满足"最近 n 条的 token 总和不超过预算"的最大 n
+     */
+    int countWithinTokenBudget(String conversationId, int tokenBudget);
+
+    /**
+     * 预算内最长的消息后缀
+     */
+    default List<Message> getWithinTokenBudget(String conversationId, int tokenBudget) {
+        int count = countWithinTokenBudget(conversationId, tokenBudget);
+        return count == 0 ? List.of() : get(conversationId, count);
+    }
+}
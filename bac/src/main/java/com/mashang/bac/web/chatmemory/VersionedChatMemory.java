@@ -0,0 +1,65 @@
+package com.mashang.bac.web.chatmemory;
+
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 带版本号的对话记忆，用于乐观并发控制
+ * <p>
+ * 同一会话的多个请求同时进行时(重复点击、重试、多个标签页)，每个请求在读取历史时记下版本号，
+ * 拿到回答后把"用户消息 + 回答"作为一轮整体追加。追加时版本号已经变化说明期间有别的请求写入，
+ * 按 {@link #merge} 合并：不同的轮次各自保持连续(不会交错成 用户A、用户B、回答A、回答B)，
+ * 与期间写入的某一轮用户消息完全相同的轮次视为重复提交，直接丢弃。
+ */
+public interface VersionedChatMemory extends ChatMemory {
+
+    /**
+     * 会话的版本号，即累计写入的消息条数，每次写入递增，清空后归零
+     */
+    long getVersion(String conversationId);
+
+    /**
+     * 追加一轮对话，版本号与预期不一致时合并后追加，检查与写入在同一把锁内完成
+     *
+     * @param conversationId  会话id
+     * @param expectedVersion 读取历史时的版本号
+     * @param turn            本轮的消息(用户消息在前)
+     * @return 追加结果
+     */
+    AppendResult appendTurn(String conversationId, long expectedVersion, List<Message> turn);
+
+    /**
+     * 合并策略：本轮的用户消息已经出现在期间写入的消息中时视为重复提交，丢弃整轮；否则整轮追加在后面
+     *
+     * @param concurrent 读取历史之后别的请求写入的消息
+     * @param turn       本轮的消息
+     * @return 需要追加的消息
+     */
+    static List<Message> merge(List<Message> concurrent, List<Message> turn) {
+        Message user = turn.stream()
+                .filter(message -> message.getMessageType() == MessageType.USER)
+                .findFirst()
+                .orElse(null);
+        if (user == null) {
+            return turn;
+        }
+        boolean duplicate = concurrent.stream()
+                .anyMatch(message -> message.getMessageType() == MessageType.USER
+                        && Objects.equals(message.getText(), user.getText()));
+        return duplicate ? List.of() : turn;
+    }
+
+    /**
+     * 追加结果
+     *
+     * @param version  追加后的版本号
+     * @param conflict 是否与其他请求的写入冲突
+     * @param appended 实际追加的消息条数，重复提交时为 0
+     */
+    record AppendResult(long version, boolean conflict, int appended) {
+    }
+}
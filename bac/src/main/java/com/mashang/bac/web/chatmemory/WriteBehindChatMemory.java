@@ -0,0 +1,358 @@
+package com.mashang.bac.web.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步写回的对话记忆缓存
+ * <p>
+ * 装饰底层存储(例如 {@link FileBasedChatMemory})，请求线程只读写内存：
+ * <ul>
+ *     <li>热会话的最近若干条消息缓存在按数量和空闲时间(TTL)限制的 LRU 中</li>
+ *     <li>新消息先记在缓存里并标记为脏，由后台线程按批次写入底层存储</li>
+ *     <li>底层存储支持 {@link SyncableChatMemory} 时，按固定间隔对已写入的会话统一 fsync</li>
+ * </ul>
+ * 每批写入前先写恢复标记(记录尚未 fsync 的会话)，fsync 完成后删除。
+ * 启动时如果发现标记，说明上次异常退出，会让底层存储修复这些会话写了一半的数据，
+ * 因此崩溃最多丢失一个刷盘窗口内的消息。关闭时会把所有脏数据写完并 fsync。
+ * <p>
+ * 不注册为 Bean：构造时就会启动刷盘线程并执行恢复，需要的调用方显式包装自己的底层存储，
+ * 并在关闭时调用 {@link #destroy()}。
+ */
+@Slf4j
+public class WriteBehindChatMemory implements ChatMemory, DisposableBean {
+
+    private final ChatMemory delegate;
+    private final Path recoveryMarker;
+    private final int maxConversations;
+    private final long ttlMillis;
+    private final int cacheWindow;
+    private final int batchSize;
+    private final long syncIntervalMillis;
+
+    // accessOrder=true 的 LinkedHashMap 即 LRU，所有访问都在 cache 锁内完成且很短
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    // 已写入底层存储但尚未 fsync 的会话，仅由刷盘线程访问
+    private final Set<String> unsynced = new LinkedHashSet<>();
+    private final ScheduledExecutorService flusher;
+    private final Object flushLock = new Object();
+    private long lastSyncMillis = System.currentTimeMillis();
+
+    /**
+     * @param delegate         底层存储
+     * @param recoveryMarker   恢复标记文件
+     * @param maxConversations 最多缓存的会话数
+     * @param ttl              会话空闲多久后移出缓存
+     * @param cacheWindow      每个会话缓存的最近消息条数
+     * @param flushInterval    后台写回间隔
+     * @param syncInterval     统一 fsync 间隔
+     * @param batchSize        每批写回的会话数
+     */
+    public WriteBehindChatMemory(ChatMemory delegate, Path recoveryMarker, int maxConversations, Duration ttl,
+                                 int cacheWindow, Duration flushInterval, Duration syncInterval, int batchSize) {
+        this.delegate = delegate;
+        this.recoveryMarker = recoveryMarker;
+        this.maxConversations = maxConversations;
+        this.ttlMillis = ttl.toMillis();
+        this.cacheWindow = cacheWindow;
+        this.batchSize = batchSize;
+        this.syncIntervalMillis = syncInterval.toMillis();
+        recoverIfNeeded();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-memory-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = flushInterval.toMillis();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        List<Message> filtered = messages.stream().filter(Objects::nonNull).toList();
+        if (filtered.isEmpty()) {
+            return;
+        }
+        Entry entry = entry(conversationId);
+        synchronized (entry) {
+            if (entry.evicted) {
+                // 刚好被移出缓存，重新取一次
+                add(conversationId, filtered);
+                return;
+            }
+            entry.pending.addAll(filtered);
+            if (entry.loaded) {
+                for (Message message : filtered) {
+                    entry.recent.addLast(message);
+                }
+                trim(entry);
+            }
+            entry.touch();
+        }
+        dirty.add(conversationId);
+    }
+
+    @Override
+    public List<Message> get(String conversationId, int lastN) {
+        if (lastN <= 0) {
+            return List.of();
+        }
+        Entry entry = entry(conversationId);
+        synchronized (entry) {
+            if (entry.evicted) {
+                return get(conversationId, lastN);
+            }
+            entry.touch();
+            if (!entry.loaded) {
+                // 底层存储 + 尚未写回的消息 = 完整历史
+                List<Message> history = delegate.get(conversationId, cacheWindow);
+                entry.complete = history.size() < cacheWindow;
+                entry.recent.clear();
+                entry.recent.addAll(history);
+                entry.recent.addAll(entry.pending);
+                entry.loaded = true;
+                trim(entry);
+            }
+            if (entry.complete || lastN <= entry.recent.size()) {
+                return tail(new ArrayList<>(entry.recent), lastN);
+            }
+            // 超出缓存窗口的少见请求直接读底层存储
+            List<Message> merged = new ArrayList<>(delegate.get(conversationId, lastN));
+            merged.addAll(entry.pending);
+            return tail(merged, lastN);
+        }
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.remove(conversationId);
+        }
+        dirty.remove(conversationId);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.pending.clear();
+                delegate.clear(conversationId);
+            }
+        } else {
+            delegate.clear(conversationId);
+        }
+    }
+
+    /**
+     * 立即写回所有脏会话并 fsync
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            writeDirty();
+            syncWritten();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        log.info("对话记忆缓存已全部写回");
+    }
+
+    /**
+     * 当前缓存的会话数
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            synchronized (flushLock) {
+                writeDirty();
+                if (System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis) {
+                    syncWritten();
+                }
+            }
+            evict();
+        } catch (Exception e) {
+            log.error("对话记忆写回失败", e);
+        }
+    }
+
+    /**
+     * 按批次把脏会话写入底层存储
+     */
+    private void writeDirty() {
+        // 只处理本轮开始时已经脏的数量，写回期间新变脏的留给下一轮
+        int remaining = dirty.size();
+        while (remaining > 0 && !dirty.isEmpty()) {
+            List<String> batch = new ArrayList<>();
+            Iterator<String> it = dirty.iterator();
+            while (it.hasNext() && batch.size() < batchSize) {
+                batch.add(it.next());
+                it.remove();
+            }
+            remaining -= batch.size();
+            unsynced.addAll(batch);
+            writeMarker();
+            for (String conversationId : batch) {
+                Entry entry;
+                synchronized (cache) {
+                    entry = cache.get(conversationId);
+                }
+                if (entry == null) {
+                    continue;
+                }
+                synchronized (entry) {
+                    if (entry.pending.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        delegate.add(conversationId, new ArrayList<>(entry.pending));
+                        entry.pending.clear();
+                    } catch (Exception e) {
+                        // 下一轮重试
+                        dirty.add(conversationId);
+                        log.error("会话 {} 写回失败", conversationId, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 对已写入的会话统一 fsync，成功后删除恢复标记
+     */
+    private void syncWritten() {
+        lastSyncMillis = System.currentTimeMillis();
+        if (unsynced.isEmpty()) {
+            return;
+        }
+        if (delegate instanceof SyncableChatMemory syncable) {
+            syncable.sync(unsynced);
+        }
+        unsynced.clear();
+        try {
+            Files.deleteIfExists(recoveryMarker);
+        } catch (IOException e) {
+            log.warn("删除恢复标记 {} 失败", recoveryMarker, e);
+        }
+    }
+
+    private void writeMarker() {
+        try {
+            Path tmp = recoveryMarker.resolveSibling(recoveryMarker.getFileName() + ".tmp");
+            Files.write(tmp, unsynced, StandardCharsets.UTF_8);
+            Files.move(tmp, recoveryMarker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("写入恢复标记 {} 失败", recoveryMarker, e);
+        }
+    }
+
+    private void recoverIfNeeded() {
+        if (!Files.exists(recoveryMarker)) {
+            return;
+        }
+        try {
+            List<String> conversationIds = Files.readAllLines(recoveryMarker, StandardCharsets.UTF_8).stream()
+                    .filter(id -> !id.isBlank())
+                    .toList();
+            log.warn("检测到上次异常退出，恢复 {} 个会话的记忆", conversationIds.size());
+            if (delegate instanceof SyncableChatMemory syncable) {
+                syncable.recover(conversationIds);
+                syncable.sync(conversationIds);
+            }
+            Files.deleteIfExists(recoveryMarker);
+        } catch (IOException e) {
+            log.error("读取恢复标记 {} 失败", recoveryMarker, e);
+        }
+    }
+
+    /**
+     * 移出超出数量或空闲超时的会话，脏会话等写回后再移出
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> next = it.next();
+                boolean overflow = cache.size() > maxConversations;
+                boolean expired = now - next.getValue().lastAccess > ttlMillis;
+                if (!overflow && !expired) {
+                    // LRU 顺序，后面的都更新
+                    break;
+                }
+                Entry entry = next.getValue();
+                synchronized (entry) {
+                    if (!dirty.contains(next.getKey()) && entry.pending.isEmpty()) {
+                        entry.evicted = true;
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private Entry entry(String conversationId) {
+        synchronized (cache) {
+            return cache.computeIfAbsent(conversationId, k -> new Entry());
+        }
+    }
+
+    private void trim(Entry entry) {
+        while (entry.recent.size() > cacheWindow) {
+            entry.recent.removeFirst();
+            entry.complete = false;
+        }
+    }
+
+    private static List<Message> tail(List<Message> messages, int lastN) {
+        return List.copyOf(messages.subList(Math.max(0, messages.size() - lastN), messages.size()));
+    }
+
+    /**
+     * 缓存的会话，字段均在自身锁内访问(lastAccess 除外)
+     */
+    private static final class Entry {
+        private final ArrayDeque<Message> recent = new ArrayDeque<>();
+        private final List<Message> pending = new ArrayList<>();
+        private boolean loaded;
+        private boolean complete;
+        private boolean evicted;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+    }
+}
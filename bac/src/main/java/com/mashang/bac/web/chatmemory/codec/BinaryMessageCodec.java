@@ -0,0 +1,462 @@
+package com.mashang.bac.web.chatmemory.codec;
+
+import org.springframework.ai.chat.messages.AbstractMessage;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.model.Media;
+import org.springframework.ai.model.MediaContent;
+import org.springframework.util.MimeType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 手写的紧凑二进制消息编解码器
+ * <p>
+ * 只处理实际会存储的消息类型(用户、助手、系统、工具响应)，不依赖反射，也不写类名，Spring AI 升级不影响已有数据。
+ * 格式：
+ * <pre>
+ * MAGIC(1) 版本(1) 类型(1) 文本 元数据 [类型相关字段]
+ * 字符串：varint(UTF-8 字节数 + 1) + UTF-8，0 表示 null
+ * 元数据：varint(条数) + 每条 字符串键 + 带类型标记的值
+ * 用户消息：媒体列表；助手消息：工具调用列表 + 媒体列表；工具响应消息：响应列表
+ * </pre>
+ * 首字节 {@link #MAGIC} 大于 127，而 Kryo 写入的首字节是很小的类注册号，两者不会混淆：
+ * 读到非本格式的数据时交给 fallback 编解码器处理，旧的 Kryo 数据无需迁移即可读取。
+ * <p>
+ * 版本号用于向前迁移：读取时按版本分支，新版本只追加字段，旧数据仍按旧版本解析。
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    public static final byte MAGIC = (byte) 0xC7;
+    public static final int SCHEMA_VERSION = 1;
+
+    private static final byte TYPE_USER = 1;
+    private static final byte TYPE_ASSISTANT = 2;
+    private static final byte TYPE_SYSTEM = 3;
+    private static final byte TYPE_TOOL = 4;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_INT = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_DOUBLE = 4;
+    private static final byte VALUE_FLOAT = 5;
+    private static final byte VALUE_BOOLEAN = 6;
+    private static final byte VALUE_LIST = 7;
+    private static final byte VALUE_MAP = 8;
+
+    private static final byte MEDIA_BYTES = 0;
+    private static final byte MEDIA_STRING = 1;
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private final MessageCodec fallback;
+
+    public BinaryMessageCodec() {
+        this(null);
+    }
+
+    /**
+     * @param fallback 读取非本格式数据(例如旧的 Kryo 数据)时使用，为空则直接报错
+     */
+    public BinaryMessageCodec(MessageCodec fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public byte[] encode(Message message) {
+        Writer writer = new Writer(INITIAL_BUFFER_SIZE);
+        writer.writeByte(MAGIC);
+        writer.writeByte(SCHEMA_VERSION);
+        switch (message) {
+            case UserMessage user -> {
+                writer.writeByte(TYPE_USER);
+                writeCommon(writer, user);
+                writeMedia(writer, user);
+            }
+            case AssistantMessage assistant -> {
+                writer.writeByte(TYPE_ASSISTANT);
+                writeCommon(writer, assistant);
+                List<AssistantMessage.ToolCall> toolCalls = assistant.getToolCalls();
+                writer.writeVarInt(toolCalls.size());
+                for (AssistantMessage.ToolCall toolCall : toolCalls) {
+                    writer.writeString(toolCall.id());
+                    writer.writeString(toolCall.type());
+                    writer.writeString(toolCall.name());
+                    writer.writeString(toolCall.arguments());
+                }
+                writeMedia(writer, assistant);
+            }
+            case SystemMessage system -> {
+                writer.writeByte(TYPE_SYSTEM);
+                writeCommon(writer, system);
+            }
+            case ToolResponseMessage tool -> {
+                writer.writeByte(TYPE_TOOL);
+                writeCommon(writer, tool);
+                writer.writeVarInt(tool.getResponses().size());
+                for (ToolResponseMessage.ToolResponse response : tool.getResponses()) {
+                    writer.writeString(response.id());
+                    writer.writeString(response.name());
+                    writer.writeString(response.responseData());
+                }
+            }
+            default -> throw new IllegalArgumentException("不支持的消息类型: " + message.getClass().getName());
+        }
+        return writer.toBytes();
+    }
+
+    @Override
+    public Message decode(byte[] bytes, int offset, int length) {
+        return decode(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    @Override
+    public Message decode(ByteBuffer buffer) {
+        if (!buffer.hasRemaining() || buffer.get(buffer.position()) != MAGIC) {
+            if (fallback == null) {
+                throw new IllegalArgumentException("不是二进制消息格式");
+            }
+            return fallback.decode(buffer);
+        }
+        Reader reader = new Reader(buffer.slice());
+        reader.readByte();
+        int version = reader.readByte();
+        if (version > SCHEMA_VERSION) {
+            throw new IllegalArgumentException("不支持的消息格式版本: " + version);
+        }
+        byte type = reader.readByte();
+        String text = reader.readString();
+        Map<String, Object> metadata = reader.readMetadata();
+        return switch (type) {
+            case TYPE_USER -> new UserMessage(text, readMedia(reader), metadata);
+            case TYPE_ASSISTANT -> {
+                int count = reader.readVarInt();
+                List<AssistantMessage.ToolCall> toolCalls = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    toolCalls.add(new AssistantMessage.ToolCall(
+                            reader.readString(), reader.readString(), reader.readString(), reader.readString()));
+                }
+                yield new AssistantMessage(text, metadata, toolCalls, readMedia(reader));
+            }
+            case TYPE_SYSTEM -> {
+                SystemMessage system = new SystemMessage(text);
+                // SystemMessage 没有带元数据的构造器
+                system.getMetadata().putAll(metadata);
+                yield system;
+            }
+            case TYPE_TOOL -> {
+                int count = reader.readVarInt();
+                List<ToolResponseMessage.ToolResponse> responses = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    responses.add(new ToolResponseMessage.ToolResponse(
+                            reader.readString(), reader.readString(), reader.readString()));
+                }
+                yield new ToolResponseMessage(responses, metadata);
+            }
+            default -> throw new IllegalArgumentException("未知的消息类型标记: " + type);
+        };
+    }
+
+    private static void writeCommon(Writer writer, Message message) {
+        writer.writeString(message.getText());
+        Map<String, Object> metadata = message.getMetadata();
+        // 消息类型由类型标记表示，构造时会自动补上
+        int count = metadata.size() - (metadata.containsKey(AbstractMessage.MESSAGE_TYPE) ? 1 : 0);
+        writer.writeVarInt(count);
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            if (!AbstractMessage.MESSAGE_TYPE.equals(entry.getKey())) {
+                writer.writeString(entry.getKey());
+                writer.writeValue(entry.getValue());
+            }
+        }
+    }
+
+    private static void writeMedia(Writer writer, MediaContent content) {
+        List<Media> media = content.getMedia();
+        writer.writeVarInt(media.size());
+        for (Media item : media) {
+            writer.writeString(item.getMimeType().toString());
+            writer.writeString(item.getId());
+            writer.writeString(item.getName());
+            if (item.getData() instanceof byte[] bytes) {
+                writer.writeByte(MEDIA_BYTES);
+                writer.writeBytes(bytes);
+            } else {
+                writer.writeByte(MEDIA_STRING);
+                writer.writeString(String.valueOf(item.getData()));
+            }
+        }
+    }
+
+    private static List<Media> readMedia(Reader reader) {
+        int count = reader.readVarInt();
+        List<Media> media = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Media.Builder builder = Media.builder()
+                    .mimeType(MimeType.valueOf(reader.readString()))
+                    .id(reader.readString())
+                    .name(reader.readString());
+            builder.data(reader.readByte() == MEDIA_BYTES ? reader.readBytes() : reader.readString());
+            media.add(builder.build());
+        }
+        return media;
+    }
+
+    /**
+     * 在 position 处写入 varint，调用方保证至少还有 5 个字节
+     *
+     * @return 写入后的位置
+     */
+    public static int putVarInt(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * 从当前位置读取 varint
+     */
+    public static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint 格式错误");
+    }
+
+    /**
+     * 可扩容的字节写入器，每次编码新建一个，无共享状态
+     */
+    private static final class Writer {
+        private byte[] buffer;
+        private int position;
+
+        Writer(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            position = putVarInt(buffer, position, value);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeValue(Object value) {
+            switch (value) {
+                case null -> writeByte(VALUE_NULL);
+                case String s -> {
+                    writeByte(VALUE_STRING);
+                    writeString(s);
+                }
+                case Integer i -> {
+                    writeByte(VALUE_INT);
+                    writeVarInt(zigZag(i));
+                }
+                case Long l -> {
+                    writeByte(VALUE_LONG);
+                    writeVarLong(zigZag(l));
+                }
+                case Double d -> {
+                    writeByte(VALUE_DOUBLE);
+                    writeVarLong(Long.reverseBytes(Double.doubleToRawLongBits(d)));
+                }
+                case Float f -> {
+                    writeByte(VALUE_FLOAT);
+                    writeVarInt(Integer.reverseBytes(Float.floatToRawIntBits(f)));
+                }
+                case Boolean b -> {
+                    writeByte(VALUE_BOOLEAN);
+                    writeByte(b ? 1 : 0);
+                }
+                case Collection<?> list -> {
+                    writeByte(VALUE_LIST);
+                    writeVarInt(list.size());
+                    for (Object item : list) {
+                        writeValue(item);
+                    }
+                }
+                case Map<?, ?> map -> {
+                    writeByte(VALUE_MAP);
+                    writeVarInt(map.size());
+                    for (Map.Entry<?, ?> entry : map.entrySet()) {
+                        writeString(String.valueOf(entry.getKey()));
+                        writeValue(entry.getValue());
+                    }
+                }
+                // 枚举、数字以外的其他类型按字符串保存
+                default -> {
+                    writeByte(VALUE_STRING);
+                    writeString(value.toString());
+                }
+            }
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensure(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            }
+        }
+
+        private static int zigZag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    /**
+     * 顺序读取器，直接读 ByteBuffer(可以是内存映射缓冲区)
+     */
+    private static final class Reader {
+        private final ByteBuffer buffer;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        byte readByte() {
+            return buffer.get();
+        }
+
+        int readVarInt() {
+            return BinaryMessageCodec.readVarInt(buffer);
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("varlong 格式错误");
+        }
+
+        String readString() {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            String value;
+            if (buffer.hasArray()) {
+                value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+
+        byte[] readBytes() {
+            byte[] bytes = new byte[readVarInt()];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        Map<String, Object> readMetadata() {
+            int count = readVarInt();
+            Map<String, Object> metadata = new HashMap<>(Math.max(4, count * 2));
+            for (int i = 0; i < count; i++) {
+                metadata.put(readString(), readValue());
+            }
+            return metadata;
+        }
+
+        Object readValue() {
+            byte tag = readByte();
+            return switch (tag) {
+                case VALUE_NULL -> null;
+                case VALUE_STRING -> readString();
+                case VALUE_INT -> {
+                    int raw = readVarInt();
+                    yield (raw >>> 1) ^ -(raw & 1);
+                }
+                case VALUE_LONG -> {
+                    long raw = readVarLong();
+                    yield (raw >>> 1) ^ -(raw & 1);
+                }
+                case VALUE_DOUBLE -> Double.longBitsToDouble(Long.reverseBytes(readVarLong()));
+                case VALUE_FLOAT -> Float.intBitsToFloat(Integer.reverseBytes(readVarInt()));
+                case VALUE_BOOLEAN -> readByte() != 0;
+                case VALUE_LIST -> {
+                    int size = readVarInt();
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(readValue());
+                    }
+                    yield list;
+                }
+                case VALUE_MAP -> {
+                    int size = readVarInt();
+                    Map<String, Object> map = new LinkedHashMap<>(Math.max(4, size * 2));
+                    for (int i = 0; i < size; i++) {
+                        map.put(readString(), readValue());
+                    }
+                    yield map;
+                }
+                default -> throw new IllegalArgumentException("未知的元数据值类型: " + tag);
+            };
+        }
+    }
+}
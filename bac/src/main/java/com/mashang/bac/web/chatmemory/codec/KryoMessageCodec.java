@@ -0,0 +1,143 @@
+package com.mashang.bac.web.chatmemory.codec;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.model.Media;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于 Kryo 的消息编解码器
+ * <p>
+ * Kryo 实例本身不是线程安全的，这里用 {@link Pool} 池化 Kryo 以及 Output/Input 缓冲区：
+ * 每次调用从池里借一套，用完归还，多个线程可以并行序列化，既没有全局锁，也不会每次都新建缓冲区。
+ */
+public class KryoMessageCodec implements MessageCodec {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * 超过该大小的缓冲区不再放回池中，避免偶发的大消息长期占用内存
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private static final int POOL_CAPACITY = Runtime.getRuntime().availableProcessors() * 4;
+
+    private final Pool<Kryo> kryoPool = new Pool<>(true, false, POOL_CAPACITY) {
+        @Override
+        protected Kryo create() {
+            return createKryo();
+        }
+    };
+
+    private final Pool<Output> outputPool = new Pool<>(true, false, POOL_CAPACITY) {
+        @Override
+        protected Output create() {
+            return new Output(INITIAL_BUFFER_SIZE, -1);
+        }
+    };
+
+    private final Pool<Input> inputPool = new Pool<>(true, false, POOL_CAPACITY) {
+        @Override
+        protected Input create() {
+            return new Input();
+        }
+    };
+
+    private final Pool<ByteBufferInput> byteBufferInputPool = new Pool<>(true, false, POOL_CAPACITY) {
+        @Override
+        protected ByteBufferInput create() {
+            return new ByteBufferInput();
+        }
+    };
+
+    @Override
+    public byte[] encode(Message message) {
+        Kryo kryo = kryoPool.obtain();
+        Output output = outputPool.obtain();
+        try {
+            output.reset();
+            kryo.writeClassAndObject(output, message);
+            return output.toBytes();
+        } finally {
+            if (output.getBuffer().length > MAX_POOLED_BUFFER_SIZE) {
+                output.setBuffer(new byte[INITIAL_BUFFER_SIZE], -1);
+            }
+            outputPool.free(output);
+            kryoPool.free(kryo);
+        }
+    }
+
+    @Override
+    public Message decode(byte[] bytes, int offset, int length) {
+        Kryo kryo = kryoPool.obtain();
+        Input input = inputPool.obtain();
+        try {
+            input.setBuffer(bytes, offset, length);
+            return (Message) kryo.readClassAndObject(input);
+        } finally {
+            // 不持有调用方的数组
+            input.setBuffer(EMPTY);
+            inputPool.free(input);
+            kryoPool.free(kryo);
+        }
+    }
+
+    /**
+     * 直接读取 ByteBuffer(包括内存映射缓冲区)，不拷贝到堆数组
+     */
+    @Override
+    public Message decode(ByteBuffer buffer) {
+        Kryo kryo = kryoPool.obtain();
+        ByteBufferInput input = byteBufferInputPool.obtain();
+        try {
+            input.setBuffer(buffer.slice());
+            return (Message) kryo.readClassAndObject(input);
+        } finally {
+            input.setBuffer(EMPTY_BUFFER);
+            byteBufferInputPool.free(input);
+            kryoPool.free(kryo);
+        }
+    }
+
+    /**
+     * 读取旧版整文件格式(Kryo 序列化的 ArrayList)
+     */
+    @SuppressWarnings("unchecked")
+    public List<Message> decodeLegacyList(InputStream inputStream) {
+        Kryo kryo = kryoPool.obtain();
+        try (Input input = new Input(inputStream)) {
+            return kryo.readObject(input, ArrayList.class);
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+
+    private static Kryo createKryo() {
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(false);
+        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+
+        // 注册 Spring AI 相关类
+        kryo.register(Media.class);
+        kryo.register(ArrayList.class);
+        kryo.register(UserMessage.class);
+        kryo.register(AssistantMessage.class);
+        kryo.register(SystemMessage.class);
+        return kryo;
+    }
+}
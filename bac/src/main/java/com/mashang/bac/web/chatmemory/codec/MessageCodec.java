@@ -0,0 +1,48 @@
+package com.mashang.bac.web.chatmemory.codec;
+
+import org.springframework.ai.chat.messages.Message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 对话消息编解码器
+ * <p>
+ * 实现类必须线程安全，可被多个会话同时调用
+ */
+public interface MessageCodec {
+
+    /**
+     * 序列化一条消息
+     *
+     * @param message 消息
+     * @return 序列化后的字节
+     */
+    byte[] encode(Message message);
+
+    /**
+     * 反序列化一条消息
+     *
+     * @param bytes  数据
+     * @param offset 起始下标
+     * @param length 长度
+     * @return 消息
+     */
+    Message decode(byte[] bytes, int offset, int length);
+
+    /**
+     * 从 ByteBuffer 反序列化一条消息(读取 position 到 limit 之间的内容)
+     * <p>
+     * 默认实现先拷贝到数组，支持直接读取缓冲区的实现(例如读取内存映射文件)应覆盖该方法避免拷贝
+     *
+     * @param buffer 数据
+     * @return 消息
+     */
+    default Message decode(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return decode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return decode(bytes, 0, bytes.length);
+    }
+}
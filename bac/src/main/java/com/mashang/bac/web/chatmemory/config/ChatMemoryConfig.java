@@ -0,0 +1,30 @@
+package com.mashang.bac.web.chatmemory.config;
+
+import com.mashang.bac.web.chatmemory.JdbcChatMemory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Duration;
+
+/**
+ * 对话记忆配置
+ */
+@Configuration
+public class ChatMemoryConfig {
+
+    /**
+     * Postgres 对话记忆，基础对话和 RAG 对话共用一个实例，重启不丢失，多个节点之间共享
+     */
+    @Bean
+    public JdbcChatMemory jdbcChatMemory(
+            JdbcTemplate jdbcTemplate,
+            @Value("${app.chat-memory.jdbc.table-name:" + JdbcChatMemory.DEFAULT_TABLE_NAME + "}") String tableName,
+            @Value("${app.chat-memory.jdbc.flush-interval:100ms}") Duration flushInterval,
+            @Value("${app.chat-memory.jdbc.batch-size:500}") int batchSize,
+            @Value("${app.chat-memory.jdbc.initialize-schema:true}") boolean initializeSchema) {
+        return new JdbcChatMemory(jdbcTemplate, null, tableName, flushInterval, batchSize, initializeSchema);
+    }
+
+}
@@ -0,0 +1,336 @@
+package com.mashang.bac.web.moderation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 违禁词多模式匹配自动机(Aho-Corasick)
+ * <p>
+ * 构建一次后不可变，可被多线程共享；扫描时只在命中时创建 {@link Match} 对象，
+ * 扫描本身不产生任何临时字符串，耗时只与输入文本长度相关，与词库大小无关。
+ * <p>
+ * 状态转移表使用开放寻址的 (状态, 字符) -> 状态 哈希表，
+ * 既能覆盖整个 Unicode 字符集，又不需要为每个节点分配对象。
+ * <p>
+ * 违禁词与待检查文本都经过 {@link TextNormalizer} 规范化，规范化与匹配在同一遍扫描中完成；
+ * 词长、状态深度均按规范化后的字符计，命中位置则还原为原文下标。
+ */
+public final class AhoCorasickMatcher {
+
+    /**
+     * 根状态
+     */
+    public static final int ROOT = 0;
+
+    /**
+     * 无命中
+     */
+    public static final int NO_MATCH = -1;
+
+    private static final long EMPTY_KEY = -1L;
+
+    private final String[] patterns;
+    private final int[] patternLengths;
+
+    // 转移表(开放寻址)
+    private final long[] edgeKeys;
+    private final int[] edgeTargets;
+    private final int edgeMask;
+
+    // 失配指针
+    private final int[] fail;
+    // 每个状态上可报告的最长命中词下标(包含沿失配链继承来的)
+    private final int[] output;
+    // 每个状态对应的已匹配前缀长度
+    private final int[] depth;
+
+    private AhoCorasickMatcher(String[] patterns, int[] patternLengths, long[] edgeKeys, int[] edgeTargets,
+                               int[] fail, int[] output, int[] depth) {
+        this.patterns = patterns;
+        this.patternLengths = patternLengths;
+        this.edgeKeys = edgeKeys;
+        this.edgeTargets = edgeTargets;
+        this.edgeMask = edgeKeys.length - 1;
+        this.fail = fail;
+        this.output = output;
+        this.depth = depth;
+    }
+
+    /**
+     * 根据词表构建自动机，空白词(或规范化后为空的词)会被忽略
+     *
+     * @param words 词表
+     * @return 自动机
+     */
+    public static AhoCorasickMatcher compile(Collection<String> words) {
+        return new Builder(words).build();
+    }
+
+    /**
+     * 在文本中查找第一个(结束位置最靠前的)违禁词
+     *
+     * @param text 待检查文本
+     * @return 命中结果，没有命中返回 null
+     */
+    public Match findFirst(CharSequence text) {
+        if (text == null) {
+            return null;
+        }
+        int state = ROOT;
+        char previous = TextNormalizer.DROP;
+        for (int i = 0, len = text.length(); i < len; i++) {
+            char c = TextNormalizer.fold(previous, text.charAt(i));
+            if (c == TextNormalizer.DROP) {
+                continue;
+            }
+            previous = c;
+            state = step(state, c);
+            int hit = output[state];
+            if (hit != NO_MATCH) {
+                int start = TextNormalizer.originalStart(text, i, patternLengths[hit]);
+                return new Match(start, i + 1, patterns[hit]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 文本是否包含违禁词
+     */
+    public boolean matches(CharSequence text) {
+        return findFirst(text) != null;
+    }
+
+    /**
+     * 单步状态转移，供增量扫描使用(例如流式输出逐块检查)
+     * <p>
+     * 调用方用 {@link TextNormalizer#fold(char, char)} 规范化原文字符，丢弃的字符不调用，避免重复报告同一次命中
+     *
+     * @param state  当前状态
+     * @param folded 下一个字符的规范化结果，不能是 {@link TextNormalizer#DROP}
+     * @return 转移后的状态
+     */
+    public int next(int state, char folded) {
+        return step(state, folded);
+    }
+
+    private int step(int state, char folded) {
+        while (true) {
+            int target = edge(state, folded);
+            if (target != NO_MATCH) {
+                return target;
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = fail[state];
+        }
+    }
+
+    /**
+     * 当前状态命中的词下标，没有命中返回 {@link #NO_MATCH}
+     */
+    public int matchAt(int state) {
+        return output[state];
+    }
+
+    /**
+     * 当前状态已匹配的前缀长度，即末尾还有多少个(规范化后的)字符可能属于某个尚未完整出现的违禁词
+     */
+    public int depth(int state) {
+        return depth[state];
+    }
+
+    /**
+     * 按下标取词
+     */
+    public String pattern(int index) {
+        return patterns[index];
+    }
+
+    /**
+     * 按下标取词长度(规范化后)
+     */
+    public int patternLength(int index) {
+        return patternLengths[index];
+    }
+
+    /**
+     * 词数量
+     */
+    public int size() {
+        return patterns.length;
+    }
+
+    private int edge(int state, char c) {
+        long key = edgeKey(state, c);
+        int slot = mix(key) & edgeMask;
+        while (true) {
+            long k = edgeKeys[slot];
+            if (k == key) {
+                return edgeTargets[slot];
+            }
+            if (k == EMPTY_KEY) {
+                return NO_MATCH;
+            }
+            slot = (slot + 1) & edgeMask;
+        }
+    }
+
+    private static long edgeKey(int state, char c) {
+        return ((long) state << 16) | c;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * 命中结果，区间为原文下标，可能包含夹在违禁词中间的填充字符
+     *
+     * @param start 命中起始下标(包含)
+     * @param end   命中结束下标(不包含)
+     * @param word  命中的违禁词
+     */
+    public record Match(int start, int end, String word) {
+    }
+
+    /**
+     * 构建器-先建字典树，再按层序计算失配指针，最后压缩成数组
+     */
+    private static final class Builder {
+
+        private final List<String> words = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private final List<int[]> children = new ArrayList<>();
+        private final List<char[]> labels = new ArrayList<>();
+        private final List<Integer> childCounts = new ArrayList<>();
+        private int[] terminal = new int[16];
+        private int edgeCount;
+
+        Builder(Collection<String> source) {
+            newNode();
+            for (String word : source) {
+                if (word == null || word.isBlank()) {
+                    continue;
+                }
+                insert(word);
+            }
+        }
+
+        private int newNode() {
+            children.add(new int[2]);
+            labels.add(new char[2]);
+            childCounts.add(0);
+            int id = children.size() - 1;
+            if (id >= terminal.length) {
+                terminal = Arrays.copyOf(terminal, terminal.length * 2);
+            }
+            terminal[id] = NO_MATCH;
+            return id;
+        }
+
+        private int child(int node, char c) {
+            char[] ls = labels.get(node);
+            int[] cs = children.get(node);
+            for (int i = 0, n = childCounts.get(node); i < n; i++) {
+                if (ls[i] == c) {
+                    return cs[i];
+                }
+            }
+            return NO_MATCH;
+        }
+
+        private void insert(String word) {
+            // 词尾的词边界不要求文本里也有
+            String normalized = TextNormalizer.normalize(word).text().stripTrailing();
+            int node = ROOT;
+            for (int i = 0; i < normalized.length(); i++) {
+                char c = normalized.charAt(i);
+                int next = child(node, c);
+                if (next == NO_MATCH) {
+                    next = newNode();
+                    int n = childCounts.get(node);
+                    if (n == labels.get(node).length) {
+                        labels.set(node, Arrays.copyOf(labels.get(node), n * 2));
+                        children.set(node, Arrays.copyOf(children.get(node), n * 2));
+                    }
+                    labels.get(node)[n] = c;
+                    children.get(node)[n] = next;
+                    childCounts.set(node, n + 1);
+                    edgeCount++;
+                }
+                node = next;
+            }
+            // 重复词(含规范化后相同的词)只保留第一次出现的
+            if (node != ROOT && terminal[node] == NO_MATCH) {
+                words.add(word);
+                lengths.add(normalized.length());
+                terminal[node] = words.size() - 1;
+            }
+        }
+
+        AhoCorasickMatcher build() {
+            int nodeCount = children.size();
+            int capacity = Integer.highestOneBit(Math.max(4, edgeCount * 2 - 1)) << 1;
+            long[] keys = new long[capacity];
+            int[] targets = new int[capacity];
+            Arrays.fill(keys, EMPTY_KEY);
+            int mask = capacity - 1;
+            for (int node = 0; node < nodeCount; node++) {
+                char[] ls = labels.get(node);
+                int[] cs = children.get(node);
+                for (int i = 0, n = childCounts.get(node); i < n; i++) {
+                    long key = edgeKey(node, ls[i]);
+                    int slot = mix(key) & mask;
+                    while (keys[slot] != EMPTY_KEY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = key;
+                    targets[slot] = cs[i];
+                }
+            }
+
+            String[] patternArray = words.toArray(new String[0]);
+            int[] lengthArray = lengths.stream().mapToInt(Integer::intValue).toArray();
+
+            // 层序遍历计算失配指针与输出
+            int[] fail = new int[nodeCount];
+            int[] output = new int[nodeCount];
+            int[] depth = new int[nodeCount];
+            output[ROOT] = NO_MATCH;
+            int[] queue = new int[nodeCount];
+            int head = 0;
+            int tail = 0;
+            for (int i = 0, n = childCounts.get(ROOT); i < n; i++) {
+                int c = children.get(ROOT)[i];
+                fail[c] = ROOT;
+                output[c] = terminal[c];
+                depth[c] = 1;
+                queue[tail++] = c;
+            }
+            while (head < tail) {
+                int node = queue[head++];
+                char[] ls = labels.get(node);
+                int[] cs = children.get(node);
+                for (int i = 0, n = childCounts.get(node); i < n; i++) {
+                    char c = ls[i];
+                    int childNode = cs[i];
+                    int f = fail[node];
+                    int target;
+                    while ((target = child(f, c)) == NO_MATCH && f != ROOT) {
+                        f = fail[f];
+                    }
+                    fail[childNode] = target == NO_MATCH ? ROOT : target;
+                    output[childNode] = terminal[childNode] != NO_MATCH ? terminal[childNode] : output[fail[childNode]];
+                    depth[childNode] = depth[node] + 1;
+                    queue[tail++] = childNode;
+                }
+            }
+            return new AhoCorasickMatcher(patternArray, lengthArray, keys, targets, fail, output, depth);
+        }
+    }
+}
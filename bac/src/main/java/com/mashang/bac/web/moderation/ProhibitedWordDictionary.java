@@ -0,0 +1,238 @@
+package com.mashang.bac.web.moderation;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 违禁词词库-全局共享，支持热更新
+ * <p>
+ * 默认读取 classpath 内置词库；配置了 app.prohibited-words.path(文件或目录)后改为读取外部词库，
+ * 并监听其变更：在后台线程重新编译自动机，编译完成后通过一次原子引用替换发布。
+ * 正在处理的请求继续使用旧自动机，既不会看到构建到一半的自动机，也不会因为重载而阻塞。
+ * 新词库为空或词数不到旧词库的一半时，视为文件写了一半或被误删，不替换。
+ */
+@Component
+@Slf4j
+public class ProhibitedWordDictionary {
+
+    public static final String DEFAULT_PROHIBITED_WORDS_FILE = "prohibited/prohibited-words.txt";
+
+    /**
+     * 文件变更事件合并窗口，避免编辑器多次写入触发多次重建
+     */
+    private static final long RELOAD_DEBOUNCE_MILLIS = 500;
+
+    /**
+     * 热更新后的词数低于旧词库的该比例时拒绝替换
+     */
+    private static final double MIN_RELOAD_RATIO = 0.5;
+
+    private final String classpathFile;
+    private final Path externalPath;
+    private final AtomicReference<AhoCorasickMatcher> current = new AtomicReference<>();
+
+    private ScheduledExecutorService reloadExecutor;
+    private ScheduledFuture<?> pendingReload;
+    private WatchService watchService;
+
+    @Autowired
+    public ProhibitedWordDictionary(
+            @Value("${app.prohibited-words.classpath:" + DEFAULT_PROHIBITED_WORDS_FILE + "}") String classpathFile,
+            @Value("${app.prohibited-words.path:}") String externalPath) {
+        this.classpathFile = classpathFile;
+        this.externalPath = StringUtils.hasText(externalPath) ? Paths.get(externalPath) : null;
+        current.set(AhoCorasickMatcher.compile(loadWords()));
+        log.info("初始化违禁词词库，违禁词数量: {}", current.get().size());
+    }
+
+    /**
+     * 创建只读取 classpath 文件、不监听变更的词库
+     */
+    public static ProhibitedWordDictionary ofClasspath(String classpathFile) {
+        return new ProhibitedWordDictionary(classpathFile, null);
+    }
+
+    /**
+     * 当前生效的自动机，同一次检查内应只取一次
+     */
+    public AhoCorasickMatcher current() {
+        return current.get();
+    }
+
+    /**
+     * 立即重新加载词库，失败或新词库明显变少时保留旧自动机
+     */
+    public void reload() {
+        try {
+            AhoCorasickMatcher rebuilt = AhoCorasickMatcher.compile(loadWords());
+            int previous = current.get().size();
+            if (rebuilt.size() == 0 || rebuilt.size() < previous * MIN_RELOAD_RATIO) {
+                log.warn("违禁词词库热更新后只有 {} 个词(原有 {} 个)，继续使用旧词库", rebuilt.size(), previous);
+                return;
+            }
+            current.set(rebuilt);
+            log.info("违禁词词库已热更新，违禁词数量: {}", rebuilt.size());
+        } catch (Exception e) {
+            log.error("违禁词词库热更新失败，继续使用旧词库", e);
+        }
+    }
+
+    @PostConstruct
+    public void startWatching() {
+        if (externalPath == null) {
+            return;
+        }
+        Path dir = Files.isDirectory(externalPath) ? externalPath : externalPath.toAbsolutePath().getParent();
+        if (dir == null || !Files.isDirectory(dir)) {
+            log.warn("违禁词目录 {} 不存在，不启用热更新", dir);
+            return;
+        }
+        try {
+            watchService = dir.getFileSystem().newWatchService();
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            log.error("违禁词目录 {} 监听失败，不启用热更新", dir, e);
+            return;
+        }
+        reloadExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "prohibited-words-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread watcher = new Thread(() -> watchLoop(dir), "prohibited-words-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        log.info("开始监听违禁词 {}", externalPath);
+    }
+
+    @PreDestroy
+    public void stopWatching() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.warn("关闭违禁词监听失败", e);
+            }
+        }
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdownNow();
+        }
+    }
+
+    private void watchLoop(Path dir) {
+        boolean watchingFile = !Files.isDirectory(externalPath);
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            boolean relevant = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    relevant = true;
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                if (!watchingFile || changed.getFileName().equals(externalPath.getFileName())) {
+                    relevant = true;
+                }
+            }
+            if (relevant) {
+                scheduleReload();
+            }
+            if (!key.reset()) {
+                log.warn("违禁词目录 {} 已不可访问，停止监听", dir);
+                return;
+            }
+        }
+    }
+
+    private synchronized void scheduleReload() {
+        if (pendingReload != null) {
+            pendingReload.cancel(false);
+        }
+        pendingReload = reloadExecutor.schedule(this::reload, RELOAD_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 读取词表：配置了外部路径时读外部文件(目录则读其中全部 .txt)，否则读 classpath
+     */
+    private List<String> loadWords() {
+        if (externalPath == null) {
+            return loadFromClasspath(classpathFile);
+        }
+        try {
+            if (!Files.isDirectory(externalPath)) {
+                return loadFromFile(externalPath);
+            }
+            List<String> words = new ArrayList<>();
+            try (Stream<Path> files = Files.list(externalPath)) {
+                for (Path file : files.filter(p -> p.toString().endsWith(".txt")).sorted().toList()) {
+                    words.addAll(loadFromFile(file));
+                }
+            }
+            return words;
+        } catch (IOException e) {
+            throw new IllegalStateException("加载违禁词 " + externalPath + " 失败", e);
+        }
+    }
+
+    private List<String> loadFromFile(Path file) throws IOException {
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            List<String> words = lines.filter(StringUtils::hasText)
+                    .map(String::trim)
+                    .collect(Collectors.toList());
+            log.info("从文件 {} 加载违禁词 {} 个", file, words.size());
+            return words;
+        }
+    }
+
+    /**
+     * 从 classpath 加载违禁词列表
+     */
+    private List<String> loadFromClasspath(String filePath) {
+        try (var reader = new BufferedReader(
+                new InputStreamReader(new ClassPathResource(filePath).getInputStream(), StandardCharsets.UTF_8))) {
+            List<String> words = reader.lines()
+                    .filter(StringUtils::hasText)
+                    .map(String::trim)
+                    .collect(Collectors.toList());
+            log.info("从文件 {} 加载违禁词 {} 个", filePath, words.size());
+            return words;
+        } catch (Exception e) {
+            log.error("加载违禁词文件 {} 失败", filePath, e);
+            return new ArrayList<>();
+        }
+    }
+}
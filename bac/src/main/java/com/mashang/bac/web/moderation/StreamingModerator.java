@@ -0,0 +1,147 @@
+package com.mashang.bac.web.moderation;
+
+import java.util.BitSet;
+
+/**
+ * 流式输出违禁词增量检查器
+ * <p>
+ * 每条流对应一个实例(非线程安全)，自动机状态跨分块保留，因此被拆到两个 token 里的违禁词也能识别。
+ * 只扣留末尾"可能是某个违禁词前缀"的那几个字符(最多为最长违禁词长度-1)，其余内容立即放行，
+ * 不需要把整段回答缓存下来再检查。
+ * <p>
+ * 匹配基于 {@link TextNormalizer} 规范化后的文本，打码/截断则落在原文字符上(包括夹在违禁词中间的填充字符)。
+ */
+public class StreamingModerator {
+
+    /**
+     * 命中违禁词后的处理方式
+     */
+    public enum Mode {
+        /**
+         * 用 {@link #MASK_CHAR} 替换命中的字符，继续输出
+         */
+        MASK,
+        /**
+         * 输出命中位置之前的内容后立即截断
+         */
+        BLOCK
+    }
+
+    public static final char MASK_CHAR = '*';
+
+    private final AhoCorasickMatcher matcher;
+    private final Mode mode;
+
+    // 已扫描但尚未放行的字符(保留原文，回溯命中位置时才能正确识别填充字符)
+    private final StringBuilder pending = new StringBuilder();
+    // pending 中需要打码的位置
+    private BitSet masked = new BitSet();
+    private int state = AhoCorasickMatcher.ROOT;
+    // 上一个未被丢弃的字符的规范化结果，决定下一个空白是否为词边界
+    private char previous = TextNormalizer.DROP;
+    private boolean blocked;
+    private String matchedWord;
+
+    public StreamingModerator(AhoCorasickMatcher matcher, Mode mode) {
+        this.matcher = matcher;
+        this.mode = mode;
+    }
+
+    /**
+     * 送入一个分块
+     *
+     * @param chunk 模型输出的分块
+     * @return 当前可以安全下发的内容(可能为空字符串)
+     */
+    public String accept(CharSequence chunk) {
+        if (blocked || chunk == null || chunk.isEmpty()) {
+            return "";
+        }
+        for (int i = 0, len = chunk.length(); i < len; i++) {
+            char c = chunk.charAt(i);
+            pending.append(c);
+            char folded = TextNormalizer.fold(previous, c);
+            if (folded == TextNormalizer.DROP) {
+                continue;
+            }
+            previous = folded;
+            state = matcher.next(state, folded);
+            int hit = matcher.matchAt(state);
+            if (hit == AhoCorasickMatcher.NO_MATCH) {
+                continue;
+            }
+            int end = pending.length();
+            int start = TextNormalizer.originalStart(pending, end - 1, matcher.patternLength(hit));
+            if (matchedWord == null) {
+                matchedWord = matcher.pattern(hit);
+            }
+            if (mode == Mode.BLOCK) {
+                blocked = true;
+                String safe = render(start);
+                pending.setLength(0);
+                masked.clear();
+                return safe;
+            }
+            masked.set(start, end);
+        }
+        // 末尾仍可能组成违禁词的字符(连同其间的填充字符)先扣留
+        int depth = matcher.depth(state);
+        int release = depth == 0 ? pending.length()
+                : TextNormalizer.originalStart(pending, pending.length() - 1, depth);
+        if (release <= 0) {
+            return "";
+        }
+        return release(release);
+    }
+
+    /**
+     * 流结束时放行剩余扣留的字符
+     */
+    public String flush() {
+        String rest = release(pending.length());
+        state = AhoCorasickMatcher.ROOT;
+        previous = TextNormalizer.DROP;
+        return rest;
+    }
+
+    /**
+     * 放行 pending 的前 count 个字符
+     */
+    private String release(int count) {
+        String safe = render(count);
+        pending.delete(0, count);
+        if (!masked.isEmpty()) {
+            masked = masked.get(count, Math.max(count, masked.length()));
+        }
+        return safe;
+    }
+
+    /**
+     * 输出 pending 的前 count 个字符，打码位置替换为 {@link #MASK_CHAR}
+     */
+    private String render(int count) {
+        if (masked.isEmpty() || masked.nextSetBit(0) >= count) {
+            return pending.substring(0, count);
+        }
+        char[] out = new char[count];
+        pending.getChars(0, count, out, 0);
+        for (int i = masked.nextSetBit(0); i >= 0 && i < count; i = masked.nextSetBit(i + 1)) {
+            out[i] = MASK_CHAR;
+        }
+        return new String(out);
+    }
+
+    /**
+     * 是否已因命中违禁词被截断
+     */
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    /**
+     * 第一次命中的违禁词，没有命中返回 null
+     */
+    public String getMatchedWord() {
+        return matchedWord;
+    }
+}
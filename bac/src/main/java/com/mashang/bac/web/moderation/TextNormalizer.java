@@ -0,0 +1,218 @@
+package com.mashang.bac.web.moderation;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+
+/**
+ * 违禁词文本规范化
+ * <p>
+ * 启动时预先计算好整张 BMP 字符的 char -> char 映射表，扫描时每个字符只查一次表：
+ * <ul>
+ *     <li>全角/兼容字符折叠为普通字符(NFKC，例如 ＡＢＣ -> abc、① -> 1)</li>
+ *     <li>大写转小写</li>
+ *     <li>繁体转简体(映射见 prohibited/traditional-simplified.txt)</li>
+ *     <li>零宽字符、标点、装饰符号等填充字符直接丢弃</li>
+ *     <li>空白紧跟在拉丁、希腊、西里尔字母或数字之后时保留为一个词边界 {@link #BREAK}(连续空白只保留一个)，
+ *     其余位置的空白丢弃</li>
+ * </ul>
+ * 违禁词和待检查文本走同一套规则，因此"坏 词"、"壞词"、"坏(零宽空格)词"都能命中"坏词"，
+ * 而用空格分词的文字不会因为空格被丢弃把相邻两个词拼在一起，例如 "is exciting" 不会命中 "sex"。
+ * <p>
+ * 空白是否保留只取决于它前面最近一个非填充字符，顺序扫描时把上一个规范化结果传给 {@link #fold(char, char)} 即可。
+ */
+@Slf4j
+public final class TextNormalizer {
+
+    /**
+     * 表示"丢弃该字符"的映射结果
+     */
+    public static final char DROP = '\0';
+
+    /**
+     * 词边界，空白紧跟在 {@link #isWordChar(char) 词字符} 之后时规范化为该字符
+     */
+    public static final char BREAK = ' ';
+
+    private static final String TRADITIONAL_SIMPLIFIED_FILE = "prohibited/traditional-simplified.txt";
+
+    // 空白在表中为 BREAK，是否保留由前一个字符决定
+    private static final char[] TABLE = buildTable();
+    private static final boolean[] WORD_CHARS = buildWordChars();
+
+    private TextNormalizer() {
+    }
+
+    /**
+     * 规范化单个字符
+     *
+     * @param previous 上一个字符的规范化结果(被丢弃的字符不算)，文本开头传 {@link #DROP}
+     * @param c        原文字符
+     * @return 规范化后的字符，需要丢弃时返回 {@link #DROP}
+     */
+    public static char fold(char previous, char c) {
+        char folded = TABLE[c];
+        return folded == BREAK && !WORD_CHARS[previous] ? DROP : folded;
+    }
+
+    /**
+     * 规范化后的字符是否为用空格分词的文字(拉丁、希腊、西里尔字母)或数字，其后的空白是词边界
+     */
+    public static boolean isWordChar(char folded) {
+        return WORD_CHARS[folded];
+    }
+
+    /**
+     * 原文 text[index] 在规范化后是否保留
+     */
+    public static boolean isKept(CharSequence text, int index) {
+        char folded = TABLE[text.charAt(index)];
+        if (folded != BREAK) {
+            return folded != DROP;
+        }
+        // 空白：往前跳过丢弃的字符，最近一个非填充字符(也可能是空白)是词字符时才保留
+        for (int i = index - 1; i >= 0; i--) {
+            char before = TABLE[text.charAt(i)];
+            if (before != DROP) {
+                return WORD_CHARS[before];
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从 endInclusive 往前回溯，找出覆盖 normalizedLength 个有效字符的原文起始下标
+     * <p>
+     * 只在命中时调用，用于把规范化后的命中长度还原成原文区间，不产生任何对象
+     */
+    public static int originalStart(CharSequence text, int endInclusive, int normalizedLength) {
+        int count = 0;
+        for (int i = endInclusive; i >= 0; i--) {
+            if (isKept(text, i) && ++count == normalizedLength) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 规范化整段文本并记录偏移映射，供打码等需要定位原文字符的场景使用
+     */
+    public static NormalizedText normalize(CharSequence text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        int[] offsets = new int[text.length()];
+        char previous = DROP;
+        for (int i = 0, len = text.length(); i < len; i++) {
+            char folded = fold(previous, text.charAt(i));
+            if (folded != DROP) {
+                offsets[normalized.length()] = i;
+                normalized.append(folded);
+                previous = folded;
+            }
+        }
+        return new NormalizedText(normalized.toString(), offsets);
+    }
+
+    /**
+     * 规范化结果
+     *
+     * @param text    规范化后的文本
+     * @param offsets offsets[i] 为规范化文本第 i 个字符在原文中的下标(长度可能大于 text，多余部分无意义)
+     */
+    public record NormalizedText(String text, int[] offsets) {
+
+        /**
+         * 规范化文本区间 [start, end) 对应的原文区间起点
+         */
+        public int originalStart(int start) {
+            return offsets[start];
+        }
+
+        /**
+         * 规范化文本区间 [start, end) 对应的原文区间终点(不包含)
+         */
+        public int originalEnd(int end) {
+            return offsets[end - 1] + 1;
+        }
+    }
+
+    private static char[] buildTable() {
+        char[] table = new char[Character.MAX_VALUE + 1];
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            char ch = (char) c;
+            if (Character.isSurrogate(ch)) {
+                table[c] = ch;
+                continue;
+            }
+            String compat = Normalizer.normalize(String.valueOf(ch), Normalizer.Form.NFKC);
+            char folded = compat.length() == 1 ? compat.charAt(0) : ch;
+            if (Character.isWhitespace(folded) || Character.isSpaceChar(folded)) {
+                table[c] = BREAK;
+            } else {
+                table[c] = isFillerType(folded) ? DROP : Character.toLowerCase(folded);
+            }
+        }
+        // 韩文填充字符常被用作"隐形空格"
+        table['\u115F'] = DROP;
+        table['\u1160'] = DROP;
+        table['\u3164'] = DROP;
+        table['\uFFA0'] = DROP;
+        loadTraditionalSimplified(table);
+        return table;
+    }
+
+    private static boolean[] buildWordChars() {
+        boolean[] wordChars = new boolean[Character.MAX_VALUE + 1];
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            char ch = (char) c;
+            if (Character.isDigit(ch)) {
+                wordChars[c] = true;
+            } else if (Character.isLetter(ch)) {
+                Character.UnicodeScript script = Character.UnicodeScript.of(c);
+                wordChars[c] = script == Character.UnicodeScript.LATIN || script == Character.UnicodeScript.GREEK
+                        || script == Character.UnicodeScript.CYRILLIC;
+            }
+        }
+        return wordChars;
+    }
+
+    private static boolean isFillerType(char c) {
+        return switch (Character.getType(c)) {
+            case Character.SPACE_SEPARATOR, Character.LINE_SEPARATOR, Character.PARAGRAPH_SEPARATOR,
+                 Character.CONTROL, Character.FORMAT,
+                 Character.NON_SPACING_MARK, Character.ENCLOSING_MARK,
+                 Character.CONNECTOR_PUNCTUATION, Character.DASH_PUNCTUATION,
+                 Character.START_PUNCTUATION, Character.END_PUNCTUATION,
+                 Character.INITIAL_QUOTE_PUNCTUATION, Character.FINAL_QUOTE_PUNCTUATION,
+                 Character.OTHER_PUNCTUATION,
+                 Character.MODIFIER_SYMBOL, Character.OTHER_SYMBOL -> true;
+            default -> false;
+        };
+    }
+
+    private static void loadTraditionalSimplified(char[] table) {
+        int count = 0;
+        try (var reader = new BufferedReader(new InputStreamReader(
+                new ClassPathResource(TRADITIONAL_SIMPLIFIED_FILE).getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                for (String pair : line.trim().split("\\s+")) {
+                    if (pair.length() == 2) {
+                        table[pair.charAt(0)] = pair.charAt(1);
+                        count++;
+                    }
+                }
+            }
+            log.info("加载繁简映射 {} 组", count);
+        } catch (Exception e) {
+            log.error("加载繁简映射文件 {} 失败，不做繁简转换", TRADITIONAL_SIMPLIFIED_FILE, e);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.mashang.bac.web.rag;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * 无词典中文分词
+ * <p>
+ * 项目里没有 jieba/HanLP 一类的分词库，这里从语料本身发现词：统计 2~4 字片段的频次、
+ * 凝固度(片段概率与任意切分后两部分概率乘积之比的最小值)以及左右邻字信息熵，
+ * 三项都达标的片段作为词表，分词时按词表正向最大匹配，匹配不上的汉字单字输出。
+ * 英文和数字按连续字母数字切分并转小写。
+ */
+public final class ChineseSegmenter {
+
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int MAX_WORD_LENGTH = 4;
+    private static final int MIN_FREQUENCY = 3;
+    private static final double MIN_COHESION = 5.0;
+    private static final double MIN_NEIGHBOR_ENTROPY = 1.0;
+
+    /**
+     * 词首、词尾出现这些字的片段基本都是"词 + 虚词"的组合，不进入词表
+     */
+    private static final String FUNCTION_CHARS = "的了是在和与及或也都就而并把被让给对从向这那你我他她它们吗呢吧啊呀很会要能可以之其中等个不没还又再更最如果因为所但却着过地得每些";
+
+    /**
+     * 边界标记，句首句尾都算作不同的邻字
+     */
+    private static final char BOUNDARY = '\0';
+
+    private final Set<String> vocabulary;
+
+    private ChineseSegmenter(Set<String> vocabulary) {
+        this.vocabulary = vocabulary;
+    }
+
+    /**
+     * 从语料发现词表，按文档并行统计
+     *
+     * @param corpus 语料
+     */
+    public static ChineseSegmenter train(Supplier<Stream<String>> corpus) {
+        NgramCounts counts = corpus.get().parallel()
+                .collect(NgramCounts::new, NgramCounts::add, NgramCounts::merge);
+        Set<String> vocabulary = new HashSet<>();
+        counts.ngrams.forEach((ngram, stats) -> {
+            if (ngram.length() >= MIN_WORD_LENGTH && stats.count >= MIN_FREQUENCY
+                    && FUNCTION_CHARS.indexOf(ngram.charAt(0)) < 0
+                    && FUNCTION_CHARS.indexOf(ngram.charAt(ngram.length() - 1)) < 0
+                    && counts.cohesion(ngram) >= MIN_COHESION
+                    && Math.min(entropy(stats.left), entropy(stats.right)) >= MIN_NEIGHBOR_ENTROPY) {
+                vocabulary.add(ngram);
+            }
+        });
+        return new ChineseSegmenter(Set.copyOf(vocabulary));
+    }
+
+    public int getVocabularySize() {
+        return vocabulary.size();
+    }
+
+    /**
+     * 分词
+     *
+     * @return 词序列，单个汉字也会输出，便于按位置计算共现
+     */
+    public List<String> segment(String text) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            char c = text.charAt(i);
+            if (isCjk(c)) {
+                int end = i + 1;
+                while (end < length && isCjk(text.charAt(end))) {
+                    end++;
+                }
+                segmentRun(text.substring(i, end), tokens);
+                i = end;
+            } else if (Character.isLetterOrDigit(c)) {
+                int end = i + 1;
+                while (end < length && Character.isLetterOrDigit(text.charAt(end)) && !isCjk(text.charAt(end))) {
+                    end++;
+                }
+                tokens.add(text.substring(i, end).toLowerCase());
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private void segmentRun(String run, List<String> tokens) {
+        int i = 0;
+        while (i < run.length()) {
+            int matched = 1;
+            for (int n = Math.min(MAX_WORD_LENGTH, run.length() - i); n >= MIN_WORD_LENGTH; n--) {
+                if (vocabulary.contains(run.substring(i, i + n))) {
+                    matched = n;
+                    break;
+                }
+            }
+            tokens.add(run.substring(i, i + matched));
+            i += matched;
+        }
+    }
+
+    static boolean isCjk(char c) {
+        return Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN;
+    }
+
+    private static double entropy(Map<Character, int[]> neighbors) {
+        int total = 0;
+        for (int[] count : neighbors.values()) {
+            total += count[0];
+        }
+        double entropy = 0;
+        for (Map.Entry<Character, int[]> entry : neighbors.entrySet()) {
+            if (entry.getKey() == BOUNDARY) {
+                // 每次出现在边界都视为一个不同的邻字
+                double p = 1.0 / total;
+                entropy -= entry.getValue()[0] * p * Math.log(p);
+            } else {
+                double p = (double) entry.getValue()[0] / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy;
+    }
+
+    /**
+     * 片段频次与左右邻字统计
+     */
+    private static final class NgramCounts {
+
+        private final Map<String, NgramStats> ngrams = new HashMap<>();
+        private long totalChars;
+
+        void add(String text) {
+            int i = 0;
+            while (i < text.length()) {
+                if (!isCjk(text.charAt(i))) {
+                    i++;
+                    continue;
+                }
+                int end = i + 1;
+                while (end < text.length() && isCjk(text.charAt(end))) {
+                    end++;
+                }
+                addRun(text.substring(i, end));
+                i = end;
+            }
+        }
+
+        private void addRun(String run) {
+            totalChars += run.length();
+            for (int start = 0; start < run.length(); start++) {
+                for (int n = 1; n <= MAX_WORD_LENGTH && start + n <= run.length(); n++) {
+                    NgramStats stats = ngrams.computeIfAbsent(run.substring(start, start + n), k -> new NgramStats());
+                    stats.count++;
+                    if (n >= MIN_WORD_LENGTH) {
+                        stats.neighbor(stats.left, start == 0 ? BOUNDARY : run.charAt(start - 1));
+                        stats.neighbor(stats.right, start + n == run.length() ? BOUNDARY : run.charAt(start + n));
+                    }
+                }
+            }
+        }
+
+        void merge(NgramCounts other) {
+            totalChars += other.totalChars;
+            other.ngrams.forEach((ngram, stats) -> ngrams.merge(ngram, stats, NgramStats::merge));
+        }
+
+        /**
+         * 凝固度：任意切分点上 p(词) / (p(左) * p(右)) 的最小值
+         */
+        double cohesion(String ngram) {
+            double whole = probability(ngram);
+            double min = Double.MAX_VALUE;
+            for (int split = 1; split < ngram.length(); split++) {
+                double parts = probability(ngram.substring(0, split)) * probability(ngram.substring(split));
+                min = Math.min(min, whole / parts);
+            }
+            return min;
+        }
+
+        private double probability(String ngram) {
+            NgramStats stats = ngrams.get(ngram);
+            return stats == null ? 0 : (double) stats.count / totalChars;
+        }
+    }
+
+    private static final class NgramStats {
+
+        private int count;
+        private final Map<Character, int[]> left = new HashMap<>();
+        private final Map<Character, int[]> right = new HashMap<>();
+
+        void neighbor(Map<Character, int[]> neighbors, char c) {
+            neighbors.computeIfAbsent(c, k -> new int[1])[0]++;
+        }
+
+        NgramStats merge(NgramStats other) {
+            count += other.count;
+            other.left.forEach((c, n) -> left.computeIfAbsent(c, k -> new int[1])[0] += n[0]);
+            other.right.forEach((c, n) -> right.computeIfAbsent(c, k -> new int[1])[0] += n[0]);
+            return this;
+        }
+    }
+}
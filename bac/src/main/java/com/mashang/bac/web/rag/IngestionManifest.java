@@ -0,0 +1,143 @@
+package com.mashang.bac.web.rag;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 向量入库清单
+ * <p>
+ * 记录每个已入库文档块的内容哈希、来源文件以及对应的向量行 id，
+ * 启动时按哈希比对即可知道哪些块是新增/修改的(需要打标签和向量化)，哪些已经删除(需要删掉向量行)。
+ * <p>
+ * 每个向量库(pgvector 表、本地 HNSW 目录)各有一份清单，按 (store, content_hash) 建主键，
+ * 切换向量库时不会把另一个库的入库记录当成自己的。
+ */
+@Component
+@Slf4j
+public class IngestionManifest {
+
+    private static final String TABLE_NAME = "vector_ingestion_manifest";
+
+    /**
+     * 加 store 列之前只有 pgvector 一个向量库，旧记录都归它
+     */
+    private static final String LEGACY_STORE = PgVectorTable.QUALIFIED_NAME;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public IngestionManifest(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * 建表
+     *
+     * @return 表是否为新建(新建说明之前入库的数据没有清单记录)
+     */
+    public boolean initializeSchema() {
+        boolean exists = tableExists();
+        jdbcTemplate.execute("""
+                CREATE TABLE IF NOT EXISTS %s (
+                    store VARCHAR(512) NOT NULL,
+                    content_hash CHAR(64) NOT NULL,
+                    source VARCHAR(512) NOT NULL,
+                    vector_ids TEXT NOT NULL,
+                    ingested_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+                    PRIMARY KEY (store, content_hash)
+                )""".formatted(TABLE_NAME));
+        if (exists) {
+            migrateStoreColumn();
+        }
+        return !exists;
+    }
+
+    /**
+     * 向量库的记录条数，表还不存在时为 0
+     *
+     * @param store 向量库标识
+     */
+    public int count(String store) {
+        if (!tableExists()) {
+            return 0;
+        }
+        Integer count = jdbcTemplate.queryForObject("SELECT count(*) FROM " + TABLE_NAME + " WHERE store = ?",
+                Integer.class, store);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 向量库已入库的全部记录
+     *
+     * @param store 向量库标识
+     * @return 内容哈希 -> 向量行 id
+     */
+    public Map<String, List<String>> load(String store) {
+        Map<String, List<String>> entries = new HashMap<>();
+        jdbcTemplate.query("SELECT content_hash, vector_ids FROM " + TABLE_NAME + " WHERE store = ?", rs -> {
+            entries.put(rs.getString(1), Arrays.asList(rs.getString(2).split(",")));
+        }, store);
+        return entries;
+    }
+
+    /**
+     * 批量记录入库的文档块
+     *
+     * @param store   向量库标识
+     * @param entries 内容哈希 -> (来源, 向量行 id)
+     */
+    public void save(String store, Map<String, Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<Object[]> args = entries.entrySet().stream()
+                .map(entry -> new Object[]{store, entry.getKey(), entry.getValue().source(),
+                        String.join(",", entry.getValue().vectorIds())})
+                .toList();
+        jdbcTemplate.batchUpdate("INSERT INTO " + TABLE_NAME + " (store, content_hash, source, vector_ids) "
+                + "VALUES (?, ?, ?, ?) ON CONFLICT (store, content_hash) DO UPDATE SET source = EXCLUDED.source, "
+                + "vector_ids = EXCLUDED.vector_ids, ingested_at = now()", args);
+    }
+
+    public void delete(String store, List<String> contentHashes) {
+        if (contentHashes.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("DELETE FROM " + TABLE_NAME + " WHERE store = ? AND content_hash = ?",
+                contentHashes.stream().map(hash -> new Object[]{store, hash}).toList());
+    }
+
+    private boolean tableExists() {
+        return Boolean.TRUE.equals(
+                jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, TABLE_NAME));
+    }
+
+    /**
+     * 旧表只以 content_hash 为主键，加上 store 列并改为联合主键
+     */
+    private void migrateStoreColumn() {
+        Boolean migrated = jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM information_schema.columns "
+                + "WHERE table_name = ? AND column_name = 'store')", Boolean.class, TABLE_NAME);
+        if (Boolean.TRUE.equals(migrated)) {
+            return;
+        }
+        jdbcTemplate.execute(("ALTER TABLE %1$s ADD COLUMN store VARCHAR(512) NOT NULL DEFAULT '%2$s', "
+                + "DROP CONSTRAINT %1$s_pkey, ADD PRIMARY KEY (store, content_hash)").formatted(TABLE_NAME, LEGACY_STORE));
+        jdbcTemplate.execute("ALTER TABLE " + TABLE_NAME + " ALTER COLUMN store DROP DEFAULT");
+        log.info("入库清单已按向量库分开，原有记录归入 {}", LEGACY_STORE);
+    }
+
+    /**
+     * 清单记录
+     *
+     * @param source    来源文件
+     * @param vectorIds 向量行 id
+     */
+    public record Entry(String source, List<String> vectorIds) {
+    }
+}
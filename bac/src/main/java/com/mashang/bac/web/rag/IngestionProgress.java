@@ -0,0 +1,149 @@
+package com.mashang.bac.web.rag;
+
+import com.mashang.bac.web.rag.pipeline.StageMetrics;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 向量库入库进度
+ * <p>
+ * 由后台入库任务更新，检索链路和状态查询只读
+ */
+public class IngestionProgress {
+
+    public enum State {
+        /**
+         * 等待应用启动完成
+         */
+        PENDING,
+        RUNNING,
+        READY,
+        /**
+         * 重试次数用尽，向量库保持上一次成功入库的数据
+         */
+        FAILED
+    }
+
+    private volatile State state = State.PENDING;
+    private volatile int existingChunks = -1;
+    private final AtomicInteger totalChunks = new AtomicInteger();
+    private final AtomicInteger pendingChunks = new AtomicInteger();
+    private final AtomicInteger processedChunks = new AtomicInteger();
+    private volatile List<StageMetrics> stageMetrics = List.of();
+    private volatile int attempts;
+    private volatile String lastError;
+    private volatile Runnable listener;
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * 入库前向量库中已有的文档块数，尚未读取清单时为 -1
+     */
+    public int getExistingChunks() {
+        return existingChunks;
+    }
+
+    /**
+     * 已读取的文档块数，流水线边读边处理，入库完成前会持续增长
+     */
+    public int getTotalChunks() {
+        return totalChunks.get();
+    }
+
+    /**
+     * 已发现的需要打标签和向量化的文档块数
+     */
+    public int getPendingChunks() {
+        return pendingChunks.get();
+    }
+
+    public int getProcessedChunks() {
+        return processedChunks.get();
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * 最近一次入库流水线各阶段的统计
+     */
+    public List<StageMetrics> getStageMetrics() {
+        return stageMetrics;
+    }
+
+    /**
+     * 向量库是否可以用于检索：入库已完成，或者已有上一次入库的数据
+     */
+    public boolean isServable() {
+        return state == State.READY || existingChunks > 0;
+    }
+
+    /**
+     * 读取清单后和入库完成时回调，用于切换就绪状态
+     */
+    void onChange(Runnable listener) {
+        this.listener = listener;
+    }
+
+    void start(int attempt) {
+        this.attempts = attempt;
+        this.state = State.RUNNING;
+        this.totalChunks.set(0);
+        this.pendingChunks.set(0);
+        this.processedChunks.set(0);
+    }
+
+    void planned(int existingChunks) {
+        this.existingChunks = existingChunks;
+        notifyListener();
+    }
+
+    void discovered(boolean pending) {
+        totalChunks.incrementAndGet();
+        if (pending) {
+            pendingChunks.incrementAndGet();
+        }
+    }
+
+    void processed(int chunks) {
+        processedChunks.addAndGet(chunks);
+    }
+
+    void stages(List<StageMetrics> stageMetrics) {
+        this.stageMetrics = List.copyOf(stageMetrics);
+    }
+
+    void ready() {
+        this.lastError = null;
+        this.state = State.READY;
+        notifyListener();
+    }
+
+    void failed(String error, boolean finalAttempt) {
+        this.lastError = error;
+        if (finalAttempt) {
+            this.state = State.FAILED;
+        }
+    }
+
+    private void notifyListener() {
+        Runnable current = listener;
+        if (current != null) {
+            current.run();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IngestionProgress{state=" + state + ", processed=" + processedChunks.get() + "/" + pendingChunks.get()
+                + ", total=" + totalChunks.get() + ", existing=" + existingChunks + ", attempts=" + attempts + "}";
+    }
+}
@@ -0,0 +1,90 @@
+package com.mashang.bac.web.rag;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 文档关键词缓存
+ * <p>
+ * 按正文哈希持久化大模型生成的关键词，内容没变的文档重新入库(清单丢失、入库流程版本变化等)时不再调用模型。
+ */
+@Component
+public class KeywordCache {
+
+    private static final String TABLE_NAME = "keyword_enrichment_cache";
+
+    /**
+     * 单条查询语句最多携带的哈希数
+     */
+    private static final int MAX_QUERY_KEYS = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+    private volatile boolean initialized;
+
+    public KeywordCache(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * 批量读取
+     *
+     * @param contentHashes 正文哈希
+     * @return 命中的 正文哈希 -> 关键词
+     */
+    public Map<String, String> getAll(Collection<String> contentHashes) {
+        if (contentHashes.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        initializeSchema();
+        List<String> hashes = List.copyOf(contentHashes);
+        Map<String, String> keywords = new HashMap<>();
+        for (int from = 0; from < hashes.size(); from += MAX_QUERY_KEYS) {
+            List<String> chunk = hashes.subList(from, Math.min(hashes.size(), from + MAX_QUERY_KEYS));
+            String placeholders = String.join(",", Collections.nCopies(chunk.size(), "?"));
+            jdbcTemplate.query("SELECT content_hash, keywords FROM " + TABLE_NAME
+                            + " WHERE content_hash IN (" + placeholders + ")",
+                    rs -> {
+                        keywords.put(rs.getString(1), rs.getString(2));
+                    }, chunk.toArray());
+        }
+        return keywords;
+    }
+
+    /**
+     * 批量写入
+     *
+     * @param keywords 正文哈希 -> 关键词
+     */
+    public void putAll(Map<String, String> keywords) {
+        if (keywords.isEmpty()) {
+            return;
+        }
+        initializeSchema();
+        jdbcTemplate.batchUpdate("INSERT INTO " + TABLE_NAME + " (content_hash, keywords) VALUES (?, ?) "
+                        + "ON CONFLICT (content_hash) DO UPDATE SET keywords = EXCLUDED.keywords",
+                keywords.entrySet().stream().map(entry -> new Object[]{entry.getKey(), entry.getValue()}).toList());
+    }
+
+    private void initializeSchema() {
+        if (initialized) {
+            return;
+        }
+        synchronized (this) {
+            if (!initialized) {
+                jdbcTemplate.execute("""
+                        CREATE TABLE IF NOT EXISTS %s (
+                            content_hash CHAR(64) PRIMARY KEY,
+                            keywords TEXT NOT NULL,
+                            created_at TIMESTAMPTZ NOT NULL DEFAULT now()
+                        )""".formatted(TABLE_NAME));
+                initialized = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.mashang.bac.web.rag;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * 本地关键词抽取
+ * <p>
+ * 不调用大模型：先用 {@link ChineseSegmenter} 从整个语料发现词表并统计文档频率，
+ * 每个文档块的关键词按 TF-IDF 与 TextRank 各自归一化后的得分之和取前几个。
+ * 语料统计和逐块抽取都按文档并行，用满所有核。
+ */
+@Component
+@Slf4j
+public class LocalKeywordExtractor {
+
+    private static final int TEXT_RANK_WINDOW = 5;
+    private static final int TEXT_RANK_ITERATIONS = 20;
+    private static final double TEXT_RANK_DAMPING = 0.85;
+
+    /**
+     * 候选词数不到关键词个数的这么多倍时降低置信度
+     */
+    private static final int CANDIDATE_FACTOR = 3;
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "我们", "你们", "他们", "她们", "自己", "什么", "怎么", "如何", "为什么", "这样", "那样", "这个", "那个",
+            "这些", "那些", "可以", "可能", "应该", "需要", "已经", "没有", "不是", "就是", "还是", "但是", "因为",
+            "所以", "如果", "或者", "而且", "然后", "一个", "一些", "一下", "时候", "问题", "回答", "非常", "比较",
+            "the", "and", "for", "with", "that", "this", "are", "you");
+
+    private volatile CorpusModel model;
+
+    /**
+     * 统计语料：词表和每个词的文档频率
+     *
+     * @param corpus 语料，会被遍历两次
+     */
+    public void fit(Supplier<Stream<String>> corpus) {
+        long begin = System.nanoTime();
+        ChineseSegmenter segmenter = ChineseSegmenter.train(corpus);
+        Map<String, Integer> documentFrequency = new ConcurrentHashMap<>();
+        LongAdder documents = new LongAdder();
+        corpus.get().parallel().forEach(text -> {
+            documents.increment();
+            new HashSet<>(segmenter.segment(text)).forEach(term -> documentFrequency.merge(term, 1, Integer::sum));
+        });
+        model = new CorpusModel(segmenter, Map.copyOf(documentFrequency), documents.sum());
+        log.info("本地关键词语料统计完成：{} 个文档块，词表 {} 个词，耗时 {} ms",
+                documents.sum(), segmenter.getVocabularySize(), (System.nanoTime() - begin) / 1_000_000);
+    }
+
+    public boolean isFitted() {
+        return model != null;
+    }
+
+    /**
+     * 抽取关键词
+     *
+     * @param text  正文
+     * @param count 关键词个数
+     * @return 关键词及置信度；候选词太少时置信度低
+     */
+    public Extraction extract(String text, int count) {
+        CorpusModel current = model;
+        if (current == null) {
+            throw new IllegalStateException("本地关键词抽取需要先统计语料");
+        }
+        List<String> tokens = current.segmenter().segment(text == null ? "" : text);
+        List<String> candidates = tokens.stream().filter(LocalKeywordExtractor::isCandidate).toList();
+        if (candidates.isEmpty()) {
+            return new Extraction(List.of(), 0);
+        }
+
+        Map<String, Double> tfIdf = new HashMap<>();
+        for (String term : candidates) {
+            tfIdf.merge(term, 1.0, Double::sum);
+        }
+        tfIdf.replaceAll((term, tf) -> tf / candidates.size()
+                * Math.log((current.documents() + 1.0) / (current.documentFrequency().getOrDefault(term, 0) + 1.0) + 1));
+        Map<String, Double> textRank = textRank(tokens);
+
+        double maxTfIdf = tfIdf.values().stream().mapToDouble(Double::doubleValue).max().orElse(1);
+        double maxTextRank = textRank.values().stream().mapToDouble(Double::doubleValue).max().orElse(1);
+        Map<String, Double> scores = new LinkedHashMap<>();
+        tfIdf.forEach((term, score) -> scores.put(term,
+                score / maxTfIdf + textRank.getOrDefault(term, 0.0) / maxTextRank));
+        List<String> keywords = scores.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue(Comparator.reverseOrder()))
+                .limit(count)
+                .map(Map.Entry::getKey)
+                .toList();
+
+        double confidence = Math.min(1.0, (double) keywords.size() / count)
+                * Math.min(1.0, (double) scores.size() / (count * CANDIDATE_FACTOR));
+        return new Extraction(keywords, confidence);
+    }
+
+    /**
+     * 抽取多篇，按文档并行
+     */
+    public List<Extraction> extractAll(List<String> texts, int count) {
+        return texts.parallelStream().map(text -> extract(text, count)).toList();
+    }
+
+    /**
+     * 候选词在窗口内共现构成无向图，迭代计算 PageRank
+     */
+    private static Map<String, Double> textRank(List<String> tokens) {
+        Map<String, Map<String, Integer>> edges = new HashMap<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            String term = tokens.get(i);
+            if (!isCandidate(term)) {
+                continue;
+            }
+            for (int j = i + 1; j < Math.min(tokens.size(), i + TEXT_RANK_WINDOW); j++) {
+                String other = tokens.get(j);
+                if (isCandidate(other) && !other.equals(term)) {
+                    edges.computeIfAbsent(term, k -> new HashMap<>()).merge(other, 1, Integer::sum);
+                    edges.computeIfAbsent(other, k -> new HashMap<>()).merge(term, 1, Integer::sum);
+                }
+            }
+        }
+        Map<String, Double> weightSums = new HashMap<>();
+        edges.forEach((term, neighbors) ->
+                weightSums.put(term, neighbors.values().stream().mapToDouble(Integer::doubleValue).sum()));
+
+        Map<String, Double> rank = new HashMap<>();
+        edges.keySet().forEach(term -> rank.put(term, 1.0));
+        for (int iteration = 0; iteration < TEXT_RANK_ITERATIONS; iteration++) {
+            Map<String, Double> next = new HashMap<>();
+            edges.forEach((term, neighbors) -> {
+                double sum = 0;
+                for (Map.Entry<String, Integer> neighbor : neighbors.entrySet()) {
+                    sum += neighbor.getValue() / weightSums.get(neighbor.getKey()) * rank.get(neighbor.getKey());
+                }
+                next.put(term, 1 - TEXT_RANK_DAMPING + TEXT_RANK_DAMPING * sum);
+            });
+            rank.putAll(next);
+        }
+        return rank;
+    }
+
+    private static boolean isCandidate(String term) {
+        if (term.length() < 2 || STOP_WORDS.contains(term)) {
+            return false;
+        }
+        // 纯数字不作为关键词
+        return !term.chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * 抽取结果
+     *
+     * @param keywords   关键词，按得分从高到低
+     * @param confidence 置信度 0~1
+     */
+    public record Extraction(List<String> keywords, double confidence) {
+
+        /**
+         * 与大模型生成的格式一致：英文逗号分隔
+         */
+        public String joined() {
+            return String.join(",", keywords);
+        }
+    }
+
+    private record CorpusModel(ChineseSegmenter segmenter, Map<String, Integer> documentFrequency, long documents) {
+    }
+}
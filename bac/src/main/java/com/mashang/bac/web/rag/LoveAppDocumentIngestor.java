@@ -0,0 +1,338 @@
+package com.mashang.bac.web.rag;
+
+import com.mashang.bac.web.rag.hnsw.HnswVectorStore;
+import com.mashang.bac.web.rag.pipeline.IngestionPipeline;
+import com.mashang.bac.web.rag.pipeline.StageMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.BatchingStrategy;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.embedding.TokenCountBatchingStrategy;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.pgvector.PgVectorStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 恋爱助手文档增量入库
+ * <p>
+ * 按内容哈希与 {@link IngestionManifest} 比对：只对新增或修改过的文档块打标签、向量化并写入，
+ * 已删除的块删掉对应的向量行，内容没变时重启不产生任何模型调用。
+ * 向量行 id 由内容哈希生成，即使清单丢失重新入库也只会覆盖原有行，不会产生重复数据。
+ * <p>
+ * 入库按 加载 → 切分 → 打标签 → 向量化 → 写入 组成 {@link IngestionPipeline}，文档逐个文件流过各阶段，
+ * 打标签和向量化这两个等待模型返回的阶段用虚拟线程并发执行，和读文件、写库相互重叠。
+ */
+@Component
+@Slf4j
+public class LoveAppDocumentIngestor {
+
+    /**
+     * 入库流程(打标签方式、元数据等)变化时加一，所有文档会重新入库
+     */
+    private static final int INGESTION_VERSION = 1;
+
+    /**
+     * 每批打标签、向量化的文档块数，按批写入向量和清单，失败重试时已完成的批次不会重复处理
+     */
+    private static final int BATCH_SIZE = 10;
+
+    private static final String SOURCE_METADATA_KEY = "filename";
+
+    private final LoveAppDocumentLoader loveAppDocumentLoader;
+    private final MyTokenTextSplitter myTokenTextSplitter;
+    private final MyKeywordEnricher myKeywordEnricher;
+    private final EmbeddingModel cachingEmbeddingModel;
+    private final IngestionManifest ingestionManifest;
+    private final JdbcTemplate jdbcTemplate;
+    private final BatchingStrategy batchingStrategy = new TokenCountBatchingStrategy();
+    private final boolean splitEnabled;
+    private final int queueCapacity;
+    private final int loadParallelism;
+    private final int splitParallelism;
+    private final int enrichParallelism;
+    private final int embedParallelism;
+    private final int writeParallelism;
+
+    public LoveAppDocumentIngestor(LoveAppDocumentLoader loveAppDocumentLoader, MyTokenTextSplitter myTokenTextSplitter,
+                                   MyKeywordEnricher myKeywordEnricher, EmbeddingModel cachingEmbeddingModel,
+                                   IngestionManifest ingestionManifest, JdbcTemplate jdbcTemplate,
+                                   @Value("${app.rag.ingestion.split-enabled:false}") boolean splitEnabled,
+                                   @Value("${app.rag.ingestion.pipeline.queue-capacity:64}") int queueCapacity,
+                                   @Value("${app.rag.ingestion.pipeline.load-parallelism:2}") int loadParallelism,
+                                   @Value("${app.rag.ingestion.pipeline.split-parallelism:2}") int splitParallelism,
+                                   @Value("${app.rag.ingestion.pipeline.enrich-parallelism:4}") int enrichParallelism,
+                                   @Value("${app.rag.ingestion.pipeline.embed-parallelism:2}") int embedParallelism,
+                                   @Value("${app.rag.ingestion.pipeline.write-parallelism:1}") int writeParallelism) {
+        this.loveAppDocumentLoader = loveAppDocumentLoader;
+        this.myTokenTextSplitter = myTokenTextSplitter;
+        this.myKeywordEnricher = myKeywordEnricher;
+        this.cachingEmbeddingModel = cachingEmbeddingModel;
+        this.ingestionManifest = ingestionManifest;
+        this.jdbcTemplate = jdbcTemplate;
+        this.splitEnabled = splitEnabled;
+        this.queueCapacity = queueCapacity;
+        this.loadParallelism = loadParallelism;
+        this.splitParallelism = splitParallelism;
+        this.enrichParallelism = enrichParallelism;
+        this.embedParallelism = embedParallelism;
+        this.writeParallelism = writeParallelism;
+    }
+
+    /**
+     * 向量库中已入库的文档块数，只查清单条数，不加载文档；本地向量库为空时清单不可信，返回 0
+     *
+     * @param vectorStore 向量库
+     */
+    public int existingChunks(VectorStore vectorStore) {
+        if (vectorStore instanceof HnswVectorStore hnswVectorStore && hnswVectorStore.isEmpty()) {
+            return 0;
+        }
+        return ingestionManifest.count(storeKey(vectorStore));
+    }
+
+    /**
+     * 把 classpath 下的文档增量同步到向量库
+     *
+     * @param vectorStore 向量库
+     * @return 同步结果
+     */
+    public IngestionReport ingest(VectorStore vectorStore) {
+        return ingest(vectorStore, new IngestionProgress());
+    }
+
+    /**
+     * 把 classpath 下的文档增量同步到向量库，并更新进度
+     *
+     * @param vectorStore 向量库
+     * @param progress    进度
+     * @return 同步结果
+     */
+    public IngestionReport ingest(VectorStore vectorStore, IngestionProgress progress) {
+        boolean freshManifest = ingestionManifest.initializeSchema();
+        String store = storeKey(vectorStore);
+        List<Resource> resources = loveAppDocumentLoader.listMarkdowns();
+        if (freshManifest && vectorStore instanceof PgVectorStore) {
+            removeUntrackedRows(resources);
+        }
+
+        Map<String, List<String>> existing = ingestionManifest.load(store);
+        if (vectorStore instanceof HnswVectorStore hnswVectorStore && hnswVectorStore.isEmpty() && !existing.isEmpty()) {
+            // 清单在数据库里，本地向量库为空(文件被删除或换了机器)时清单不可信，全部重新入库
+            log.info("本地向量库为空，忽略入库清单中的 {} 条记录", existing.size());
+            existing.clear();
+        }
+        progress.planned(existing.size());
+        // 流过的所有块的哈希，用于去重以及最后找出已删除的块；只存哈希，不持有文档内容
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger added = new AtomicInteger();
+        AtomicBoolean corpusFitted = new AtomicBoolean(!myKeywordEnricher.requiresCorpus());
+
+        List<StageMetrics> stages = IngestionPipeline.from(resources, queueCapacity)
+                .flatMap("load", loadParallelism, false, loveAppDocumentLoader::loadMarkdown)
+                .flatMap("split", splitParallelism, false, document -> split(document, existing, seen, progress))
+                .batch(BATCH_SIZE)
+                .map("enrich", enrichParallelism, true, batch -> enrich(batch, resources, corpusFitted))
+                .map("embed", embedParallelism, true, batch -> embed(vectorStore, batch))
+                .forEach("write", writeParallelism, false, batch -> {
+                    write(vectorStore, store, batch);
+                    added.addAndGet(batch.chunks().size());
+                    progress.processed(batch.chunks().size());
+                });
+        progress.stages(stages);
+        stages.forEach(stage -> log.info("入库阶段 {}", stage));
+
+        List<String> removedHashes = new ArrayList<>();
+        List<String> removedIds = new ArrayList<>();
+        existing.forEach((hash, vectorIds) -> {
+            if (!seen.contains(hash)) {
+                removedHashes.add(hash);
+                removedIds.addAll(vectorIds);
+            }
+        });
+        if (!removedIds.isEmpty()) {
+            vectorStore.delete(removedIds);
+        }
+        ingestionManifest.delete(store, removedHashes);
+
+        IngestionReport report = new IngestionReport(seen.size(), added.get(), removedHashes.size(),
+                seen.size() - added.get());
+        log.info("文档入库完成：共 {} 块，新增/修改 {}，删除 {}，未变化 {}",
+                report.total(), report.added(), report.removed(), report.unchanged());
+        return report;
+    }
+
+    /**
+     * 切分阶段：按需切分，计算内容哈希，去掉重复块和已入库的块
+     */
+    private List<Chunk> split(Document document, Map<String, List<String>> existing, Set<String> seen,
+                              IngestionProgress progress) {
+        List<Document> pieces = pieces(document);
+        List<Chunk> pending = new ArrayList<>(pieces.size());
+        for (Document piece : pieces) {
+            String hash = contentHash(piece);
+            if (!seen.add(hash)) {
+                continue;
+            }
+            boolean changed = !existing.containsKey(hash);
+            progress.discovered(changed);
+            if (changed) {
+                String id = UUID.nameUUIDFromBytes(hash.getBytes(StandardCharsets.UTF_8)).toString();
+                pending.add(new Chunk(hash, new Document(id, piece.getText(), new HashMap<>(piece.getMetadata()))));
+            }
+        }
+        return pending;
+    }
+
+    private List<Document> pieces(Document document) {
+        return splitEnabled ? myTokenTextSplitter.splitCustomized(List.of(document)) : List.of(document);
+    }
+
+    /**
+     * 打标签阶段；本地抽取关键词时，第一批到达前先统计一遍全部语料，没有新增块时不做统计
+     */
+    private List<Chunk> enrich(List<Chunk> batch, List<Resource> resources, AtomicBoolean corpusFitted) {
+        if (!corpusFitted.get()) {
+            synchronized (corpusFitted) {
+                if (!corpusFitted.get()) {
+                    myKeywordEnricher.fitCorpus(() -> resources.stream()
+                            .flatMap(resource -> loveAppDocumentLoader.loadMarkdown(resource).stream())
+                            .flatMap(document -> pieces(document).stream())
+                            .map(Document::getText));
+                    corpusFitted.set(true);
+                }
+            }
+        }
+        List<Document> enriched = myKeywordEnricher.enrichDocuments(batch.stream().map(Chunk::document).toList());
+        List<Chunk> chunks = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            chunks.add(new Chunk(batch.get(i).hash(), enriched.get(i)));
+        }
+        return chunks;
+    }
+
+    /**
+     * 向量化阶段：pgvector 和本地 HNSW 直接在这里算好向量，其他向量库由 add 自行向量化
+     */
+    private EmbeddedBatch embed(VectorStore vectorStore, List<Chunk> batch) {
+        if (!(vectorStore instanceof PgVectorStore) && !(vectorStore instanceof HnswVectorStore)) {
+            return new EmbeddedBatch(batch, null);
+        }
+        List<float[]> embeddings = cachingEmbeddingModel.embed(batch.stream().map(Chunk::document).toList(),
+                EmbeddingOptionsBuilder.builder().build(), batchingStrategy);
+        return new EmbeddedBatch(batch, embeddings);
+    }
+
+    /**
+     * 写入阶段：先写向量再记清单，中途失败下次会按相同 id 重新写入
+     */
+    private void write(VectorStore vectorStore, String store, EmbeddedBatch batch) {
+        List<Document> documents = batch.chunks().stream().map(Chunk::document).toList();
+        if (batch.embeddings() == null) {
+            vectorStore.add(documents);
+        } else if (vectorStore instanceof HnswVectorStore hnswVectorStore) {
+            hnswVectorStore.add(documents, batch.embeddings());
+        } else {
+            PgVectorTable.upsert(jdbcTemplate, documents, batch.embeddings());
+        }
+        Map<String, IngestionManifest.Entry> entries = new LinkedHashMap<>();
+        for (Chunk chunk : batch.chunks()) {
+            entries.put(chunk.hash(), new IngestionManifest.Entry(
+                    String.valueOf(chunk.document().getMetadata().get(SOURCE_METADATA_KEY)),
+                    List.of(chunk.document().getId())));
+        }
+        ingestionManifest.save(store, entries);
+    }
+
+    /**
+     * 清单里区分向量库的标识：pgvector 为表名，本地 HNSW 为索引目录
+     */
+    static String storeKey(VectorStore vectorStore) {
+        if (vectorStore instanceof PgVectorStore) {
+            return PgVectorTable.QUALIFIED_NAME;
+        }
+        if (vectorStore instanceof HnswVectorStore hnswVectorStore) {
+            return "hnsw:" + hnswVectorStore.getDirectory().toAbsolutePath().normalize();
+        }
+        return vectorStore.getName();
+    }
+
+    /**
+     * 清单建立之前每次启动都会全量插入一遍，删掉这些来源文件下没有清单记录的旧行
+     */
+    private void removeUntrackedRows(List<Resource> resources) {
+        Set<String> sources = new LinkedHashSet<>();
+        for (Resource resource : resources) {
+            if (resource.getFilename() != null) {
+                sources.add(resource.getFilename());
+            }
+        }
+        if (sources.isEmpty()) {
+            return;
+        }
+        int deleted = PgVectorTable.deleteByMetadata(jdbcTemplate, SOURCE_METADATA_KEY, sources);
+        log.info("首次建立入库清单，清理旧数据 {} 行", deleted);
+    }
+
+    /**
+     * 内容哈希：入库流程版本 + 正文 + 按键排序的元数据
+     */
+    static String contentHash(Document document) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Integer.toString(INGESTION_VERSION).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(document.getText()).getBytes(StandardCharsets.UTF_8));
+            for (Map.Entry<String, Object> entry : new TreeMap<>(document.getMetadata()).entrySet()) {
+                digest.update((byte) 0);
+                digest.update((entry.getKey() + "=" + entry.getValue()).getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 同步结果
+     *
+     * @param total     当前文档块总数
+     * @param added     新增或修改的块数
+     * @param removed   删除的块数
+     * @param unchanged 未变化的块数
+     */
+    public record IngestionReport(int total, int added, int removed, int unchanged) {
+    }
+
+    /**
+     * 待入库的文档块
+     */
+    private record Chunk(String hash, Document document) {
+    }
+
+    /**
+     * 向量化后的一批文档块，embeddings 为空表示由向量库自行向量化
+     */
+    private record EmbeddedBatch(List<Chunk> chunks, List<float[]> embeddings) {
+    }
+}
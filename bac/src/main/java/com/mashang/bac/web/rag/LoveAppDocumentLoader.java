@@ -35,34 +35,52 @@ public class LoveAppDocumentLoader {
     public List<Document> loadMarkdowns() {
         //用来存放md转成Document后的list
         List<Document> allDocuments = new ArrayList<>();
+        //依次读取
+        for (Resource resource : listMarkdowns()) {
+            allDocuments.addAll(loadMarkdown(resource));
+        }
+        return allDocuments;
+    }
+
+    /**
+     * 列出所有md文档，只获取资源不读取内容，供入库流水线逐个加载
+     *
+     * @return
+     */
+    public List<Resource> listMarkdowns() {
         try {
             //springai读取md的方法
-            Resource[] resources = resourcePatternResolver.getResources("classpath:document/*.md");
-            //依次读取
-            for (Resource resource : resources) {
-                //获取名称
-                String fileName = resource.getFilename();
-                //直接切分文件名称来作为标签
-                String status = fileName.substring(fileName.length() - 6, fileName.length() - 4);
-                //初始化mdconfig配置
-                MarkdownDocumentReaderConfig config = MarkdownDocumentReaderConfig.builder()
-                        .withHorizontalRuleCreateDocument(true)
-                        .withIncludeCodeBlock(false)
-                        .withIncludeBlockquote(false)
-                        //名称源信息
-                        .withAdditionalMetadata("filename", fileName)
-                        //恋爱状态源信息-相当于给每个文章打上标签，下次查找会先按照标签找，更高效
-                        .withAdditionalMetadata("status", status)
-                        .build();
-                //转成mdDocument对象
-                MarkdownDocumentReader reader = new MarkdownDocumentReader(resource, config);
-                allDocuments.addAll(reader.get());
-            }
+            return List.of(resourcePatternResolver.getResources("classpath:document/*.md"));
         } catch (IOException e) {
             log.error("Markdown 文档加载失败", e);
             throw new BusinessException(ErrorCode.SYSTEM_ERROR, "Markdown 文档加载失败");
         }
-        return allDocuments;
+    }
+
+    /**
+     * 加载单个md文档
+     *
+     * @param resource
+     * @return
+     */
+    public List<Document> loadMarkdown(Resource resource) {
+        //获取名称
+        String fileName = resource.getFilename();
+        //直接切分文件名称来作为标签
+        String status = fileName.substring(fileName.length() - 6, fileName.length() - 4);
+        //初始化mdconfig配置
+        MarkdownDocumentReaderConfig config = MarkdownDocumentReaderConfig.builder()
+                .withHorizontalRuleCreateDocument(true)
+                .withIncludeCodeBlock(false)
+                .withIncludeBlockquote(false)
+                //名称源信息
+                .withAdditionalMetadata("filename", fileName)
+                //恋爱状态源信息-相当于给每个文章打上标签，下次查找会先按照标签找，更高效
+                .withAdditionalMetadata("status", status)
+                .build();
+        //转成mdDocument对象
+        MarkdownDocumentReader reader = new MarkdownDocumentReader(resource, config);
+        return reader.get();
     }
 
 }
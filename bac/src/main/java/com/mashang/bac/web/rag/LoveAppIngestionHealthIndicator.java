@@ -0,0 +1,46 @@
+package com.mashang.bac.web.rag;
+
+import com.mashang.bac.web.rag.pipeline.StageMetrics;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * 恋爱知识库入库健康检查-在 /actuator/health 的 loveAppIngestion 组件下报告入库进度
+ * <p>
+ * 向量库可用于检索时为 UP(入库中但已有上一次的数据也算)；首次入库尚未完成为 OUT_OF_SERVICE；
+ * 重试次数用尽且没有任何数据为 DOWN。
+ */
+@Component("loveAppIngestion")
+public class LoveAppIngestionHealthIndicator implements HealthIndicator {
+
+    private final LoveAppIngestionTask loveAppIngestionTask;
+
+    public LoveAppIngestionHealthIndicator(LoveAppIngestionTask loveAppIngestionTask) {
+        this.loveAppIngestionTask = loveAppIngestionTask;
+    }
+
+    @Override
+    public Health health() {
+        IngestionProgress progress = loveAppIngestionTask.getProgress();
+        Health.Builder builder;
+        if (progress.isServable()) {
+            builder = Health.up();
+        } else if (progress.getState() == IngestionProgress.State.FAILED) {
+            builder = Health.down();
+        } else {
+            builder = Health.outOfService();
+        }
+        builder.withDetail("state", progress.getState())
+                .withDetail("existingChunks", progress.getExistingChunks())
+                .withDetail("totalChunks", progress.getTotalChunks())
+                .withDetail("pendingChunks", progress.getPendingChunks())
+                .withDetail("processedChunks", progress.getProcessedChunks())
+                .withDetail("attempts", progress.getAttempts())
+                .withDetail("stages", progress.getStageMetrics().stream().map(StageMetrics::toString).toList());
+        if (progress.getLastError() != null) {
+            builder.withDetail("lastError", progress.getLastError());
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,163 @@
+package com.mashang.bac.web.rag;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 恋爱助手向量库后台入库任务
+ * <p>
+ * 应用启动完成后在后台线程执行 {@link LoveAppDocumentIngestor}，启动过程不再等待文档加载、打标签和向量化，
+ * 模型调用失败也不会导致启动失败，按指数退避重试。
+ * <p>
+ * 向量库还没有任何数据时(首次部署)把应用的就绪状态(ReadinessState)置为 REFUSING_TRAFFIC，
+ * /actuator/health/readiness 会随之变化，负载均衡不会把流量转发过来；
+ * 已有上一次入库的数据时保持就绪，检索直接使用已有数据，新数据入库完成后自动生效。
+ * 已有的文档块数在启动事件里同步读取，就绪状态发布之前检索链路就能判断向量库是否可用。
+ * 入库进度见 {@link LoveAppIngestionHealthIndicator}。
+ */
+@Component
+@Slf4j
+public class LoveAppIngestionTask implements DisposableBean {
+
+    /**
+     * 向量库不可用时检索类对话的回复
+     */
+    public static final String WARMING_MESSAGE = "恋爱知识库正在初始化，请稍后再试～";
+
+    private static final Duration INITIAL_BACKOFF = Duration.ofSeconds(10);
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+
+    private final LoveAppDocumentIngestor loveAppDocumentIngestor;
+    private final VectorStore loveAppVectorStore;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ApplicationAvailability applicationAvailability;
+    private final int maxAttempts;
+    private final IngestionProgress progress = new IngestionProgress();
+
+    private volatile Thread worker;
+    // 是否由本任务把就绪状态置为了拒绝流量，只在入库线程上读写
+    private boolean refusing;
+
+    public LoveAppIngestionTask(LoveAppDocumentIngestor loveAppDocumentIngestor, VectorStore loveAppVectorStore,
+                                ApplicationEventPublisher eventPublisher,
+                                ApplicationAvailability applicationAvailability,
+                                @Value("${app.rag.ingestion.max-attempts:5}") int maxAttempts) {
+        this.loveAppDocumentIngestor = loveAppDocumentIngestor;
+        this.loveAppVectorStore = loveAppVectorStore;
+        this.eventPublisher = eventPublisher;
+        this.applicationAvailability = applicationAvailability;
+        this.maxAttempts = maxAttempts;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        try {
+            progress.planned(loveAppDocumentIngestor.existingChunks(loveAppVectorStore));
+        } catch (Exception e) {
+            // 数据库暂不可用时交给后台入库线程，读取清单后再更新
+            log.warn("读取入库清单失败，向量库可用状态待入库任务确定", e);
+        }
+        Thread thread = new Thread(this::run, "love-app-ingestion");
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+    }
+
+    /**
+     * 入库进度
+     */
+    public IngestionProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * 向量库是否可以用于检索
+     */
+    public boolean isServable() {
+        return progress.isServable();
+    }
+
+    @Override
+    public void destroy() {
+        Thread thread = worker;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        // Spring Boot 在 ApplicationReadyEvent 之后才发布 ACCEPTING_TRAFFIC，等它发布后再调整就绪状态
+        if (!awaitAcceptingTraffic()) {
+            return;
+        }
+        progress.onChange(this::refreshReadiness);
+        Duration backoff = INITIAL_BACKOFF;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            progress.start(attempt);
+            try {
+                loveAppDocumentIngestor.ingest(loveAppVectorStore, progress);
+                progress.ready();
+                log.info("向量库入库完成: {}", progress);
+                return;
+            } catch (Exception e) {
+                boolean finalAttempt = attempt == maxAttempts;
+                progress.failed(e.getMessage(), finalAttempt);
+                log.error("向量库入库失败(第 {}/{} 次){}", attempt, maxAttempts,
+                        finalAttempt ? "，保留已有数据" : "，" + backoff.toSeconds() + " 秒后重试", e);
+                if (finalAttempt) {
+                    break;
+                }
+                try {
+                    Thread.sleep(backoff.toMillis());
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = backoff.multipliedBy(2).compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : backoff.multipliedBy(2);
+            }
+        }
+        // 重试用尽也恢复就绪，普通对话照常可用，检索类对话返回初始化提示
+        if (refusing) {
+            refusing = false;
+            AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+        }
+    }
+
+    private boolean awaitAcceptingTraffic() {
+        while (applicationAvailability.getReadinessState() != ReadinessState.ACCEPTING_TRAFFIC) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按当前是否可检索切换就绪状态，只在入库线程上调用
+     */
+    private void refreshReadiness() {
+        boolean servable = progress.isServable();
+        if (!servable && !refusing) {
+            refusing = true;
+            AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+            log.info("向量库尚无数据，入库完成前暂停接收流量");
+        } else if (servable && refusing) {
+            refusing = false;
+            AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+        }
+    }
+}
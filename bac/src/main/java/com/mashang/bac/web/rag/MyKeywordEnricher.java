@@ -1,28 +1,318 @@
 package com.mashang.bac.web.rag;
 
-import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.transformer.KeywordMetadataEnricher;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * 文章自动添加源信息方法
+ * <p>
+ * 与 {@link KeywordMetadataEnricher} 一样把关键词写入 excerpt_keywords 元数据，但是：
+ * 多篇文档合并成一次模型调用，按编号解析出每篇的关键词；同时进行的模型调用数有上限；
+ * 关键词按正文哈希存入 {@link KeywordCache}，内容没变的文档不再调用模型。
+ * <p>
+ * 批量入库时可以改用 {@link LocalKeywordExtractor} 在本地抽取(local)，
+ * 或者先本地抽取、只把置信度低的文档交给大模型(hybrid)。
  */
 @Component
 @Slf4j
 public class MyKeywordEnricher {
 
-    @Resource
-    private ChatModel dashscopeChatModel;
+    /**
+     * 与 KeywordMetadataEnricher 使用同一个元数据键，检索侧无需改动
+     */
+    public static final String KEYWORDS_METADATA_KEY = "excerpt_keywords";
 
-    //ai打文章标签内置方法-此处打5个(每个文章)
+    //ai打文章标签-此处打5个(每个文章)
+    private static final int KEYWORD_COUNT = 5;
+
+    /**
+     * 提示词变化时加一，缓存随之失效
+     */
+    private static final int PROMPT_VERSION = 1;
+
+    /**
+     * 单次调用携带的正文总字符数上限，超过后拆成多次调用
+     */
+    private static final int MAX_CHARS_PER_CALL = 12000;
+
+    private static final String BATCH_PROMPT = """
+            下面有 %d 篇文档，每篇以 [编号] 开头。请为每篇文档分别给出 %d 个不重复的关键词，关键词之间用英文逗号分隔。
+            严格按照下面的格式逐行输出，每篇一行，不要输出其他内容：
+            [1] 关键词,关键词,关键词
+            [2] 关键词,关键词,关键词
+
+            %s""";
+
+    private static final Pattern BATCH_LINE = Pattern.compile("^\\s*\\[(\\d+)]\\s*[:：]?\\s*(.+?)\\s*$",
+            Pattern.MULTILINE);
+
+    private final ChatModel dashscopeChatModel;
+    private final KeywordCache keywordCache;
+    private final LocalKeywordExtractor localKeywordExtractor;
+    private final Mode mode;
+    private final double minLocalConfidence;
+    private final int documentsPerCall;
+    private final Semaphore concurrentCalls;
+    private final LongAdder modelCalls = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder localExtractions = new LongAdder();
+
+    public MyKeywordEnricher(ChatModel dashscopeChatModel, KeywordCache keywordCache,
+                             LocalKeywordExtractor localKeywordExtractor,
+                             @Value("${app.rag.keyword.mode:llm}") Mode mode,
+                             @Value("${app.rag.keyword.min-local-confidence:0.6}") double minLocalConfidence,
+                             @Value("${app.rag.keyword.documents-per-call:5}") int documentsPerCall,
+                             @Value("${app.rag.keyword.max-concurrency:4}") int maxConcurrency) {
+        this.dashscopeChatModel = dashscopeChatModel;
+        this.keywordCache = keywordCache;
+        this.localKeywordExtractor = localKeywordExtractor;
+        this.mode = mode;
+        this.minLocalConfidence = minLocalConfidence;
+        this.documentsPerCall = Math.max(1, documentsPerCall);
+        this.concurrentCalls = new Semaphore(Math.max(1, maxConcurrency));
+    }
+
+    /**
+     * 关键词生成方式
+     */
+    public enum Mode {
+        /**
+         * 全部由大模型生成
+         */
+        LLM,
+        /**
+         * 全部本地抽取
+         */
+        LOCAL,
+        /**
+         * 先本地抽取，置信度低的再交给大模型
+         */
+        HYBRID
+    }
+
+    /**
+     * 本地抽取需要先统计整个语料
+     */
+    public boolean requiresCorpus() {
+        return mode != Mode.LLM;
+    }
+
+    /**
+     * 统计语料，供本地抽取计算词表和逆文档频率
+     *
+     * @param corpus 全部文档块正文，会被遍历两次
+     */
+    public void fitCorpus(Supplier<Stream<String>> corpus) {
+        if (requiresCorpus()) {
+            localKeywordExtractor.fit(corpus);
+        }
+    }
+
+    /**
+     * 为文档添加关键词元数据，返回传入的同一批文档
+     */
     public List<Document> enrichDocuments(List<Document> documents) {
-        KeywordMetadataEnricher enricher = new KeywordMetadataEnricher(this.dashscopeChatModel, 5);
-        return enricher.apply(documents);
+        if (mode == Mode.LLM) {
+            enrichWithModel(documents);
+            return documents;
+        }
+        if (!localKeywordExtractor.isFitted()) {
+            log.warn("未统计语料，使用本批文档统计");
+            localKeywordExtractor.fit(() -> documents.stream().map(Document::getText));
+        }
+        List<LocalKeywordExtractor.Extraction> extractions = localKeywordExtractor.extractAll(
+                documents.stream().map(Document::getText).toList(), KEYWORD_COUNT);
+        List<Document> lowConfidence = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            LocalKeywordExtractor.Extraction extraction = extractions.get(i);
+            if (mode == Mode.LOCAL || extraction.confidence() >= minLocalConfidence) {
+                documents.get(i).getMetadata().put(KEYWORDS_METADATA_KEY, extraction.joined());
+                localExtractions.increment();
+            } else {
+                lowConfidence.add(documents.get(i));
+            }
+        }
+        if (!lowConfidence.isEmpty()) {
+            enrichWithModel(lowConfidence);
+        }
+        return documents;
+    }
+
+    /**
+     * 累计本地抽取的文档数
+     */
+    public long getLocalExtractions() {
+        return localExtractions.sum();
     }
 
+    /**
+     * 大模型生成：先查缓存，未命中的批量调用
+     */
+    private void enrichWithModel(List<Document> documents) {
+        Map<String, List<Document>> byHash = new LinkedHashMap<>();
+        for (Document document : documents) {
+            byHash.computeIfAbsent(keywordHash(document.getText()), hash -> new ArrayList<>()).add(document);
+        }
+        Map<String, String> keywords = new HashMap<>(keywordCache.getAll(byHash.keySet()));
+        cacheHits.add(keywords.size());
+
+        List<Map.Entry<String, String>> misses = new ArrayList<>();
+        byHash.forEach((hash, group) -> {
+            if (!keywords.containsKey(hash)) {
+                misses.add(Map.entry(hash, group.get(0).getText()));
+            }
+        });
+        if (!misses.isEmpty()) {
+            Map<String, String> generated = generate(misses);
+            keywordCache.putAll(generated);
+            keywords.putAll(generated);
+        }
+
+        byHash.forEach((hash, group) -> group.forEach(document ->
+                document.getMetadata().put(KEYWORDS_METADATA_KEY, keywords.get(hash))));
+    }
+
+    /**
+     * 累计模型调用次数
+     */
+    public long getModelCalls() {
+        return modelCalls.sum();
+    }
+
+    /**
+     * 累计命中缓存的文档数
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * 把未命中的文档按篇数和字数分组，各组并发调用模型
+     */
+    private Map<String, String> generate(List<Map.Entry<String, String>> misses) {
+        List<List<Map.Entry<String, String>>> calls = new ArrayList<>();
+        List<Map.Entry<String, String>> current = new ArrayList<>();
+        int chars = 0;
+        for (Map.Entry<String, String> miss : misses) {
+            int length = miss.getValue().length();
+            if (!current.isEmpty() && (current.size() == documentsPerCall || chars + length > MAX_CHARS_PER_CALL)) {
+                calls.add(current);
+                current = new ArrayList<>();
+                chars = 0;
+            }
+            current.add(miss);
+            chars += length;
+        }
+        calls.add(current);
+
+        Map<String, String> generated = new ConcurrentHashMap<>();
+        if (calls.size() == 1) {
+            generated.putAll(callBatch(calls.get(0)));
+            return generated;
+        }
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Map<String, String>>> futures = calls.stream()
+                    .map(call -> executor.submit(() -> callBatch(call)))
+                    .toList();
+            for (Future<Map<String, String>> future : futures) {
+                generated.putAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException
+                    ? runtimeException : new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("关键词生成被中断", e);
+        }
+        return generated;
+    }
+
+    /**
+     * 一次调用生成多篇文档的关键词；回复里缺少的文档单独再调用一次
+     */
+    private Map<String, String> callBatch(List<Map.Entry<String, String>> batch) {
+        Map<String, String> keywords = new HashMap<>();
+        if (batch.size() > 1) {
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) {
+                body.append('[').append(i + 1).append("] ").append(batch.get(i).getValue().strip()).append("\n\n");
+            }
+            String reply = call(BATCH_PROMPT.formatted(batch.size(), KEYWORD_COUNT, body));
+            Matcher matcher = BATCH_LINE.matcher(reply == null ? "" : reply);
+            while (matcher.find()) {
+                int index = Integer.parseInt(matcher.group(1)) - 1;
+                if (index >= 0 && index < batch.size()) {
+                    keywords.putIfAbsent(batch.get(index).getKey(), matcher.group(2));
+                }
+            }
+            if (keywords.size() < batch.size()) {
+                log.warn("批量关键词回复缺少 {}/{} 篇，逐篇补齐", batch.size() - keywords.size(), batch.size());
+            }
+        }
+        for (Map.Entry<String, String> document : batch) {
+            if (!keywords.containsKey(document.getKey())) {
+                String prompt = KeywordMetadataEnricher.KEYWORDS_TEMPLATE.formatted(KEYWORD_COUNT)
+                        .replace("{" + KeywordMetadataEnricher.CONTEXT_STR_PLACEHOLDER + "}", document.getValue());
+                String reply = call(prompt);
+                keywords.put(document.getKey(), reply == null ? "" : reply.strip());
+            }
+        }
+        return keywords;
+    }
+
+    private String call(String prompt) {
+        try {
+            concurrentCalls.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("关键词生成被中断", e);
+        }
+        try {
+            modelCalls.increment();
+            return dashscopeChatModel.call(new Prompt(prompt)).getResult().getOutput().getText();
+        } finally {
+            concurrentCalls.release();
+        }
+    }
+
+    /**
+     * 缓存键：提示词版本 + 关键词个数 + 正文
+     */
+    static String keywordHash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((PROMPT_VERSION + ":" + KEYWORD_COUNT).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(text).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package com.mashang.bac.web.rag;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pgvector.PGvector;
+import org.springframework.ai.document.Document;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 恋爱知识库的 pgvector 表
+ * <p>
+ * 向量库 bean 与增量入库共用这里的表名；入库时向量已经在流水线里算好，
+ * 按与 PgVectorStore 相同的语句直接写入，表结构由 PgVectorStore 初始化。
+ */
+public final class PgVectorTable {
+
+    public static final String SCHEMA_NAME = "public";
+    public static final String TABLE_NAME = "vector_store";
+    public static final String QUALIFIED_NAME = SCHEMA_NAME + "." + TABLE_NAME;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private PgVectorTable() {
+    }
+
+    /**
+     * 按 id 插入或覆盖
+     *
+     * @param documents  文档，id 为 UUID
+     * @param embeddings 与文档一一对应的向量
+     */
+    public static void upsert(JdbcTemplate jdbcTemplate, List<Document> documents, List<float[]> embeddings) {
+        List<Object[]> args = new ArrayList<>(documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            Document document = documents.get(i);
+            UUID id = UUID.fromString(document.getId());
+            String metadata = toJson(document.getMetadata());
+            PGvector embedding = new PGvector(embeddings.get(i));
+            args.add(new Object[]{id, document.getText(), metadata, embedding,
+                    document.getText(), metadata, embedding});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO " + QUALIFIED_NAME + " (id, content, metadata, embedding) "
+                + "VALUES (?, ?, ?::jsonb, ?) ON CONFLICT (id) DO UPDATE SET content = ?, metadata = ?::jsonb, "
+                + "embedding = ?", args);
+    }
+
+    /**
+     * 删除元数据中指定键等于给定值的行
+     *
+     * @return 删除的行数
+     */
+    public static int deleteByMetadata(JdbcTemplate jdbcTemplate, String key, Collection<String> values) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        int[] deleted = jdbcTemplate.batchUpdate("DELETE FROM " + QUALIFIED_NAME + " WHERE metadata->>'" + key + "' = ?",
+                values.stream().map(value -> new Object[]{value}).toList());
+        return Arrays.stream(deleted).sum();
+    }
+
+    private static String toJson(Map<String, Object> metadata) {
+        try {
+            return OBJECT_MAPPER.writeValueAsString(metadata);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
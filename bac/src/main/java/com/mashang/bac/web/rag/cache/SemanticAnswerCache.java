@@ -0,0 +1,326 @@
+package com.mashang.bac.web.rag.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 语义回答缓存
+ * <p>
+ * 按"路由 + 过滤条件"分区保存问题向量和回答，新问题与已有问题的余弦相似度达到阈值时直接复用回答。
+ * 每个分区条目少时逐条比较；条目多时用随机超平面 LSH 分桶，只比较落在相同桶里的候选。
+ * 条目按访问顺序做 LRU 淘汰，过期条目在查询和写入时顺带清理。
+ * <p>
+ * 问题向量通过 cachingEmbeddingModel 计算，随后检索同一问题时直接命中向量缓存，不会多请求一次向量接口。
+ */
+@Component
+@Slf4j
+public class SemanticAnswerCache {
+
+    /**
+     * 分区条目不超过这个数时逐条比较，结果精确
+     */
+    private static final int EXACT_SCAN_LIMIT = 256;
+
+    private static final int LSH_TABLES = 8;
+    private static final int LSH_BITS = 8;
+    private static final long LSH_SEED = 0x5EED_CAC4EL;
+
+    private final EmbeddingModel cachingEmbeddingModel;
+    private final boolean enabled;
+    private final double similarityThreshold;
+    private final long ttlMillis;
+    private final int maxEntriesPerScope;
+    private final Set<String> disabledRoutes;
+
+    // accessOrder=true，分区数超过上限时淘汰最久没用的分区
+    private final LinkedHashMap<String, ScopeIndex> scopes;
+
+    private volatile float[][] hyperplanes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+
+    public SemanticAnswerCache(EmbeddingModel cachingEmbeddingModel,
+                               @Value("${app.rag.semantic-cache.enabled:true}") boolean enabled,
+                               @Value("${app.rag.semantic-cache.similarity-threshold:0.92}") double similarityThreshold,
+                               @Value("${app.rag.semantic-cache.ttl:1h}") Duration ttl,
+                               @Value("${app.rag.semantic-cache.max-entries-per-scope:1000}") int maxEntriesPerScope,
+                               @Value("${app.rag.semantic-cache.max-scopes:256}") int maxScopes,
+                               @Value("${app.rag.semantic-cache.disabled-routes:}") Set<String> disabledRoutes) {
+        this.cachingEmbeddingModel = cachingEmbeddingModel;
+        this.enabled = enabled;
+        this.similarityThreshold = similarityThreshold;
+        this.ttlMillis = ttl.toMillis();
+        this.maxEntriesPerScope = Math.max(1, maxEntriesPerScope);
+        this.disabledRoutes = Set.copyOf(disabledRoutes);
+        int scopeLimit = Math.max(1, maxScopes);
+        this.scopes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ScopeIndex> eldest) {
+                return size() > scopeLimit;
+            }
+        };
+    }
+
+    /**
+     * 路由可通过 app.rag.semantic-cache.disabled-routes 单独关闭
+     */
+    public boolean isEnabled(String route) {
+        return enabled && !disabledRoutes.contains(route);
+    }
+
+    /**
+     * 计算问题向量，查询和写入共用
+     */
+    public float[] embed(String question) {
+        return normalize(cachingEmbeddingModel.embed(question));
+    }
+
+    /**
+     * 查找相似问题的回答
+     *
+     * @return 回答，未命中返回 null
+     */
+    public String find(String route, String filter, float[] vector) {
+        ScopeIndex index;
+        synchronized (scopes) {
+            index = scopes.get(scopeKey(route, filter));
+        }
+        String answer = index == null ? null : index.find(vector, System.currentTimeMillis());
+        if (answer != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return answer;
+    }
+
+    public void put(String route, String filter, float[] vector, String answer) {
+        ScopeIndex index;
+        synchronized (scopes) {
+            index = scopes.computeIfAbsent(scopeKey(route, filter), key -> new ScopeIndex());
+        }
+        index.put(vector, answer, System.currentTimeMillis());
+    }
+
+    /**
+     * 未使用缓存的请求数：路由关闭了缓存，或请求带有对话历史
+     */
+    public void bypass() {
+        bypassed.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getBypassed() {
+        return bypassed.sum();
+    }
+
+    /**
+     * 命中率，不含未使用缓存的请求
+     */
+    public double getHitRate() {
+        long total = getHits() + getMisses();
+        return total == 0 ? 0 : (double) getHits() / total;
+    }
+
+    public int getEntries() {
+        List<ScopeIndex> indexes;
+        synchronized (scopes) {
+            indexes = new ArrayList<>(scopes.values());
+        }
+        return indexes.stream().mapToInt(ScopeIndex::size).sum();
+    }
+
+    private static String scopeKey(String route, String filter) {
+        return route + '\0' + (filter == null ? "" : filter);
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        float[] unit = new float[vector.length];
+        if (norm == 0) {
+            return unit;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            unit[i] = (float) (vector[i] / norm);
+        }
+        return unit;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * 每张表取 LSH_BITS 个超平面，向量落在超平面哪一侧组成桶号
+     */
+    private int[] buckets(float[] vector) {
+        float[][] planes = hyperplanes;
+        if (planes == null || planes[0].length != vector.length) {
+            planes = createHyperplanes(vector.length);
+        }
+        int[] buckets = new int[LSH_TABLES];
+        for (int table = 0; table < LSH_TABLES; table++) {
+            int bucket = 0;
+            for (int bit = 0; bit < LSH_BITS; bit++) {
+                if (dot(planes[table * LSH_BITS + bit], vector) >= 0) {
+                    bucket |= 1 << bit;
+                }
+            }
+            buckets[table] = bucket;
+        }
+        return buckets;
+    }
+
+    private synchronized float[][] createHyperplanes(int dimensions) {
+        if (hyperplanes == null || hyperplanes[0].length != dimensions) {
+            Random random = new Random(LSH_SEED);
+            float[][] planes = new float[LSH_TABLES * LSH_BITS][dimensions];
+            for (float[] plane : planes) {
+                for (int i = 0; i < dimensions; i++) {
+                    plane[i] = (float) random.nextGaussian();
+                }
+            }
+            hyperplanes = planes;
+        }
+        return hyperplanes;
+    }
+
+    /**
+     * 一个分区：LRU 条目表加 LSH 桶
+     */
+    private final class ScopeIndex {
+
+        private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final List<Map<Integer, Set<Entry>>> tables = new ArrayList<>(LSH_TABLES);
+        private long nextId;
+        private long lastSweep;
+
+        ScopeIndex() {
+            for (int i = 0; i < LSH_TABLES; i++) {
+                tables.add(new HashMap<>());
+            }
+        }
+
+        synchronized String find(float[] vector, long now) {
+            Iterable<Entry> candidates = entries.size() <= EXACT_SCAN_LIMIT
+                    ? new ArrayList<>(entries.values()) : candidates(buckets(vector));
+            Entry best = null;
+            double bestScore = similarityThreshold;
+            List<Entry> expired = new ArrayList<>();
+            for (Entry entry : candidates) {
+                if (entry.expiresAt() <= now) {
+                    expired.add(entry);
+                    continue;
+                }
+                double score = dot(entry.vector(), vector);
+                if (score >= bestScore) {
+                    best = entry;
+                    bestScore = score;
+                }
+            }
+            expired.forEach(this::remove);
+            if (best == null) {
+                return null;
+            }
+            // 刷新 LRU 顺序
+            entries.get(best.id());
+            return best.answer();
+        }
+
+        synchronized void put(float[] vector, String answer, long now) {
+            if (now - lastSweep > ttlMillis / 4) {
+                sweep(now);
+                lastSweep = now;
+            }
+            Entry entry = new Entry(nextId++, vector, answer, now + ttlMillis, buckets(vector));
+            entries.put(entry.id(), entry);
+            for (int table = 0; table < LSH_TABLES; table++) {
+                tables.get(table).computeIfAbsent(entry.buckets()[table], key -> new LinkedHashSet<>()).add(entry);
+            }
+            while (entries.size() > maxEntriesPerScope) {
+                remove(entries.values().iterator().next());
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        private Set<Entry> candidates(int[] buckets) {
+            Set<Entry> candidates = new LinkedHashSet<>();
+            for (int table = 0; table < LSH_TABLES; table++) {
+                Set<Entry> bucket = tables.get(table).get(buckets[table]);
+                if (bucket != null) {
+                    candidates.addAll(bucket);
+                }
+            }
+            return candidates;
+        }
+
+        private void sweep(long now) {
+            entries.values().stream()
+                    .filter(entry -> entry.expiresAt() <= now)
+                    .toList()
+                    .forEach(this::remove);
+        }
+
+        private void remove(Entry entry) {
+            entries.remove(entry.id());
+            for (int table = 0; table < LSH_TABLES; table++) {
+                Set<Entry> bucket = tables.get(table).get(entry.buckets()[table]);
+                if (bucket != null) {
+                    bucket.remove(entry);
+                    if (bucket.isEmpty()) {
+                        tables.get(table).remove(entry.buckets()[table]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 按 id 判等，向量数组不参与 equals/hashCode
+     */
+    private record Entry(long id, float[] vector, String answer, long expiresAt, int[] buckets) {
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry entry && entry.id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(id);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.mashang.bac.web.rag.config;
+
+import com.mashang.bac.web.rag.embedding.CachingEmbeddingModel;
+import com.mashang.bac.web.rag.embedding.CoalescingEmbeddingModel;
+import com.mashang.bac.web.rag.embedding.MappedEmbeddingStore;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.util.StringUtils;
+
+import java.nio.file.Path;
+
+/**
+ * 向量缓存配置
+ * <p>
+ * 所有向量库都注入 cachingEmbeddingModel，而不是直接使用灵积向量模型；
+ * 标记为 Primary，按类型注入 EmbeddingModel 的地方(例如 Spring AI 自动配置的向量库)同样走缓存。
+ * 缓存未命中的单条查询再经 coalescingEmbeddingModel 合并成批量请求。
+ */
+@Configuration
+public class EmbeddingCacheConfig {
+
+    @Bean
+    public CoalescingEmbeddingModel coalescingEmbeddingModel(
+            @Qualifier("dashscopeEmbeddingModel") EmbeddingModel dashscopeEmbeddingModel,
+            @Value("${app.rag.embedding-batch.max-batch-size:25}") int maxBatchSize,
+            @Value("${app.rag.embedding-batch.max-wait-ms:5}") long maxWaitMs,
+            @Value("${app.rag.embedding-batch.max-in-flight:4}") int maxInFlight,
+            @Value("${app.rag.embedding-batch.timeout-ms:30000}") long timeoutMs) {
+        return new CoalescingEmbeddingModel(dashscopeEmbeddingModel, maxBatchSize, maxWaitMs, maxInFlight, timeoutMs);
+    }
+
+    @Bean
+    @Primary
+    public CachingEmbeddingModel cachingEmbeddingModel(
+            @Qualifier("coalescingEmbeddingModel") EmbeddingModel coalescingEmbeddingModel,
+            @Value("${spring.ai.dashscope.embedding.options.model:text-embedding-v2}") String model,
+            @Value("${app.rag.embedding-cache.dimensions:1536}") int dimensions,
+            @Value("${app.rag.embedding-cache.max-entries:10000}") int maxEntries,
+            @Value("${app.rag.embedding-cache.disk.path:}") String diskPath,
+            @Value("${app.rag.embedding-cache.disk.max-entries:20000}") int diskMaxEntries) {
+        MappedEmbeddingStore diskStore = StringUtils.hasText(diskPath)
+                ? new MappedEmbeddingStore(Path.of(diskPath), dimensions, diskMaxEntries)
+                : null;
+        return new CachingEmbeddingModel(coalescingEmbeddingModel, model, dimensions, maxEntries, diskStore);
+    }
+}
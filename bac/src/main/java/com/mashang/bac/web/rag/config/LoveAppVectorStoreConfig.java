@@ -1,18 +1,18 @@
 package com.mashang.bac.web.rag.config;
 
-import com.mashang.bac.web.rag.LoveAppDocumentLoader;
-import com.mashang.bac.web.rag.MyKeywordEnricher;
-import com.mashang.bac.web.rag.MyTokenTextSplitter;
-import jakarta.annotation.Resource;
-import org.springframework.ai.document.Document;
+import com.mashang.bac.web.rag.PgVectorTable;
+import com.mashang.bac.web.rag.hnsw.HnswVectorStore;
+import com.mashang.bac.web.rag.hnsw.Quantization;
 import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.ai.vectorstore.pgvector.PgVectorStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.jdbc.core.JdbcTemplate;
 
-import java.util.List;
+import java.nio.file.Path;
 
 import static org.springframework.ai.vectorstore.pgvector.PgVectorStore.PgDistanceType.COSINE_DISTANCE;
 import static org.springframework.ai.vectorstore.pgvector.PgVectorStore.PgIndexType.HNSW;
@@ -23,15 +23,6 @@ import static org.springframework.ai.vectorstore.pgvector.PgVectorStore.PgIndexT
 @Configuration
 public class LoveAppVectorStoreConfig {
 
-    @Resource
-    private LoveAppDocumentLoader loveAppDocumentLoader;
-
-    @Resource
-    private MyTokenTextSplitter myTokenTextSplitter;
-
-    @Resource
-    private MyKeywordEnricher myKeywordEnricher;
-
     /**
      * 本地向量存储方法
      *
@@ -50,31 +41,58 @@ public class LoveAppVectorStoreConfig {
 //        return simpleVectorStore;
 //    }
 
+    /**
+     * 本地 HNSW 向量存储方法-单机部署不依赖数据库，索引文件内存映射，重启后直接加载
+     *
+     * @param cachingEmbeddingModel 带缓存的灵积向量模型
+     * @return
+     */
+    @Bean("loveAppVectorStore")
+    @ConditionalOnProperty(name = "app.rag.vector-store", havingValue = "hnsw")
+    VectorStore hnswLoveAppVectorStore(EmbeddingModel cachingEmbeddingModel,
+                                       @Value("${app.rag.hnsw.path:./vector-store/love-app}") String path,
+                                       @Value("${app.rag.hnsw.m:16}") int m,
+                                       @Value("${app.rag.hnsw.ef-construction:100}") int efConstruction,
+                                       @Value("${app.rag.hnsw.ef-search:64}") int efSearch,
+                                       @Value("${app.rag.hnsw.quantization:none}") String quantization,
+                                       @Value("${app.rag.hnsw.pq-subspaces:96}") int pqSubspaces,
+                                       @Value("${app.rag.hnsw.rerank-factor:4}") int rerankFactor,
+                                       @Value("${app.rag.hnsw.train-size:2000}") int trainSize) {
+        return HnswVectorStore.builder(cachingEmbeddingModel)
+                .directory(Path.of(path))
+                .dimensions(1536)
+                .m(m)
+                .efConstruction(efConstruction)
+                .efSearch(efSearch)
+                .quantization(Quantization.valueOf(quantization.toUpperCase()))
+                .pqSubspaces(pqSubspaces)
+                .rerankFactor(rerankFactor)
+                .trainSize(trainSize)
+                .build();
+    }
+
     /**
      * pg数据库向量存储方法
      *
-     * @param dashscopeEmbeddingModel
+     * @param cachingEmbeddingModel 带缓存的灵积向量模型
      * @return
      */
     @Bean
-    VectorStore loveAppVectorStore(JdbcTemplate jdbcTemplate, EmbeddingModel dashscopeEmbeddingModel) {
-        VectorStore vectorStore = PgVectorStore.builder(jdbcTemplate, dashscopeEmbeddingModel)
+    @ConditionalOnProperty(name = "app.rag.vector-store", havingValue = "pgvector", matchIfMissing = true)
+    VectorStore loveAppVectorStore(JdbcTemplate jdbcTemplate, EmbeddingModel cachingEmbeddingModel) {
+        VectorStore vectorStore = PgVectorStore.builder(jdbcTemplate, cachingEmbeddingModel)
                 .dimensions(1536)
                 .distanceType(COSINE_DISTANCE)
                 .indexType(HNSW)
                 .initializeSchema(true)
-                .schemaName("public")
-                .vectorTableName("vector_store")
+                .schemaName(PgVectorTable.SCHEMA_NAME)
+                .vectorTableName(PgVectorTable.TABLE_NAME)
                 .maxDocumentBatchSize(10000)
                 .build();
-        //获取转成Document后的md文档
-        List<Document> documents = loveAppDocumentLoader.loadMarkdowns();
         //切分一下
         //存入切分后的到数据库-此切分不准确暂不使用
 //        List<Document> splitDocuments = myTokenTextSplitter.splitDocuments(documents);
-        //ai自动打标签-源信息
-        List<Document> enrichedDocuments = myKeywordEnricher.enrichDocuments(documents);
-        vectorStore.add(enrichedDocuments);
+        //入库在应用启动后由 LoveAppIngestionTask 在后台增量执行，这里只创建向量库
         return vectorStore;
     }
 
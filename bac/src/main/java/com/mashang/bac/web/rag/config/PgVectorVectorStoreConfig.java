@@ -1,5 +1,6 @@
 package com.mashang.bac.web.rag.config;
 
+import com.mashang.bac.web.rag.PgVectorTable;
 import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.ai.vectorstore.pgvector.PgVectorStore;
@@ -17,14 +18,14 @@ import static org.springframework.ai.vectorstore.pgvector.PgVectorStore.PgIndexT
 public class PgVectorVectorStoreConfig {
 
     @Bean
-    public VectorStore pgVectorVectorStore(JdbcTemplate jdbcTemplate, EmbeddingModel dashscopeEmbeddingModel) {
-        VectorStore vectorStore = PgVectorStore.builder(jdbcTemplate, dashscopeEmbeddingModel)
+    public VectorStore pgVectorVectorStore(JdbcTemplate jdbcTemplate, EmbeddingModel cachingEmbeddingModel) {
+        VectorStore vectorStore = PgVectorStore.builder(jdbcTemplate, cachingEmbeddingModel)
                 .dimensions(1536)
                 .distanceType(COSINE_DISTANCE)
                 .indexType(HNSW)
                 .initializeSchema(true)
-                .schemaName("public")
-                .vectorTableName("vector_store")
+                .schemaName(PgVectorTable.SCHEMA_NAME)
+                .vectorTableName(PgVectorTable.TABLE_NAME)
                 .maxDocumentBatchSize(10000)
                 .build();
         return vectorStore;
@@ -0,0 +1,222 @@
+package com.mashang.bac.web.rag.embedding;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.MetadataMode;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptions;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.ai.embedding.EmbeddingResponseMetadata;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 带缓存的向量模型
+ * <p>
+ * 包装实际的向量模型，按"模型标识 + 规范化文本"缓存向量：先查堆内 LRU，再查可选的内存映射磁盘缓存
+ * ({@link MappedEmbeddingStore})，都未命中的文本合并成一次请求交给实际模型，结果回填两级缓存。
+ * 检索时的查询文本和入库时的文档都经过这里，热门问题和重复入库的文档不再重复请求向量接口。
+ * <p>
+ * 仅规范化空白和全半角不同的文本共用同一个向量。
+ */
+@Slf4j
+public class CachingEmbeddingModel implements EmbeddingModel, DisposableBean {
+
+    private final EmbeddingModel delegate;
+    private final String modelName;
+    private final String model;
+    private final int dimensions;
+    private final int maxEntries;
+    private final MappedEmbeddingStore diskStore;
+
+    // accessOrder=true 的 LinkedHashMap 即 LRU
+    private final LinkedHashMap<EmbeddingKey, float[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder delegateCalls = new LongAdder();
+
+    /**
+     * @param delegate   实际的向量模型
+     * @param model      模型名，与维度一起作为缓存键的一部分
+     * @param dimensions 向量维度
+     * @param maxEntries 堆内最多缓存的向量数
+     * @param diskStore  磁盘缓存，为空则只用堆内缓存
+     */
+    public CachingEmbeddingModel(EmbeddingModel delegate, String model, int dimensions, int maxEntries,
+                                 MappedEmbeddingStore diskStore) {
+        this.delegate = delegate;
+        this.modelName = model;
+        this.model = model + ":" + dimensions;
+        this.dimensions = dimensions;
+        this.maxEntries = maxEntries;
+        this.diskStore = diskStore;
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        List<String> texts = request.getInstructions();
+        String requestModel = modelOf(request.getOptions());
+        float[][] vectors = new float[texts.size()][];
+        // 未命中的文本，同一请求内重复的只请求一次
+        Map<EmbeddingKey, String> missing = new LinkedHashMap<>();
+        EmbeddingKey[] keys = new EmbeddingKey[texts.size()];
+        for (int i = 0; i < texts.size(); i++) {
+            keys[i] = EmbeddingKey.of(requestModel, texts.get(i));
+            vectors[i] = lookup(keys[i]);
+            if (vectors[i] == null) {
+                missing.putIfAbsent(keys[i], texts.get(i));
+            }
+        }
+
+        EmbeddingResponseMetadata metadata = new EmbeddingResponseMetadata();
+        if (!missing.isEmpty()) {
+            misses.add(missing.size());
+            delegateCalls.increment();
+            EmbeddingResponse response = delegate.call(
+                    new EmbeddingRequest(new ArrayList<>(missing.values()), request.getOptions()));
+            metadata = response.getMetadata();
+            List<EmbeddingKey> missingKeys = new ArrayList<>(missing.keySet());
+            Map<EmbeddingKey, float[]> fetched = new LinkedHashMap<>();
+            List<Embedding> embeddings = response.getResults();
+            for (int i = 0; i < embeddings.size(); i++) {
+                Embedding embedding = embeddings.get(i);
+                EmbeddingKey key = missingKeys.get(embedding.getIndex() != null ? embedding.getIndex() : i);
+                fetched.put(key, embedding.getOutput());
+                store(key, embedding.getOutput());
+            }
+            for (int i = 0; i < texts.size(); i++) {
+                if (vectors[i] == null) {
+                    vectors[i] = fetched.get(keys[i]);
+                }
+            }
+        }
+
+        List<Embedding> results = new ArrayList<>(texts.size());
+        for (int i = 0; i < texts.size(); i++) {
+            results.add(new Embedding(vectors[i], i));
+        }
+        return new EmbeddingResponse(results, metadata);
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getFormattedContent(MetadataMode.EMBED));
+    }
+
+    @Override
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * 堆内缓存命中次数
+     */
+    public long getMemoryHits() {
+        return memoryHits.sum();
+    }
+
+    /**
+     * 磁盘缓存命中次数
+     */
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    /**
+     * 两级缓存都未命中、需要请求向量接口的文本数
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * 实际请求向量接口的次数
+     */
+    public long getDelegateCalls() {
+        return delegateCalls.sum();
+    }
+
+    /**
+     * 命中率
+     */
+    public double getHitRate() {
+        long hits = getMemoryHits() + getDiskHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int getCachedEntries() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (diskStore != null) {
+            diskStore.close();
+        }
+        log.info("向量缓存统计：堆内命中 {}，磁盘命中 {}，未命中 {}，接口调用 {}",
+                getMemoryHits(), getDiskHits(), getMisses(), getDelegateCalls());
+    }
+
+    private float[] lookup(EmbeddingKey key) {
+        float[] vector = peek(key);
+        if (vector != null) {
+            memoryHits.increment();
+            return vector;
+        }
+        if (diskStore != null) {
+            vector = diskStore.get(key);
+            if (vector != null) {
+                diskHits.increment();
+                putInMemory(key, vector);
+                return vector;
+            }
+        }
+        return null;
+    }
+
+    private float[] peek(EmbeddingKey key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private void store(EmbeddingKey key, float[] vector) {
+        putInMemory(key, vector);
+        if (diskStore != null) {
+            diskStore.put(key, vector);
+        }
+    }
+
+    private void putInMemory(EmbeddingKey key, float[] vector) {
+        synchronized (entries) {
+            entries.put(key, vector);
+            if (entries.size() > maxEntries) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * 请求里单独指定了模型或维度时，缓存键随之变化
+     */
+    private String modelOf(EmbeddingOptions options) {
+        if (options == null || (options.getModel() == null && options.getDimensions() == null)) {
+            return model;
+        }
+        return (options.getModel() != null ? options.getModel() : modelName) + ":"
+                + (options.getDimensions() != null ? options.getDimensions() : dimensions);
+    }
+}
@@ -0,0 +1,268 @@
+package com.mashang.bac.web.rag.embedding;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.MetadataMode;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptions;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 合并并发请求的向量模型
+ * <p>
+ * 单条文本的向量请求先进入队列，由一个派发线程合并成批量请求交给实际模型，结果按文本分发回各个调用方。
+ * 等待时间随负载变化：没有请求在途时拿到什么就立刻发送，不额外等待；
+ * 已有请求在途(说明并发高)时最多再等 maxWait，攒够 maxBatchSize 条提前发送；
+ * 在途请求数达到上限时新请求在队列里自然堆积，下一批就更大。
+ * <p>
+ * 多条文本的请求(例如入库时的批量向量化)本身已经是批量，直接交给实际模型。
+ * 关闭后或派发线程异常退出后，单条请求同样直接交给实际模型；调用方最多等待 timeout。
+ */
+@Slf4j
+public class CoalescingEmbeddingModel implements EmbeddingModel, DisposableBean {
+
+    public static final long DEFAULT_TIMEOUT_MS = 30_000;
+
+    private final EmbeddingModel delegate;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final int maxInFlight;
+    private final long timeoutNanos;
+    private final Semaphore inFlight;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedTexts = new LongAdder();
+
+    /**
+     * @param delegate     实际的向量模型
+     * @param maxBatchSize 一批最多多少条文本，不超过向量接口的批量上限
+     * @param maxWaitMs    繁忙时一批最多额外等待的毫秒数
+     * @param maxInFlight  同时在途的批量请求数
+     */
+    public CoalescingEmbeddingModel(EmbeddingModel delegate, int maxBatchSize, long maxWaitMs, int maxInFlight) {
+        this(delegate, maxBatchSize, maxWaitMs, maxInFlight, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param delegate     实际的向量模型
+     * @param maxBatchSize 一批最多多少条文本，不超过向量接口的批量上限
+     * @param maxWaitMs    繁忙时一批最多额外等待的毫秒数
+     * @param maxInFlight  同时在途的批量请求数
+     * @param timeoutMs    调用方等待结果的最长毫秒数，包括排队和请求实际模型的时间
+     */
+    public CoalescingEmbeddingModel(EmbeddingModel delegate, int maxBatchSize, long maxWaitMs, int maxInFlight,
+                                    long timeoutMs) {
+        this.delegate = delegate;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMs));
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeoutMs));
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.dispatcher = Thread.ofPlatform().name("embedding-coalescer").daemon().start(this::dispatch);
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        if (request.getInstructions().size() != 1 || !running) {
+            return delegate.call(request);
+        }
+        requests.increment();
+        Pending pending = new Pending(request.getInstructions().get(0), request.getOptions(),
+                new CompletableFuture<>());
+        queue.add(pending);
+        // 入队前后派发线程可能已经退出，不会再取这条请求；能从队列里取回说明还没被处理，直接请求实际模型
+        if (!running && queue.remove(pending)) {
+            return delegate.call(request);
+        }
+        try {
+            return new EmbeddingResponse(List.of(new Embedding(
+                    pending.future().get(timeoutNanos, TimeUnit.NANOSECONDS), 0)));
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException
+                    ? runtimeException : new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            queue.remove(pending);
+            throw new IllegalStateException("向量请求等待超时", e);
+        } catch (InterruptedException e) {
+            queue.remove(pending);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待向量请求时被中断", e);
+        }
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getFormattedContent(MetadataMode.EMBED));
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+
+    /**
+     * 进入合并队列的单条请求数
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * 发出的批量请求数
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * 平均每批的文本数(同一批内重复的文本只算一次)
+     */
+    public double getAverageBatchSize() {
+        long count = getBatches();
+        return count == 0 ? 0 : (double) batchedTexts.sum() / count;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        dispatcher.interrupt();
+        dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+        failQueued();
+        log.info("向量请求合并统计：单条请求 {}，批量请求 {}，平均每批 {} 条",
+                getRequests(), getBatches(), String.format("%.1f", getAverageBatchSize()));
+    }
+
+    /**
+     * 派发循环；无论正常关闭还是异常退出，都标记为停止并让队列中剩余的请求失败
+     */
+    private void dispatch() {
+        try {
+            while (running) {
+                List<Pending> batch = new ArrayList<>();
+                try {
+                    batch.add(queue.take());
+                    // 在途请求满时在这里等待，新请求继续堆积
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    queue.addAll(batch);
+                    return;
+                }
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                boolean busy = inFlight.availablePermits() < maxInFlight - 1;
+                if (busy && maxWaitNanos > 0) {
+                    linger(batch);
+                }
+                try {
+                    Thread.ofVirtual().name("embedding-batch").start(() -> {
+                        try {
+                            send(batch);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RuntimeException | Error e) {
+                    inFlight.release();
+                    queue.addAll(batch);
+                    throw e;
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            log.error("向量请求派发线程异常退出，之后的单条请求直接调用向量模型", e);
+        } finally {
+            running = false;
+            failQueued();
+        }
+    }
+
+    private void failQueued() {
+        List<Pending> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.forEach(pending -> pending.future().completeExceptionally(
+                new IllegalStateException("向量模型已关闭")));
+    }
+
+    /**
+     * 繁忙时继续收集，直到攒满一批或等待超时
+     */
+    private void linger(List<Pending> batch) {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    return;
+                }
+                batch.add(next);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+            } catch (InterruptedException e) {
+                // 关闭时把已收集的这批发完
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 按模型和维度分组，每组一次请求；同一批内相同的文本只请求一次
+     */
+    private void send(List<Pending> batch) {
+        Map<List<Object>, Map<String, List<Pending>>> groups = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            groups.computeIfAbsent(optionsKey(pending.options()), key -> new LinkedHashMap<>())
+                    .computeIfAbsent(pending.text(), text -> new ArrayList<>())
+                    .add(pending);
+        }
+        for (Map<String, List<Pending>> group : groups.values()) {
+            List<String> texts = new ArrayList<>(group.keySet());
+            List<List<Pending>> waiters = new ArrayList<>(group.values());
+            try {
+                batches.increment();
+                batchedTexts.add(texts.size());
+                EmbeddingResponse response = delegate.call(
+                        new EmbeddingRequest(texts, waiters.get(0).get(0).options()));
+                List<Embedding> results = response.getResults();
+                for (int i = 0; i < results.size(); i++) {
+                    Embedding embedding = results.get(i);
+                    int index = embedding.getIndex() != null ? embedding.getIndex() : i;
+                    waiters.get(index).forEach(pending -> pending.future().complete(embedding.getOutput()));
+                }
+                waiters.forEach(pendings -> pendings.forEach(pending -> pending.future().completeExceptionally(
+                        new IllegalStateException("向量接口未返回该文本的结果"))));
+            } catch (RuntimeException e) {
+                waiters.forEach(pendings -> pendings.forEach(pending -> pending.future().completeExceptionally(e)));
+            }
+        }
+    }
+
+    private static List<Object> optionsKey(EmbeddingOptions options) {
+        return options == null ? Arrays.asList(null, null) : Arrays.asList(options.getModel(), options.getDimensions());
+    }
+
+    private record Pending(String text, EmbeddingOptions options, CompletableFuture<float[]> future) {
+    }
+}
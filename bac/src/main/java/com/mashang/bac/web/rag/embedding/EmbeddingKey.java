@@ -0,0 +1,48 @@
+package com.mashang.bac.web.rag.embedding;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.regex.Pattern;
+
+/**
+ * 向量缓存键：模型标识 + 规范化文本的 SHA-256 前 128 位
+ * <p>
+ * 只保存哈希，长文档块作为键也只占 16 字节。
+ *
+ * @param high 高 64 位
+ * @param low  低 64 位
+ */
+public record EmbeddingKey(long high, long low) {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * @param model 模型标识(模型名 + 维度)，换模型后不会命中旧向量
+     * @param text  原始文本
+     */
+    public static EmbeddingKey of(String model, String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(model.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(normalize(text).getBytes(StandardCharsets.UTF_8));
+            ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+            return new EmbeddingKey(hash.getLong(), hash.getLong());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 规范化：全半角统一(NFKC)、去掉首尾空白、连续空白合并为一个空格
+     */
+    public static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return WHITESPACE.matcher(Normalizer.normalize(text, Normalizer.Form.NFKC).strip()).replaceAll(" ");
+    }
+}
@@ -0,0 +1,192 @@
+package com.mashang.bac.web.rag.embedding;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 向量磁盘缓存
+ * <p>
+ * 整个文件用内存映射打开，组织成组相联的定长槽位表：键(128 位哈希)决定所在的组，组内 {@link #WAYS} 个槽位，
+ * 组满时覆盖最久没写入的槽位。定长槽位不需要索引和压缩，重启后直接映射即可命中，写入由操作系统按页回写。
+ * <p>
+ * 文件头：魔数、版本、维度、组数、写入计数；槽位：键高位、键低位、写入序号、向量。
+ * 文件头与当前维度或容量不一致时重建文件。
+ */
+@Slf4j
+public class MappedEmbeddingStore implements AutoCloseable {
+
+    private static final int MAGIC = 0x454D4243;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int WAYS = 8;
+    private static final int LOCKS = 256;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_DIMENSIONS = 8;
+    private static final int OFFSET_SETS = 12;
+    private static final int OFFSET_SEQUENCE = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int dimensions;
+    private final int sets;
+    private final int slotBytes;
+    private final Object[] locks = new Object[LOCKS];
+    private long sequence;
+
+    /**
+     * @param file       缓存文件
+     * @param dimensions 向量维度
+     * @param maxEntries 最多缓存的向量数，按组相联向上取整
+     */
+    public MappedEmbeddingStore(Path file, int dimensions, int maxEntries) {
+        this.dimensions = dimensions;
+        this.slotBytes = 8 + 8 + 8 + dimensions * Float.BYTES;
+        this.sets = Math.max(1, (maxEntries + WAYS - 1) / WAYS);
+        long size = HEADER_BYTES + (long) sets * WAYS * slotBytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("向量磁盘缓存超过 2GB，请减小 maxEntries");
+        }
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            boolean resized = channel.size() != size;
+            if (resized) {
+                // 映射时文件会按新大小以零填充
+                channel.truncate(0);
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            boolean valid = buffer.getInt(OFFSET_MAGIC) == MAGIC && buffer.getInt(OFFSET_VERSION) == VERSION
+                    && buffer.getInt(OFFSET_DIMENSIONS) == dimensions && buffer.getInt(OFFSET_SETS) == sets;
+            if (!valid) {
+                log.info("初始化向量磁盘缓存 {}，容量 {} 条", file, (long) sets * WAYS);
+                if (!resized) {
+                    for (long offset = 0; offset + 8 <= size; offset += 8) {
+                        buffer.putLong((int) offset, 0L);
+                    }
+                }
+                buffer.putInt(OFFSET_MAGIC, MAGIC);
+                buffer.putInt(OFFSET_VERSION, VERSION);
+                buffer.putInt(OFFSET_DIMENSIONS, dimensions);
+                buffer.putInt(OFFSET_SETS, sets);
+            }
+            this.sequence = buffer.getLong(OFFSET_SEQUENCE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("打开向量磁盘缓存失败: " + file, e);
+        }
+    }
+
+    /**
+     * @return 缓存的向量，未命中返回 null
+     */
+    public float[] get(EmbeddingKey key) {
+        int set = setOf(key);
+        synchronized (lockOf(set)) {
+            int slot = find(set, key);
+            if (slot < 0) {
+                return null;
+            }
+            float[] vector = new float[dimensions];
+            int base = slot + 24;
+            for (int i = 0; i < dimensions; i++) {
+                vector[i] = buffer.getFloat(base + i * Float.BYTES);
+            }
+            return vector;
+        }
+    }
+
+    public void put(EmbeddingKey key, float[] vector) {
+        if (vector.length != dimensions) {
+            return;
+        }
+        int set = setOf(key);
+        synchronized (lockOf(set)) {
+            int slot = find(set, key);
+            if (slot < 0) {
+                slot = victim(set);
+            }
+            long stamp;
+            synchronized (this) {
+                stamp = ++sequence;
+                buffer.putLong(OFFSET_SEQUENCE, sequence);
+            }
+            // 先清空键再写向量，最后写键，写到一半时不会被读成有效条目
+            buffer.putLong(slot, 0L);
+            buffer.putLong(slot + 8, 0L);
+            int base = slot + 24;
+            for (int i = 0; i < dimensions; i++) {
+                buffer.putFloat(base + i * Float.BYTES, vector[i]);
+            }
+            buffer.putLong(slot + 16, stamp);
+            buffer.putLong(slot + 8, key.low());
+            buffer.putLong(slot, key.high());
+        }
+    }
+
+    public int capacity() {
+        return sets * WAYS;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private int find(int set, EmbeddingKey key) {
+        for (int way = 0; way < WAYS; way++) {
+            int slot = slotOffset(set, way);
+            if (buffer.getLong(slot) == key.high() && buffer.getLong(slot + 8) == key.low()
+                    && (key.high() != 0 || key.low() != 0)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 空槽位优先，否则取写入序号最小的
+     */
+    private int victim(int set) {
+        int victim = slotOffset(set, 0);
+        long oldest = Long.MAX_VALUE;
+        for (int way = 0; way < WAYS; way++) {
+            int slot = slotOffset(set, way);
+            if (buffer.getLong(slot) == 0 && buffer.getLong(slot + 8) == 0) {
+                return slot;
+            }
+            long stamp = buffer.getLong(slot + 16);
+            if (stamp < oldest) {
+                oldest = stamp;
+                victim = slot;
+            }
+        }
+        return victim;
+    }
+
+    private int setOf(EmbeddingKey key) {
+        return (int) Long.remainderUnsigned(key.low(), sets);
+    }
+
+    private Object lockOf(int set) {
+        return locks[set & (LOCKS - 1)];
+    }
+
+    private int slotOffset(int set, int way) {
+        return HEADER_BYTES + (set * WAYS + way) * slotBytes;
+    }
+}
@@ -0,0 +1,107 @@
+package com.mashang.bac.web.rag.hnsw;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 文档文件
+ * <p>
+ * 只追加：每条记录为 [总长度][id 长度][id][元数据 JSON 长度][元数据 JSON][正文长度][正文]，
+ * 索引节点里保存记录的偏移。删除和替换只在索引上打标记，文件不回收。
+ */
+final class DocumentLog implements AutoCloseable {
+
+    private final Path file;
+    private final FileChannel channel;
+
+    DocumentLog(Path file, boolean reset) {
+        this.file = file;
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            if (reset) {
+                channel.truncate(0);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("打开文档文件失败: " + file, e);
+        }
+    }
+
+    /**
+     * @return 记录偏移
+     */
+    synchronized long append(String id, String metadataJson, String text) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] metadataBytes = metadataJson.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = (text == null ? "" : text).getBytes(StandardCharsets.UTF_8);
+        int length = 12 + idBytes.length + metadataBytes.length + textBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+                .putInt(idBytes.length).put(idBytes)
+                .putInt(metadataBytes.length).put(metadataBytes)
+                .putInt(textBytes.length).put(textBytes)
+                .flip();
+        try {
+            long offset = channel.size();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            return offset;
+        } catch (IOException e) {
+            throw new UncheckedIOException("写入文档文件失败: " + file, e);
+        }
+    }
+
+    Entry read(long offset) {
+        try {
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            readFully(lengthBuffer, offset);
+            ByteBuffer buffer = ByteBuffer.allocate(lengthBuffer.flip().getInt());
+            readFully(buffer, offset + 4);
+            buffer.flip();
+            return new Entry(string(buffer), string(buffer), string(buffer));
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取文档文件失败: " + file, e);
+        }
+    }
+
+    void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("文档记录不完整，偏移 " + offset);
+            }
+        }
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    record Entry(String id, String metadataJson, String text) {
+    }
+}
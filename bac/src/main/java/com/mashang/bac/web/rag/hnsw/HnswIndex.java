@@ -0,0 +1,818 @@
+package com.mashang.bac.web.rag.hnsw;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
+
+/**
+ * HNSW 近邻图
+ * <p>
+ * 向量归一化后连续存放在 vectors 文件里，距离取 1 - 点积(即余弦距离)；
+ * 每个节点在 nodes 文件里有一条定长记录：标志位、层数、上层邻居起始位置、文档偏移以及第 0 层邻居；
+ * 第 1 层及以上的邻居放在 links 文件里，每层一条定长记录。三个文件都是内存映射，重启后直接映射即可查询。
+ * <p>
+ * 并发：节点下标在分配锁内顺序分配，写完向量和记录后再连边；邻居表按节点分段加锁，
+ * 查询只在读取单个节点的邻居时短暂持锁，插入和查询可以同时进行。
+ * 删除只打标记，节点仍参与路由，不出现在结果里。
+ * <p>
+ * 进程意外退出时，已分配但没写完的节点不会有就绪标记，加载后按已删除处理。
+ * <p>
+ * 量化：开启 int8 或 PQ 后，节点数达到训练样本数时用已有向量训练量化器并把所有向量编码进 codes 文件，
+ * 之后新插入的向量同时写编码。查询在图上遍历时用编码估算距离，只把前若干个候选用原始向量精排；
+ * 建图仍用原始向量。训练之前以及关闭量化时查询全程用原始向量。
+ */
+@Slf4j
+public final class HnswIndex implements AutoCloseable {
+
+    private static final int FLAG_READY = 1;
+    private static final int FLAG_DELETED = 2;
+
+    // nodes 记录：flags, level, upperStart(long), docOffset(long), 第 0 层邻居表
+    // 邻居表：count，随后每个邻居为 (节点下标, 距离)
+    private static final int NODE_FLAGS = 0;
+    private static final int NODE_LEVEL = 4;
+    private static final int NODE_UPPER = 8;
+    private static final int NODE_DOC = 16;
+    private static final int NODE_LINKS = 24;
+
+    // nodes 文件头里的用户字段
+    private static final int FIELD_ENTRY_POINT = 0;
+    private static final int FIELD_MAX_LEVEL = 1;
+    private static final int FIELD_M = 2;
+    private static final int FIELD_DIMENSIONS = 3;
+
+    // codes 文件头里的用户字段：已训练的量化方式(ordinal + 1，0 表示未训练)
+    private static final int FIELD_CODE_TYPE = 0;
+
+    private static final int LOCKS = 1024;
+
+    private final int dimensions;
+    private final int m;
+    private final int maxConnections0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+
+    private final MappedArena vectors;
+    private final MappedArena nodes;
+    private final MappedArena links;
+    private final Path quantizerFile;
+    private final Quantization quantization;
+    private final int pqSubspaces;
+    private final int trainSize;
+    /**
+     * 量化编码，关闭量化时为 null
+     */
+    private final MappedArena codes;
+    private final AtomicBoolean training = new AtomicBoolean();
+    private final Object[] locks = new Object[LOCKS];
+    private final Object allocationLock = new Object();
+    private final Object entryLock = new Object();
+    private final boolean fresh;
+
+    private volatile int entryPoint;
+    private volatile int maxLevel;
+    private volatile int size;
+    private volatile VectorQuantizer quantizer;
+
+    /**
+     * 不量化的索引
+     *
+     * @param directory      索引目录
+     * @param dimensions     向量维度
+     * @param m              每层邻居数，第 0 层为 2m
+     * @param efConstruction 建图时的候选集大小
+     */
+    public HnswIndex(Path directory, int dimensions, int m, int efConstruction) {
+        this(directory, dimensions, m, efConstruction, Quantization.NONE, 0, 0);
+    }
+
+    /**
+     * @param directory      索引目录
+     * @param dimensions     向量维度
+     * @param m              每层邻居数，第 0 层为 2m
+     * @param efConstruction 建图时的候选集大小
+     * @param quantization   遍历时使用的向量压缩方式
+     * @param pqSubspaces    乘积量化的子空间个数，即每个向量的编码字节数
+     * @param trainSize      节点数达到该值时训练量化器，同时也是训练样本数
+     */
+    public HnswIndex(Path directory, int dimensions, int m, int efConstruction,
+                     Quantization quantization, int pqSubspaces, int trainSize) {
+        if (quantization == Quantization.PQ && (pqSubspaces <= 0 || pqSubspaces > dimensions)) {
+            throw new IllegalArgumentException("乘积量化子空间个数需在 1 到 " + dimensions + " 之间");
+        }
+        this.quantization = quantization;
+        this.pqSubspaces = pqSubspaces;
+        this.trainSize = Math.max(trainSize, 1);
+        this.quantizerFile = directory.resolve("quantizer.bin");
+        this.dimensions = dimensions;
+        this.m = m;
+        this.maxConnections0 = m * 2;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.levelMultiplier = 1 / Math.log(m);
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+
+        MappedArena openedNodes = new MappedArena(directory.resolve("nodes.bin"),
+                NODE_LINKS + linksBytes(maxConnections0), false);
+        boolean compatible = !openedNodes.isFresh()
+                && openedNodes.userField(FIELD_M) == m && openedNodes.userField(FIELD_DIMENSIONS) == dimensions;
+        if (!compatible && !openedNodes.isFresh()) {
+            log.warn("向量索引 {} 的参数与当前配置不一致，重建索引", directory);
+            try {
+                openedNodes.close();
+            } catch (IOException e) {
+                log.warn("关闭旧索引文件失败", e);
+            }
+            openedNodes = new MappedArena(directory.resolve("nodes.bin"), NODE_LINKS + linksBytes(maxConnections0),
+                    true);
+        }
+        this.nodes = openedNodes;
+        this.vectors = new MappedArena(directory.resolve("vectors.bin"), dimensions * Float.BYTES, !compatible);
+        this.links = new MappedArena(directory.resolve("links.bin"), linksBytes(m), !compatible);
+        this.fresh = !compatible;
+        if (fresh) {
+            nodes.userField(FIELD_ENTRY_POINT, -1);
+            nodes.userField(FIELD_MAX_LEVEL, -1);
+            nodes.userField(FIELD_M, m);
+            nodes.userField(FIELD_DIMENSIONS, dimensions);
+        }
+        // 以 nodes 为准，向量文件多出或缺少的部分对齐
+        vectors.resize(nodes.count());
+        this.size = (int) nodes.count();
+        this.entryPoint = (int) nodes.userField(FIELD_ENTRY_POINT);
+        this.maxLevel = (int) nodes.userField(FIELD_MAX_LEVEL);
+        if (entryPoint >= size) {
+            entryPoint = -1;
+            maxLevel = -1;
+        }
+
+        if (quantization == Quantization.NONE) {
+            this.codes = null;
+            return;
+        }
+        int codeBytes = quantization == Quantization.INT8 ? dimensions : pqSubspaces;
+        MappedArena openedCodes = new MappedArena(directory.resolve("codes.bin"), codeBytes, fresh);
+        VectorQuantizer loaded = openedCodes.userField(FIELD_CODE_TYPE) == quantization.ordinal() + 1
+                ? loadQuantizer(codeBytes) : null;
+        if (loaded == null && !openedCodes.isFresh()) {
+            // 量化方式或参数变了，编码作废，重新训练
+            try {
+                openedCodes.close();
+            } catch (IOException e) {
+                log.warn("关闭旧编码文件失败", e);
+            }
+            openedCodes = new MappedArena(directory.resolve("codes.bin"), codeBytes, true);
+        }
+        this.codes = openedCodes;
+        codes.resize(nodes.count());
+        this.quantizer = loaded;
+        if (loaded == null && size >= this.trainSize) {
+            train();
+        }
+    }
+
+    /**
+     * 索引文件是新建或重建的
+     */
+    public boolean isFresh() {
+        return fresh;
+    }
+
+    /**
+     * 已分配的节点数，含已删除的
+     */
+    public int size() {
+        return size;
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * 查询当前实际使用的压缩方式，量化器训练之前为 {@link Quantization#NONE}
+     */
+    public Quantization activeQuantization() {
+        VectorQuantizer current = quantizer;
+        return current == null ? Quantization.NONE : current.type();
+    }
+
+    /**
+     * 映射文件占用的字节数
+     */
+    public long mappedBytes() {
+        return vectors.mappedBytes() + nodes.mappedBytes() + links.mappedBytes()
+                + (codes == null ? 0 : codes.mappedBytes());
+    }
+
+    /**
+     * 查询遍历时读取的向量数据字节数：量化后为全部编码，否则为全部原始向量
+     */
+    public long traversalBytes() {
+        VectorQuantizer current = quantizer;
+        return (long) size * (current == null ? dimensions * Float.BYTES : current.codeBytes());
+    }
+
+    /**
+     * 插入向量
+     *
+     * @param vector    向量，内部会归一化
+     * @param docOffset 对应文档在文档文件中的偏移
+     * @return 节点下标
+     */
+    public int insert(float[] vector, long docOffset) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("向量维度为 " + vector.length + "，索引维度为 " + dimensions);
+        }
+        float[] query = normalize(vector);
+        int level = randomLevel();
+        int node;
+        synchronized (allocationLock) {
+            node = (int) nodes.allocate(1);
+            vectors.allocate(1);
+            if (codes != null) {
+                codes.allocate(1);
+                VectorQuantizer current = quantizer;
+                if (current != null) {
+                    writeCode(node, current, query, new byte[current.codeBytes()]);
+                }
+            }
+            long upperStart = level > 0 ? links.allocate(level) : -1;
+            writeVector(node, query);
+            MappedByteBuffer chunk = nodes.chunk(node);
+            int offset = nodes.offset(node);
+            chunk.putInt(offset + NODE_LEVEL, level);
+            chunk.putLong(offset + NODE_UPPER, upperStart);
+            chunk.putLong(offset + NODE_DOC, docOffset);
+            chunk.putInt(offset + NODE_FLAGS, FLAG_READY);
+            size = node + 1;
+        }
+
+        int entry;
+        int topLevel;
+        synchronized (entryLock) {
+            entry = entryPoint;
+            topLevel = maxLevel;
+            if (entry < 0) {
+                updateEntryPoint(node, level);
+                trainIfReady();
+                return node;
+            }
+        }
+
+        Scorer exact = other -> distance(query, other);
+        int current = entry;
+        for (int layer = topLevel; layer > level; layer--) {
+            current = greedy(exact, current, layer);
+        }
+        List<Candidate> entries = List.of(new Candidate(current, exact.distance(current)));
+        for (int layer = Math.min(level, topLevel); layer >= 0; layer--) {
+            List<Candidate> found = searchLayer(exact, entries, efConstruction, layer, ignored -> true);
+            int maxConnections = layer == 0 ? maxConnections0 : m;
+            List<Candidate> neighbors = selectNeighbors(found, m);
+            synchronized (lockOf(node)) {
+                writeLinks(node, layer, neighbors);
+            }
+            for (Candidate neighbor : neighbors) {
+                connect(neighbor.node(), node, neighbor.distance(), layer, maxConnections);
+            }
+            entries = found;
+        }
+
+        if (level > topLevel) {
+            synchronized (entryLock) {
+                if (level > maxLevel) {
+                    updateEntryPoint(node, level);
+                }
+            }
+        }
+        trainIfReady();
+        return node;
+    }
+
+    /**
+     * 近邻查询，量化时第 0 层的全部候选都精排
+     *
+     * @see #search(float[], int, int, int, IntPredicate)
+     */
+    public List<Neighbor> search(float[] vector, int k, int ef, IntPredicate accept) {
+        return search(vector, k, ef, ef, accept);
+    }
+
+    /**
+     * 近邻查询
+     *
+     * @param vector 查询向量，内部会归一化
+     * @param k      返回个数
+     * @param ef     第 0 层候选集大小，不小于 k
+     * @param rerank 量化时用原始向量精排的候选数，不小于 k；候选集也至少这么大。不量化时忽略
+     * @param accept 哪些节点可以出现在结果里；不满足的节点仍参与遍历
+     * @return 按相似度从高到低，相似度由原始向量算出
+     */
+    public List<Neighbor> search(float[] vector, int k, int ef, int rerank, IntPredicate accept) {
+        int entry = entryPoint;
+        if (entry < 0 || k <= 0) {
+            return List.of();
+        }
+        float[] query = normalize(vector);
+        VectorQuantizer current = quantizer;
+        Scorer scorer = current == null ? node -> distance(query, node) : codeScorer(current, query);
+        int candidates = current == null ? Math.max(ef, k) : Math.max(ef, Math.max(rerank, k));
+        int start = entry;
+        for (int layer = maxLevel; layer > 0; layer--) {
+            start = greedy(scorer, start, layer);
+        }
+        IntPredicate live = node -> !isDeleted(node) && accept.test(node);
+        List<Candidate> found = searchLayer(scorer, List.of(new Candidate(start, scorer.distance(start))),
+                candidates, 0, live);
+        if (current != null) {
+            // 精排：估算距离最近的 rerank 个候选用原始向量重新计算
+            int limit = Math.min(found.size(), Math.max(rerank, k));
+            List<Candidate> exact = new ArrayList<>(limit);
+            for (int i = 0; i < limit; i++) {
+                int node = found.get(i).node();
+                exact.add(new Candidate(node, distance(query, node)));
+            }
+            exact.sort(Comparator.comparingDouble(Candidate::distance));
+            found = exact;
+        }
+        List<Neighbor> neighbors = new ArrayList<>(Math.min(k, found.size()));
+        for (int i = 0; i < found.size() && neighbors.size() < k; i++) {
+            neighbors.add(new Neighbor(found.get(i).node(), 1 - found.get(i).distance()));
+        }
+        return neighbors;
+    }
+
+    public void delete(int node) {
+        MappedByteBuffer chunk = nodes.chunk(node);
+        int offset = nodes.offset(node);
+        synchronized (lockOf(node)) {
+            chunk.putInt(offset + NODE_FLAGS, chunk.getInt(offset + NODE_FLAGS) | FLAG_DELETED);
+        }
+    }
+
+    /**
+     * 已删除或没写完的节点
+     */
+    public boolean isDeleted(int node) {
+        int flags = nodes.chunk(node).getInt(nodes.offset(node) + NODE_FLAGS);
+        return (flags & FLAG_READY) == 0 || (flags & FLAG_DELETED) != 0;
+    }
+
+    public long docOffset(int node) {
+        return nodes.chunk(node).getLong(nodes.offset(node) + NODE_DOC);
+    }
+
+    /**
+     * 归一化后的向量副本
+     */
+    public float[] vector(int node) {
+        float[] vector = new float[dimensions];
+        MappedByteBuffer chunk = vectors.chunk(node);
+        int offset = vectors.offset(node);
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] = chunk.getFloat(offset + i * Float.BYTES);
+        }
+        return vector;
+    }
+
+    public void force() {
+        vectors.force();
+        nodes.force();
+        links.force();
+        if (codes != null) {
+            codes.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        vectors.close();
+        nodes.close();
+        links.close();
+        if (codes != null) {
+            codes.close();
+        }
+    }
+
+    private void trainIfReady() {
+        if (codes != null && quantizer == null && size >= trainSize) {
+            train();
+        }
+    }
+
+    /**
+     * 训练量化器并编码已有向量；训练和大部分编码不持锁，最后在分配锁内补齐期间新插入的节点再发布，
+     * 发布之后插入的节点在分配时自己写编码
+     */
+    private void train() {
+        if (!training.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (quantizer != null) {
+                return;
+            }
+            long begin = System.nanoTime();
+            int total = size;
+            List<float[]> samples = new ArrayList<>(Math.min(total, trainSize));
+            double step = Math.max(1.0, (double) total / trainSize);
+            for (double position = 0; position < total && samples.size() < trainSize; position += step) {
+                int node = (int) position;
+                if (!isDeleted(node)) {
+                    samples.add(vector(node));
+                }
+            }
+            if (samples.isEmpty()) {
+                return;
+            }
+            VectorQuantizer trained = quantization == Quantization.INT8
+                    ? ScalarQuantizer.train(samples) : ProductQuantizer.train(samples, pqSubspaces);
+            byte[] code = new byte[trained.codeBytes()];
+            int encoded = size;
+            for (int node = 0; node < encoded; node++) {
+                writeCode(node, trained, vector(node), code);
+            }
+            synchronized (allocationLock) {
+                for (int node = encoded; node < size; node++) {
+                    writeCode(node, trained, vector(node), code);
+                }
+                if (saveQuantizer(trained)) {
+                    codes.userField(FIELD_CODE_TYPE, quantization.ordinal() + 1);
+                }
+                quantizer = trained;
+            }
+            log.info("向量索引量化器训练完成：{}，{} 个样本，每个向量编码 {} 字节，耗时 {} ms", quantization,
+                    samples.size(), trained.codeBytes(), (System.nanoTime() - begin) / 1_000_000);
+        } finally {
+            training.set(false);
+        }
+    }
+
+    private void writeCode(int node, VectorQuantizer quantizer, float[] vector, byte[] code) {
+        quantizer.encode(vector, code);
+        codes.chunk(node).put(codes.offset(node), code);
+    }
+
+    /**
+     * 先写临时文件再替换，写失败时量化器只在本次运行中使用，下次启动重新训练
+     */
+    private boolean saveQuantizer(VectorQuantizer trained) {
+        Path temp = quantizerFile.resolveSibling(quantizerFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            trained.write(out);
+        } catch (IOException e) {
+            log.warn("保存量化参数失败: {}", quantizerFile, e);
+            return false;
+        }
+        try {
+            Files.move(temp, quantizerFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            log.warn("保存量化参数失败: {}", quantizerFile, e);
+            return false;
+        }
+    }
+
+    private VectorQuantizer loadQuantizer(int codeBytes) {
+        if (!Files.exists(quantizerFile)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(quantizerFile)))) {
+            VectorQuantizer loaded = VectorQuantizer.read(in);
+            if (loaded.type() == quantization && loaded.dimensions() == dimensions
+                    && loaded.codeBytes() == codeBytes) {
+                return loaded;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("读取量化参数失败，重新训练: {}", quantizerFile, e);
+        }
+        return null;
+    }
+
+    /**
+     * 用编码估算距离，编码读到查询自己的缓冲区里
+     */
+    private Scorer codeScorer(VectorQuantizer quantizer, float[] query) {
+        VectorQuantizer.CodeDistance distance = quantizer.distance(query);
+        byte[] code = new byte[quantizer.codeBytes()];
+        return node -> {
+            codes.chunk(node).get(codes.offset(node), code);
+            return distance.distance(code);
+        };
+    }
+
+    /**
+     * 在某一层上贪心走到离查询最近的节点
+     */
+    private int greedy(Scorer scorer, int start, int layer) {
+        int current = start;
+        float currentDistance = scorer.distance(current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int neighbor : neighbors(current, layer)) {
+                float d = scorer.distance(neighbor);
+                if (d < currentDistance) {
+                    current = neighbor;
+                    currentDistance = d;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 单层束搜索，返回按距离从近到远的结果
+     */
+    private List<Candidate> searchLayer(Scorer scorer, List<Candidate> entries, int ef, int layer,
+                                        IntPredicate accept) {
+        BitSet visited = new BitSet(size);
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(Comparator.comparingDouble(Candidate::distance));
+        PriorityQueue<Candidate> results = new PriorityQueue<>(
+                Comparator.comparingDouble(Candidate::distance).reversed());
+        for (Candidate entry : entries) {
+            if (visited.get(entry.node())) {
+                continue;
+            }
+            visited.set(entry.node());
+            candidates.add(entry);
+            if (accept.test(entry.node())) {
+                results.add(entry);
+            }
+        }
+        while (results.size() > ef) {
+            results.poll();
+        }
+        while (!candidates.isEmpty()) {
+            Candidate closest = candidates.poll();
+            if (results.size() >= ef && closest.distance() > results.peek().distance()) {
+                break;
+            }
+            for (int neighbor : neighbors(closest.node(), layer)) {
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+                float d = scorer.distance(neighbor);
+                if (results.size() < ef || d < results.peek().distance()) {
+                    Candidate candidate = new Candidate(neighbor, d);
+                    candidates.add(candidate);
+                    if (accept.test(neighbor)) {
+                        results.add(candidate);
+                        if (results.size() > ef) {
+                            results.poll();
+                        }
+                    }
+                }
+            }
+        }
+        List<Candidate> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingDouble(Candidate::distance));
+        return sorted;
+    }
+
+    /**
+     * 启发式选邻居：候选离已选中的某个邻居比离基准点还近时跳过，保留不同方向的边；
+     * 不够时再用跳过的候选补齐
+     *
+     * @param candidates 按到基准点的距离从近到远
+     */
+    private List<Candidate> selectNeighbors(List<Candidate> candidates, int count) {
+        List<Candidate> selected = new ArrayList<>(count);
+        List<Candidate> skipped = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (selected.size() >= count) {
+                break;
+            }
+            boolean diverse = true;
+            for (Candidate chosen : selected) {
+                if (distance(candidate.node(), chosen.node()) < candidate.distance()) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected.add(candidate);
+            } else {
+                skipped.add(candidate);
+            }
+        }
+        for (int i = 0; i < skipped.size() && selected.size() < count; i++) {
+            selected.add(skipped.get(i));
+        }
+        return selected;
+    }
+
+    /**
+     * 给已有节点加一条反向边；邻居满了就去掉一个最不"多样"的：从最远的开始找，
+     * 离某个更近的邻居比离该节点还近的那个去掉，都满足时去掉最远的
+     */
+    private void connect(int node, int neighbor, float distance, int layer, int maxConnections) {
+        synchronized (lockOf(node)) {
+            List<Candidate> current = links(node, layer);
+            for (Candidate existing : current) {
+                if (existing.node() == neighbor) {
+                    return;
+                }
+            }
+            List<Candidate> updated = new ArrayList<>(current.size() + 1);
+            updated.addAll(current);
+            updated.add(new Candidate(neighbor, distance));
+            if (updated.size() > maxConnections) {
+                updated.sort(Comparator.comparingDouble(Candidate::distance));
+                updated.remove(worstNonDiverse(updated));
+            }
+            writeLinks(node, layer, updated);
+        }
+    }
+
+    /**
+     * @param candidates 按距离从近到远
+     */
+    private int worstNonDiverse(List<Candidate> candidates) {
+        for (int i = candidates.size() - 1; i > 0; i--) {
+            Candidate candidate = candidates.get(i);
+            for (int j = 0; j < i; j++) {
+                if (distance(candidate.node(), candidates.get(j).node()) < candidate.distance()) {
+                    return i;
+                }
+            }
+        }
+        return candidates.size() - 1;
+    }
+
+    /**
+     * 查询用：只取邻居下标
+     */
+    private int[] neighbors(int node, int layer) {
+        List<Candidate> links = links(node, layer);
+        int[] neighbors = new int[links.size()];
+        for (int i = 0; i < neighbors.length; i++) {
+            neighbors[i] = links.get(i).node();
+        }
+        return neighbors;
+    }
+
+    /**
+     * 读邻居表；写了一半的节点(下标不小于已发布的节点数)跳过
+     */
+    private List<Candidate> links(int node, int layer) {
+        synchronized (lockOf(node)) {
+            MappedByteBuffer chunk = linksChunk(node, layer);
+            if (chunk == null) {
+                return List.of();
+            }
+            int offset = linksOffset(node, layer);
+            int count = chunk.getInt(offset);
+            int limit = size;
+            List<Candidate> links = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int neighbor = chunk.getInt(offset + 4 + i * 8);
+                if (neighbor < limit) {
+                    links.add(new Candidate(neighbor, chunk.getFloat(offset + 8 + i * 8)));
+                }
+            }
+            return links;
+        }
+    }
+
+    /**
+     * 调用方持有该节点的锁；先写邻居再写个数
+     */
+    private void writeLinks(int node, int layer, List<Candidate> neighbors) {
+        MappedByteBuffer chunk = linksChunk(node, layer);
+        int offset = linksOffset(node, layer);
+        for (int i = 0; i < neighbors.size(); i++) {
+            chunk.putInt(offset + 4 + i * 8, neighbors.get(i).node());
+            chunk.putFloat(offset + 8 + i * 8, neighbors.get(i).distance());
+        }
+        chunk.putInt(offset, neighbors.size());
+    }
+
+    /**
+     * 邻居表所在的分块，节点没有这一层时返回 null
+     */
+    private MappedByteBuffer linksChunk(int node, int layer) {
+        if (layer == 0) {
+            return nodes.chunk(node);
+        }
+        MappedByteBuffer nodeChunk = nodes.chunk(node);
+        int nodeOffset = nodes.offset(node);
+        if (nodeChunk.getInt(nodeOffset + NODE_LEVEL) < layer) {
+            return null;
+        }
+        return links.chunk(nodeChunk.getLong(nodeOffset + NODE_UPPER) + layer - 1);
+    }
+
+    private int linksOffset(int node, int layer) {
+        if (layer == 0) {
+            return nodes.offset(node) + NODE_LINKS;
+        }
+        return links.offset(nodes.chunk(node).getLong(nodes.offset(node) + NODE_UPPER) + layer - 1);
+    }
+
+    private static int linksBytes(int maxConnections) {
+        return 4 + maxConnections * 8;
+    }
+
+    private void updateEntryPoint(int node, int level) {
+        entryPoint = node;
+        maxLevel = level;
+        nodes.userField(FIELD_ENTRY_POINT, node);
+        nodes.userField(FIELD_MAX_LEVEL, level);
+    }
+
+    private int randomLevel() {
+        double random = 1 - ThreadLocalRandom.current().nextDouble();
+        return (int) Math.floor(-Math.log(random) * levelMultiplier);
+    }
+
+    private void writeVector(int node, float[] vector) {
+        MappedByteBuffer chunk = vectors.chunk(node);
+        int offset = vectors.offset(node);
+        for (int i = 0; i < dimensions; i++) {
+            chunk.putFloat(offset + i * Float.BYTES, vector[i]);
+        }
+    }
+
+    private float distance(float[] query, int node) {
+        MappedByteBuffer chunk = vectors.chunk(node);
+        int offset = vectors.offset(node);
+        float dot = 0;
+        for (int i = 0; i < dimensions; i++) {
+            dot += query[i] * chunk.getFloat(offset + i * Float.BYTES);
+        }
+        return 1 - dot;
+    }
+
+    private float distance(int a, int b) {
+        MappedByteBuffer chunkA = vectors.chunk(a);
+        MappedByteBuffer chunkB = vectors.chunk(b);
+        int offsetA = vectors.offset(a);
+        int offsetB = vectors.offset(b);
+        float dot = 0;
+        for (int i = 0; i < dimensions; i++) {
+            dot += chunkA.getFloat(offsetA + i * Float.BYTES) * chunkB.getFloat(offsetB + i * Float.BYTES);
+        }
+        return 1 - dot;
+    }
+
+    private Object lockOf(int node) {
+        return locks[node & (LOCKS - 1)];
+    }
+
+    static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        float[] unit = new float[vector.length];
+        if (norm == 0) {
+            return unit;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            unit[i] = (float) (vector[i] / norm);
+        }
+        return unit;
+    }
+
+    /**
+     * 查询结果
+     *
+     * @param node       节点下标
+     * @param similarity 余弦相似度
+     */
+    public record Neighbor(int node, float similarity) {
+    }
+
+    private record Candidate(int node, float distance) {
+    }
+
+    /**
+     * 查询到节点的距离，原始向量或量化编码
+     */
+    @FunctionalInterface
+    private interface Scorer {
+        float distance(int node);
+    }
+}
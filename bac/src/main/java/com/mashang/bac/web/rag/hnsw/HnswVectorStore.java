@@ -0,0 +1,327 @@
+package com.mashang.bac.web.rag.hnsw;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.observation.conventions.VectorStoreSimilarityMetric;
+import org.springframework.ai.vectorstore.AbstractVectorStoreBuilder;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.filter.Filter;
+import org.springframework.ai.vectorstore.filter.converter.SimpleVectorStoreFilterExpressionConverter;
+import org.springframework.ai.vectorstore.observation.AbstractObservationVectorStore;
+import org.springframework.ai.vectorstore.observation.VectorStoreObservationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * 进程内 HNSW 向量库
+ * <p>
+ * 向量和近邻图由 {@link HnswIndex} 保存在内存映射文件里，文档正文和元数据追加写入 {@link DocumentLog}，
+ * 启动时只需映射文件并读一遍文档的 id 与元数据，不需要重新向量化或建图。
+ * 查询支持 topK、相似度阈值和过滤表达式：过滤条件与 SimpleVectorStore 一样转成 SpEL 对元数据求值，
+ * 在图上遍历时只决定节点能否进入结果，不影响遍历路径。
+ * <p>
+ * 可选 int8 / PQ 量化：图上遍历用压缩编码估算距离，topK × rerankFactor 个候选再用原始向量精排。
+ * <p>
+ * 相同 id 再次写入时旧节点标记删除、插入新节点；删除的节点不回收，需要整理时删掉目录重新入库即可。
+ */
+@Slf4j
+public class HnswVectorStore extends AbstractObservationVectorStore implements AutoCloseable {
+
+    public static final String DISTANCE_METADATA_KEY = "distance";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> METADATA_TYPE = new TypeReference<>() {
+    };
+
+    private final Path directory;
+    private final int efSearch;
+    private final int rerankFactor;
+    private final HnswIndex index;
+    private final DocumentLog documents;
+    private final Map<String, Integer> nodesById = new ConcurrentHashMap<>();
+    private final Map<Integer, Map<String, Object>> metadataByNode = new ConcurrentHashMap<>();
+    private final SimpleVectorStoreFilterExpressionConverter filterExpressionConverter =
+            new SimpleVectorStoreFilterExpressionConverter();
+    private final ExpressionParser expressionParser = new SpelExpressionParser();
+
+    protected HnswVectorStore(Builder builder) {
+        super(builder);
+        this.directory = builder.directory;
+        this.efSearch = builder.efSearch;
+        this.rerankFactor = builder.rerankFactor;
+        long begin = System.nanoTime();
+        this.index = new HnswIndex(builder.directory, builder.dimensions, builder.m, builder.efConstruction,
+                builder.quantization, builder.pqSubspaces, builder.trainSize);
+        this.documents = new DocumentLog(builder.directory.resolve("documents.log"), index.isFresh());
+        for (int node = 0; node < index.size(); node++) {
+            if (!index.isDeleted(node)) {
+                DocumentLog.Entry entry = documents.read(index.docOffset(node));
+                Integer previous = nodesById.put(entry.id(), node);
+                if (previous != null) {
+                    // 替换写入时进程退出，旧节点还没来得及标记
+                    index.delete(previous);
+                    metadataByNode.remove(previous);
+                }
+                metadataByNode.put(node, parseMetadata(entry.metadataJson()));
+            }
+        }
+        log.info("加载本地向量库 {}：{} 个文档，{} 个节点，量化 {}，耗时 {} ms", directory, nodesById.size(),
+                index.size(), index.activeQuantization(), (System.nanoTime() - begin) / 1_000_000);
+    }
+
+    public static Builder builder(EmbeddingModel embeddingModel) {
+        return new Builder(embeddingModel);
+    }
+
+    @Override
+    public void doAdd(List<Document> documents) {
+        add(documents, embeddingModel.embed(documents, EmbeddingOptionsBuilder.builder().build(), batchingStrategy));
+    }
+
+    /**
+     * 写入已经算好向量的文档
+     *
+     * @param documents  文档
+     * @param embeddings 与文档一一对应的向量
+     */
+    public void add(List<Document> documents, List<float[]> embeddings) {
+        for (int i = 0; i < documents.size(); i++) {
+            Document document = documents.get(i);
+            Map<String, Object> metadata = new HashMap<>(document.getMetadata());
+            long offset = this.documents.append(document.getId(), toJson(metadata), document.getText());
+            int node = index.insert(embeddings.get(i), offset);
+            metadataByNode.put(node, metadata);
+            Integer previous = nodesById.put(document.getId(), node);
+            if (previous != null) {
+                index.delete(previous);
+                metadataByNode.remove(previous);
+            }
+        }
+    }
+
+    @Override
+    public void doDelete(List<String> idList) {
+        for (String id : idList) {
+            Integer node = nodesById.remove(id);
+            if (node != null) {
+                index.delete(node);
+                metadataByNode.remove(node);
+            }
+        }
+    }
+
+    @Override
+    protected void doDelete(Filter.Expression filterExpression) {
+        IntPredicate filter = filterPredicate(filterExpression);
+        List<String> ids = new ArrayList<>();
+        nodesById.forEach((id, node) -> {
+            if (filter.test(node)) {
+                ids.add(id);
+            }
+        });
+        doDelete(ids);
+    }
+
+    @Override
+    public List<Document> doSimilaritySearch(SearchRequest request) {
+        float[] query = embeddingModel.embed(request.getQuery());
+        IntPredicate filter = request.hasFilterExpression()
+                ? filterPredicate(request.getFilterExpression()) : node -> true;
+        List<HnswIndex.Neighbor> neighbors = index.search(query, request.getTopK(),
+                Math.max(efSearch, request.getTopK()), request.getTopK() * rerankFactor,
+                node -> metadataByNode.containsKey(node) && filter.test(node));
+        List<Document> results = new ArrayList<>(neighbors.size());
+        for (HnswIndex.Neighbor neighbor : neighbors) {
+            if (neighbor.similarity() < request.getSimilarityThreshold()) {
+                // 结果按相似度从高到低，后面的都低于阈值
+                break;
+            }
+            DocumentLog.Entry entry = documents.read(index.docOffset(neighbor.node()));
+            Map<String, Object> metadata = new HashMap<>(metadataByNode.getOrDefault(neighbor.node(), Map.of()));
+            metadata.put(DISTANCE_METADATA_KEY, 1 - neighbor.similarity());
+            results.add(Document.builder()
+                    .id(entry.id())
+                    .text(entry.text())
+                    .metadata(metadata)
+                    .score((double) neighbor.similarity())
+                    .build());
+        }
+        return results;
+    }
+
+    @Override
+    public VectorStoreObservationContext.Builder createObservationContextBuilder(String operationName) {
+        return VectorStoreObservationContext.builder("hnsw", operationName)
+                .dimensions(index.dimensions())
+                .collectionName(directory.toString())
+                .similarityMetric(VectorStoreSimilarityMetric.COSINE.value());
+    }
+
+    /**
+     * 库里没有文档(首次启用、文件被删除或参数变化后重建)
+     */
+    public boolean isEmpty() {
+        return nodesById.isEmpty();
+    }
+
+    /**
+     * 索引文件目录
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 有效文档数
+     */
+    public int size() {
+        return nodesById.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        index.close();
+        documents.close();
+    }
+
+    /**
+     * 过滤表达式转成 SpEL 后只解析一次，对每个节点的元数据求值
+     */
+    private IntPredicate filterPredicate(Filter.Expression filterExpression) {
+        Expression expression = expressionParser.parseExpression(
+                filterExpressionConverter.convertExpression(filterExpression));
+        return node -> {
+            Map<String, Object> metadata = metadataByNode.get(node);
+            if (metadata == null) {
+                return false;
+            }
+            StandardEvaluationContext context = new StandardEvaluationContext();
+            context.setVariable("metadata", metadata);
+            return Boolean.TRUE.equals(expression.getValue(context, Boolean.class));
+        };
+    }
+
+    private static String toJson(Map<String, Object> metadata) {
+        try {
+            return OBJECT_MAPPER.writeValueAsString(metadata);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("元数据无法序列化为 JSON", e);
+        }
+    }
+
+    private static Map<String, Object> parseMetadata(String json) {
+        try {
+            return OBJECT_MAPPER.readValue(json, METADATA_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static class Builder extends AbstractVectorStoreBuilder<Builder> {
+
+        private Path directory = Path.of("vector-store");
+        private int dimensions = 1536;
+        private int m = 16;
+        private int efConstruction = 100;
+        private int efSearch = 64;
+        private Quantization quantization = Quantization.NONE;
+        private int pqSubspaces = 96;
+        private int rerankFactor = 4;
+        private int trainSize = 2000;
+
+        private Builder(EmbeddingModel embeddingModel) {
+            super(embeddingModel);
+        }
+
+        /**
+         * 索引文件所在目录
+         */
+        public Builder directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        public Builder dimensions(int dimensions) {
+            this.dimensions = dimensions;
+            return this;
+        }
+
+        /**
+         * 每层邻居数，越大召回越高、占用越多
+         */
+        public Builder m(int m) {
+            this.m = m;
+            return this;
+        }
+
+        /**
+         * 建图时的候选集大小
+         */
+        public Builder efConstruction(int efConstruction) {
+            this.efConstruction = efConstruction;
+            return this;
+        }
+
+        /**
+         * 查询时的候选集大小，实际取它与 topK 的较大值
+         */
+        public Builder efSearch(int efSearch) {
+            this.efSearch = efSearch;
+            return this;
+        }
+
+        /**
+         * 遍历时使用的向量压缩方式，切换后下次启动重新训练和编码，图不用重建
+         */
+        public Builder quantization(Quantization quantization) {
+            this.quantization = quantization;
+            return this;
+        }
+
+        /**
+         * 乘积量化的子空间个数，即每个向量的编码字节数
+         */
+        public Builder pqSubspaces(int pqSubspaces) {
+            this.pqSubspaces = pqSubspaces;
+            return this;
+        }
+
+        /**
+         * 量化时用原始向量精排 topK 的多少倍候选
+         */
+        public Builder rerankFactor(int rerankFactor) {
+            this.rerankFactor = Math.max(rerankFactor, 1);
+            return this;
+        }
+
+        /**
+         * 文档数达到该值时训练量化器，之前查询全程用原始向量
+         */
+        public Builder trainSize(int trainSize) {
+            this.trainSize = trainSize;
+            return this;
+        }
+
+        @Override
+        public HnswVectorStore build() {
+            return new HnswVectorStore(this);
+        }
+    }
+}
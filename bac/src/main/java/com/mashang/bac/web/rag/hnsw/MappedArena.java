@@ -0,0 +1,183 @@
+package com.mashang.bac.web.rag.hnsw;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 内存映射的定长记录区
+ * <p>
+ * 文件 = 128 字节文件头 + 若干等长分块，每块放整数条记录，记录不跨块；按需追加分块并映射，
+ * 已映射的分块不会重新映射，读线程拿到的缓冲区一直有效。
+ * <p>
+ * 文件头：魔数、版本、记录字节数、每块记录数、记录数，以及 8 个供上层使用的 long。
+ */
+@Slf4j
+final class MappedArena implements AutoCloseable {
+
+    private static final int MAGIC = 0x48415245;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 128;
+    private static final int CHUNK_BYTES = 32 << 20;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_RECORD_BYTES = 8;
+    private static final int OFFSET_RECORDS_PER_CHUNK = 12;
+    private static final int OFFSET_COUNT = 16;
+    private static final int OFFSET_USER = 64;
+
+    static final int USER_FIELDS = 8;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int recordBytes;
+    private final int recordsPerChunk;
+    private final boolean fresh;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private volatile long count;
+
+    /**
+     * @param file        文件
+     * @param recordBytes 每条记录的字节数
+     * @param reset       为 true 时丢弃已有内容
+     */
+    MappedArena(Path file, int recordBytes, boolean reset) {
+        this.file = file;
+        this.recordBytes = recordBytes;
+        this.recordsPerChunk = Math.max(1, CHUNK_BYTES / recordBytes);
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            boolean valid = !reset && channel.size() >= HEADER_BYTES;
+            if (!valid) {
+                channel.truncate(0);
+            }
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            valid = valid && header.getInt(OFFSET_MAGIC) == MAGIC && header.getInt(OFFSET_VERSION) == VERSION
+                    && header.getInt(OFFSET_RECORD_BYTES) == recordBytes
+                    && header.getInt(OFFSET_RECORDS_PER_CHUNK) == recordsPerChunk;
+            if (!valid) {
+                channel.truncate(HEADER_BYTES);
+                for (int offset = 0; offset < HEADER_BYTES; offset += 8) {
+                    header.putLong(offset, 0L);
+                }
+                header.putInt(OFFSET_MAGIC, MAGIC);
+                header.putInt(OFFSET_VERSION, VERSION);
+                header.putInt(OFFSET_RECORD_BYTES, recordBytes);
+                header.putInt(OFFSET_RECORDS_PER_CHUNK, recordsPerChunk);
+            }
+            this.fresh = !valid;
+            this.count = header.getLong(OFFSET_COUNT);
+            ensureCapacity(count);
+        } catch (IOException e) {
+            throw new UncheckedIOException("打开向量索引文件失败: " + file, e);
+        }
+    }
+
+    /**
+     * 文件是新建或重建的
+     */
+    boolean isFresh() {
+        return fresh;
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * 追加 n 条记录(内容全为 0)
+     *
+     * @return 第一条记录的下标
+     */
+    synchronized long allocate(int n) {
+        long first = count;
+        ensureCapacity(first + n);
+        count = first + n;
+        header.putLong(OFFSET_COUNT, count);
+        return first;
+    }
+
+    /**
+     * 把记录数对齐到指定值，用于与其他文件的记录数保持一致
+     */
+    synchronized void resize(long newCount) {
+        ensureCapacity(newCount);
+        count = newCount;
+        header.putLong(OFFSET_COUNT, count);
+    }
+
+    synchronized long userField(int index) {
+        return header.getLong(OFFSET_USER + index * 8);
+    }
+
+    synchronized void userField(int index, long value) {
+        header.putLong(OFFSET_USER + index * 8, value);
+    }
+
+    /**
+     * 记录所在的分块
+     */
+    MappedByteBuffer chunk(long record) {
+        return chunks[(int) (record / recordsPerChunk)];
+    }
+
+    /**
+     * 记录在分块内的字节偏移
+     */
+    int offset(long record) {
+        return (int) (record % recordsPerChunk) * recordBytes;
+    }
+
+    /**
+     * 已映射的全部字节数
+     */
+    long mappedBytes() {
+        return HEADER_BYTES + (long) chunks.length * recordsPerChunk * recordBytes;
+    }
+
+    void force() {
+        header.force();
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private void ensureCapacity(long records) {
+        int needed = (int) ((records + recordsPerChunk - 1) / recordsPerChunk);
+        MappedByteBuffer[] current = chunks;
+        if (needed <= current.length) {
+            return;
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(current, needed);
+        long chunkBytes = (long) recordsPerChunk * recordBytes;
+        try {
+            for (int i = current.length; i < needed; i++) {
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * chunkBytes, chunkBytes);
+                grown[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("扩展向量索引文件失败: " + file, e);
+        }
+        chunks = grown;
+    }
+}
@@ -0,0 +1,207 @@
+package com.mashang.bac.web.rag.hnsw;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 乘积量化
+ * <p>
+ * 向量按维度切成 subspaces 段，每段用 k-means 训练 256 个聚类中心，编码为每段最近中心的下标。
+ * 查询时先算出查询向量每段与全部中心的点积表，估算距离只需每段查一次表再相加。
+ */
+final class ProductQuantizer implements VectorQuantizer {
+
+    private static final int CENTROIDS = 256;
+    private static final int ITERATIONS = 10;
+    private static final long SEED = 42L;
+
+    private final int dimensions;
+    private final int[] starts;
+    /**
+     * 每段的聚类中心，按中心下标连续存放
+     */
+    private final float[][] centroids;
+
+    private ProductQuantizer(int dimensions, int subspaces, float[][] centroids) {
+        this.dimensions = dimensions;
+        this.starts = starts(dimensions, subspaces);
+        this.centroids = centroids;
+    }
+
+    /**
+     * @param samples   归一化后的训练样本
+     * @param subspaces 子空间个数，即编码字节数
+     */
+    static ProductQuantizer train(List<float[]> samples, int subspaces) {
+        int dimensions = samples.get(0).length;
+        int[] starts = starts(dimensions, subspaces);
+        int count = Math.min(CENTROIDS, samples.size());
+        Random random = new Random(SEED);
+        float[][] centroids = new float[subspaces][];
+        for (int s = 0; s < subspaces; s++) {
+            centroids[s] = kMeans(samples, starts[s], starts[s + 1] - starts[s], count, random);
+        }
+        return new ProductQuantizer(dimensions, subspaces, centroids);
+    }
+
+    static ProductQuantizer read(DataInputStream in, int dimensions) throws IOException {
+        int subspaces = in.readInt();
+        int[] starts = starts(dimensions, subspaces);
+        float[][] centroids = new float[subspaces][];
+        for (int s = 0; s < subspaces; s++) {
+            centroids[s] = new float[in.readInt() * (starts[s + 1] - starts[s])];
+            for (int i = 0; i < centroids[s].length; i++) {
+                centroids[s][i] = in.readFloat();
+            }
+        }
+        return new ProductQuantizer(dimensions, subspaces, centroids);
+    }
+
+    @Override
+    public Quantization type() {
+        return Quantization.PQ;
+    }
+
+    @Override
+    public int dimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public int codeBytes() {
+        return centroids.length;
+    }
+
+    @Override
+    public void encode(float[] vector, byte[] code) {
+        for (int s = 0; s < centroids.length; s++) {
+            code[s] = (byte) nearest(vector, starts[s], starts[s + 1] - starts[s], centroids[s]);
+        }
+    }
+
+    @Override
+    public CodeDistance distance(float[] query) {
+        int subspaces = centroids.length;
+        float[] table = new float[subspaces * CENTROIDS];
+        for (int s = 0; s < subspaces; s++) {
+            int start = starts[s];
+            int length = starts[s + 1] - start;
+            float[] subspace = centroids[s];
+            for (int c = 0; c < subspace.length / length; c++) {
+                float dot = 0;
+                for (int i = 0; i < length; i++) {
+                    dot += query[start + i] * subspace[c * length + i];
+                }
+                table[s * CENTROIDS + c] = dot;
+            }
+        }
+        return code -> {
+            float dot = 0;
+            for (int s = 0; s < subspaces; s++) {
+                dot += table[s * CENTROIDS + (code[s] & 0xFF)];
+            }
+            return 1 - dot;
+        };
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(Quantization.PQ.ordinal());
+        out.writeInt(dimensions);
+        out.writeInt(centroids.length);
+        for (int s = 0; s < centroids.length; s++) {
+            int length = starts[s + 1] - starts[s];
+            out.writeInt(centroids[s].length / length);
+            for (float value : centroids[s]) {
+                out.writeFloat(value);
+            }
+        }
+    }
+
+    /**
+     * 维度不能整除时前面的段少一维
+     */
+    private static int[] starts(int dimensions, int subspaces) {
+        int[] starts = new int[subspaces + 1];
+        for (int s = 0; s <= subspaces; s++) {
+            starts[s] = (int) ((long) s * dimensions / subspaces);
+        }
+        return starts;
+    }
+
+    /**
+     * 对一段维度做 k-means，初始中心随机取不重复的样本，空簇重新随机取一个样本
+     */
+    private static float[] kMeans(List<float[]> samples, int start, int length, int count, Random random) {
+        int n = samples.size();
+        float[] centroids = new float[count * length];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(n - i);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+            System.arraycopy(samples.get(order[i]), start, centroids, i * length, length);
+        }
+
+        int[] assignment = new int[n];
+        float[] sums = new float[count * length];
+        int[] sizes = new int[count];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                int nearest = nearest(samples.get(i), start, length, centroids);
+                changed |= iteration == 0 || nearest != assignment[i];
+                assignment[i] = nearest;
+            }
+            if (!changed) {
+                break;
+            }
+            Arrays.fill(sums, 0);
+            Arrays.fill(sizes, 0);
+            for (int i = 0; i < n; i++) {
+                float[] sample = samples.get(i);
+                int base = assignment[i] * length;
+                for (int d = 0; d < length; d++) {
+                    sums[base + d] += sample[start + d];
+                }
+                sizes[assignment[i]]++;
+            }
+            for (int c = 0; c < count; c++) {
+                if (sizes[c] == 0) {
+                    System.arraycopy(samples.get(random.nextInt(n)), start, centroids, c * length, length);
+                    continue;
+                }
+                for (int d = 0; d < length; d++) {
+                    centroids[c * length + d] = sums[c * length + d] / sizes[c];
+                }
+            }
+        }
+        return centroids;
+    }
+
+    private static int nearest(float[] vector, int start, int length, float[] centroids) {
+        int best = 0;
+        float bestDistance = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < centroids.length / length; c++) {
+            float distance = 0;
+            int base = c * length;
+            for (int d = 0; d < length; d++) {
+                float diff = vector[start + d] - centroids[base + d];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+}
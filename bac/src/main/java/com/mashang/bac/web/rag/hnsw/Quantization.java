@@ -0,0 +1,24 @@
+package com.mashang.bac.web.rag.hnsw;
+
+/**
+ * 向量压缩方式
+ * <p>
+ * 压缩后的编码只用于在图上遍历时估算距离，候选集再用原始向量精排，返回的相似度始终是精确值。
+ */
+public enum Quantization {
+
+    /**
+     * 不压缩，直接用原始向量计算距离
+     */
+    NONE,
+
+    /**
+     * 标量量化：每一维按训练样本的最小值、最大值线性映射到 0-255，占原始向量的 1/4
+     */
+    INT8,
+
+    /**
+     * 乘积量化：向量切成若干子空间，每个子空间用 256 个聚类中心之一表示，每个子空间占 1 字节
+     */
+    PQ
+}
@@ -0,0 +1,120 @@
+package com.mashang.bac.web.rag.hnsw;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * int8 标量量化
+ * <p>
+ * 每一维取训练样本的最小值和最大值，x ≈ min + code * scale；
+ * 点积 = Σ q·min + Σ (q·scale)·code，前一项在查询开始时算好，q·scale 按最大绝对值缩放成整数，
+ * 后一项用整数累加，1536 维时也不会溢出。
+ */
+final class ScalarQuantizer implements VectorQuantizer {
+
+    /**
+     * 查询权重的整数范围，保证 维度 × 255 × WEIGHT_RANGE 不超过 int
+     */
+    private static final int WEIGHT_RANGE = 4095;
+
+    private final float[] min;
+    private final float[] scale;
+
+    private ScalarQuantizer(float[] min, float[] scale) {
+        this.min = min;
+        this.scale = scale;
+    }
+
+    /**
+     * @param samples 归一化后的训练样本
+     */
+    static ScalarQuantizer train(List<float[]> samples) {
+        int dimensions = samples.get(0).length;
+        float[] min = new float[dimensions];
+        float[] max = new float[dimensions];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        for (float[] sample : samples) {
+            for (int i = 0; i < dimensions; i++) {
+                min[i] = Math.min(min[i], sample[i]);
+                max[i] = Math.max(max[i], sample[i]);
+            }
+        }
+        float[] scale = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            scale[i] = (max[i] - min[i]) / 255;
+        }
+        return new ScalarQuantizer(min, scale);
+    }
+
+    static ScalarQuantizer read(DataInputStream in, int dimensions) throws IOException {
+        float[] min = new float[dimensions];
+        float[] scale = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            min[i] = in.readFloat();
+            scale[i] = in.readFloat();
+        }
+        return new ScalarQuantizer(min, scale);
+    }
+
+    @Override
+    public Quantization type() {
+        return Quantization.INT8;
+    }
+
+    @Override
+    public int dimensions() {
+        return min.length;
+    }
+
+    @Override
+    public int codeBytes() {
+        return min.length;
+    }
+
+    @Override
+    public void encode(float[] vector, byte[] code) {
+        for (int i = 0; i < min.length; i++) {
+            // 训练样本之外的向量可能越界，截断到 0-255
+            int value = scale[i] == 0 ? 0 : Math.round((vector[i] - min[i]) / scale[i]);
+            code[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+    }
+
+    @Override
+    public CodeDistance distance(float[] query) {
+        float bias = 0;
+        float maxWeight = 0;
+        for (int i = 0; i < min.length; i++) {
+            bias += query[i] * min[i];
+            maxWeight = Math.max(maxWeight, Math.abs(query[i] * scale[i]));
+        }
+        int range = (int) Math.min(WEIGHT_RANGE, Integer.MAX_VALUE / 255L / min.length);
+        float unit = maxWeight == 0 ? 0 : maxWeight / range;
+        int[] weights = new int[min.length];
+        for (int i = 0; i < min.length; i++) {
+            weights[i] = unit == 0 ? 0 : Math.round(query[i] * scale[i] / unit);
+        }
+        float offset = 1 - bias;
+        return code -> {
+            int dot = 0;
+            for (int i = 0; i < weights.length; i++) {
+                dot += weights[i] * (code[i] & 0xFF);
+            }
+            return offset - dot * unit;
+        };
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(Quantization.INT8.ordinal());
+        out.writeInt(min.length);
+        for (int i = 0; i < min.length; i++) {
+            out.writeFloat(min[i]);
+            out.writeFloat(scale[i]);
+        }
+    }
+}
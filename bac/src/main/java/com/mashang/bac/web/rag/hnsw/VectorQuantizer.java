@@ -0,0 +1,56 @@
+package com.mashang.bac.web.rag.hnsw;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 向量量化器：把归一化后的向量压缩成定长编码，并估算查询向量与编码之间的余弦距离
+ */
+interface VectorQuantizer {
+
+    Quantization type();
+
+    int dimensions();
+
+    /**
+     * 每个向量的编码字节数
+     */
+    int codeBytes();
+
+    /**
+     * @param vector 归一化后的向量
+     * @param code   长度为 {@link #codeBytes()} 的输出
+     */
+    void encode(float[] vector, byte[] code);
+
+    /**
+     * 针对一个查询预先算好查表数据，返回的距离函数只在单个线程内使用
+     *
+     * @param query 归一化后的查询向量
+     */
+    CodeDistance distance(float[] query);
+
+    /**
+     * 保存参数，开头写类型和维度
+     */
+    void write(DataOutputStream out) throws IOException;
+
+    static VectorQuantizer read(DataInputStream in) throws IOException {
+        Quantization type = Quantization.values()[in.readInt()];
+        int dimensions = in.readInt();
+        return switch (type) {
+            case INT8 -> ScalarQuantizer.read(in, dimensions);
+            case PQ -> ProductQuantizer.read(in, dimensions);
+            case NONE -> throw new IOException("量化参数文件类型错误");
+        };
+    }
+
+    /**
+     * 查询向量到编码的近似余弦距离(1 - 点积)
+     */
+    @FunctionalInterface
+    interface CodeDistance {
+        float distance(byte[] code);
+    }
+}
@@ -0,0 +1,364 @@
+package com.mashang.bac.web.rag.pipeline;
+
+import java.io.Serial;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 分阶段入库流水线
+ * <p>
+ * 相邻阶段之间用有界队列连接，每个阶段有独立的并行度，下游处理不过来时上游阻塞(背压)，
+ * 因此无论语料多大，流水线中同时存在的数据量都只和队列容量、并行度有关。
+ * 调用大模型、向量模型这类等待网络的阶段可以使用虚拟线程，读文件、切分这类计算阶段使用平台线程。
+ * <p>
+ * 任一阶段抛出异常后流水线整体中止，{@link #forEach} 抛出第一个异常。
+ *
+ * <pre>{@code
+ * List<StageMetrics> metrics = IngestionPipeline.from(resources, 64)
+ *         .flatMap("load", 2, false, this::load)
+ *         .batch(10)
+ *         .map("embed", 4, true, this::embed)
+ *         .forEach("write", 1, false, this::write);
+ * }</pre>
+ *
+ * @param <T> 当前阶段的输出类型
+ */
+public final class IngestionPipeline<T> {
+
+    /**
+     * 队列结束标记
+     */
+    private static final Object END = new Object();
+
+    private static final long POLL_MILLIS = 50;
+
+    private final Iterable<?> source;
+    private final int queueCapacity;
+    private final List<StageDefinition> stages;
+
+    private IngestionPipeline(Iterable<?> source, int queueCapacity, List<StageDefinition> stages) {
+        this.source = source;
+        this.queueCapacity = queueCapacity;
+        this.stages = stages;
+    }
+
+    /**
+     * @param source        数据源，由调用线程逐条放入第一个阶段的队列
+     * @param queueCapacity 每个阶段输入队列的容量
+     */
+    public static <T> IngestionPipeline<T> from(Iterable<T> source, int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        return new IngestionPipeline<>(source, queueCapacity, List.of());
+    }
+
+    /**
+     * 一条输入产出零到多条输出
+     */
+    public <R> IngestionPipeline<R> flatMap(String name, int parallelism, boolean virtualThreads,
+                                            Function<? super T, ? extends Collection<? extends R>> function) {
+        return then(new StageDefinition(name, parallelism, virtualThreads, true, () -> new Worker() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void accept(Object item, Emitter out) throws InterruptedException {
+                for (R result : function.apply((T) item)) {
+                    out.emit(result);
+                }
+            }
+        }));
+    }
+
+    /**
+     * 一条输入产出一条输出，返回 null 时丢弃
+     */
+    public <R> IngestionPipeline<R> map(String name, int parallelism, boolean virtualThreads,
+                                        Function<? super T, ? extends R> function) {
+        return then(new StageDefinition(name, parallelism, virtualThreads, true, () -> new Worker() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void accept(Object item, Emitter out) throws InterruptedException {
+                R result = function.apply((T) item);
+                if (result != null) {
+                    out.emit(result);
+                }
+            }
+        }));
+    }
+
+    /**
+     * 按条数分批，最后一批可能不满；分批本身不计入阶段统计
+     */
+    public IngestionPipeline<List<T>> batch(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        return then(new StageDefinition("batch", 1, false, false, () -> new Worker() {
+            private List<Object> current = new ArrayList<>(size);
+
+            @Override
+            public void accept(Object item, Emitter out) throws InterruptedException {
+                current.add(item);
+                if (current.size() == size) {
+                    out.emit(current);
+                    current = new ArrayList<>(size);
+                }
+            }
+
+            @Override
+            public void finish(Emitter out) throws InterruptedException {
+                if (!current.isEmpty()) {
+                    out.emit(current);
+                }
+            }
+        }));
+    }
+
+    /**
+     * 添加最后一个阶段并运行整条流水线，所有数据处理完后返回
+     *
+     * @return 各阶段统计，按阶段顺序
+     */
+    public List<StageMetrics> forEach(String name, int parallelism, boolean virtualThreads,
+                                      Consumer<? super T> action) {
+        return then(new StageDefinition(name, parallelism, virtualThreads, true, () -> new Worker() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void accept(Object item, Emitter out) {
+                action.accept((T) item);
+            }
+        })).run();
+    }
+
+    private <R> IngestionPipeline<R> then(StageDefinition stage) {
+        if (stage.parallelism() <= 0) {
+            throw new IllegalArgumentException("parallelism of stage " + stage.name() + " must be positive");
+        }
+        List<StageDefinition> next = new ArrayList<>(stages);
+        next.add(stage);
+        return new IngestionPipeline<>(source, queueCapacity, List.copyOf(next));
+    }
+
+    private List<StageMetrics> run() {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<BlockingQueue<Object>> queues = new ArrayList<>();
+        for (int i = 0; i < stages.size(); i++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+        long start = System.nanoTime();
+        List<StageRun> runs = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < stages.size(); i++) {
+            StageRun run = new StageRun(stages.get(i), queues.get(i),
+                    i + 1 < queues.size() ? queues.get(i + 1) : null, failure, start);
+            runs.add(run);
+            threads.addAll(run.start());
+        }
+
+        try {
+            BlockingQueue<Object> first = queues.get(0);
+            for (Object item : source) {
+                put(first, item, failure);
+            }
+            put(first, END, failure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        } catch (AbortedException ignored) {
+            // 某个阶段已失败
+        } catch (RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+        }
+        awaitAll(threads, failure);
+
+        Throwable error = failure.get();
+        if (error instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+        if (error instanceof Error e) {
+            throw e;
+        }
+        if (error instanceof InterruptedException) {
+            throw new IllegalStateException("入库流水线被中断", error);
+        }
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
+        return runs.stream().filter(run -> run.definition.reported()).map(StageRun::metrics).toList();
+    }
+
+    /**
+     * 等待所有工作线程结束；出错时中断仍在处理(例如卡在模型调用上)的线程
+     */
+    private static void awaitAll(List<Thread> threads, AtomicReference<Throwable> failure) {
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    failure.compareAndSet(null, e);
+                }
+                if (failure.get() != null) {
+                    threads.forEach(Thread::interrupt);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void put(BlockingQueue<Object> queue, Object item,
+                            AtomicReference<Throwable> failure) throws InterruptedException {
+        while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null) {
+                throw AbortedException.INSTANCE;
+            }
+        }
+    }
+
+    private static Object take(BlockingQueue<Object> queue,
+                               AtomicReference<Throwable> failure) throws InterruptedException {
+        Object item;
+        while ((item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+            if (failure.get() != null) {
+                throw AbortedException.INSTANCE;
+            }
+        }
+        return item;
+    }
+
+    private record StageDefinition(String name, int parallelism, boolean virtualThreads, boolean reported,
+                                   Supplier<Worker> workers) {
+    }
+
+    private interface Worker {
+
+        void accept(Object item, Emitter out) throws InterruptedException;
+
+        default void finish(Emitter out) throws InterruptedException {
+        }
+    }
+
+    private interface Emitter {
+
+        void emit(Object item) throws InterruptedException;
+    }
+
+    /**
+     * 一个阶段的运行状态
+     */
+    private static final class StageRun {
+
+        private final StageDefinition definition;
+        private final BlockingQueue<Object> input;
+        private final BlockingQueue<Object> output;
+        private final AtomicReference<Throwable> failure;
+        private final long start;
+        private final AtomicInteger running;
+        private final LongAdder itemsIn = new LongAdder();
+        private final LongAdder itemsOut = new LongAdder();
+        private final LongAdder busyNanos = new LongAdder();
+        private final LongAdder idleNanos = new LongAdder();
+        private final LongAdder blockedNanos = new LongAdder();
+        private volatile long end;
+
+        StageRun(StageDefinition definition, BlockingQueue<Object> input, BlockingQueue<Object> output,
+                 AtomicReference<Throwable> failure, long start) {
+            this.definition = definition;
+            this.input = input;
+            this.output = output;
+            this.failure = failure;
+            this.start = start;
+            this.running = new AtomicInteger(definition.parallelism());
+        }
+
+        List<Thread> start() {
+            String prefix = "ingest-" + definition.name() + "-";
+            ThreadFactory factory = definition.virtualThreads()
+                    ? Thread.ofVirtual().name(prefix, 0).factory()
+                    : Thread.ofPlatform().name(prefix, 0).daemon().factory();
+            List<Thread> threads = new ArrayList<>(definition.parallelism());
+            for (int i = 0; i < definition.parallelism(); i++) {
+                Thread thread = factory.newThread(this::work);
+                threads.add(thread);
+                thread.start();
+            }
+            return threads;
+        }
+
+        private void work() {
+            Worker worker = definition.workers().get();
+            // 工作线程私有，处理耗时要扣掉其中等待下游队列的时间
+            long[] blocked = new long[1];
+            Emitter emitter = item -> {
+                long begin = System.nanoTime();
+                if (output != null) {
+                    put(output, item, failure);
+                }
+                itemsOut.increment();
+                blocked[0] += System.nanoTime() - begin;
+            };
+            try {
+                while (true) {
+                    long waitBegin = System.nanoTime();
+                    Object item = take(input, failure);
+                    long begin = System.nanoTime();
+                    idleNanos.add(begin - waitBegin);
+                    if (item == END) {
+                        // 放回去让同阶段的其他线程也能看到结束标记
+                        put(input, END, failure);
+                        break;
+                    }
+                    itemsIn.increment();
+                    blocked[0] = 0;
+                    worker.accept(item, emitter);
+                    blockedNanos.add(blocked[0]);
+                    busyNanos.add(System.nanoTime() - begin - blocked[0]);
+                }
+                worker.finish(emitter);
+                if (running.decrementAndGet() == 0) {
+                    end = System.nanoTime();
+                    if (output != null) {
+                        put(output, END, failure);
+                    }
+                }
+            } catch (AbortedException ignored) {
+                // 其他阶段已失败
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        StageMetrics metrics() {
+            return new StageMetrics(definition.name(), definition.parallelism(), definition.virtualThreads(),
+                    itemsIn.sum(), itemsOut.sum(), busyNanos.sum(), idleNanos.sum(), blockedNanos.sum(),
+                    end - start);
+        }
+    }
+
+    private static final class AbortedException extends RuntimeException {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        static final AbortedException INSTANCE = new AbortedException();
+
+        private AbortedException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.mashang.bac.web.rag.pipeline;
+
+/**
+ * 流水线单个阶段的统计
+ * <p>
+ * 利用率接近 1 的阶段就是瓶颈；上游阶段此时输出阻塞时间会明显变长(下游队列满)，
+ * 下游阶段则输入等待时间变长(上游供给不足)。
+ *
+ * @param name          阶段名
+ * @param parallelism   并行度
+ * @param virtualThreads 是否使用虚拟线程
+ * @param itemsIn       处理的输入条数
+ * @param itemsOut      产出的条数
+ * @param busyNanos     所有工作线程处理耗时之和
+ * @param idleNanos     所有工作线程等待输入耗时之和
+ * @param blockedNanos  所有工作线程因下游队列满而阻塞的耗时之和
+ * @param elapsedNanos  阶段从开始到结束的时长
+ */
+public record StageMetrics(String name, int parallelism, boolean virtualThreads, long itemsIn, long itemsOut,
+                           long busyNanos, long idleNanos, long blockedNanos, long elapsedNanos) {
+
+    /**
+     * 吞吐量(输入条数/秒)
+     */
+    public double throughput() {
+        return elapsedNanos == 0 ? 0 : itemsIn * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    /**
+     * 利用率：处理耗时占全部工作线程可用时间的比例
+     */
+    public double utilization() {
+        return elapsedNanos == 0 ? 0 : (double) busyNanos / ((double) elapsedNanos * parallelism);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[x%d%s] in=%d out=%d %.1f/s busy=%.0f%% idle=%dms blocked=%dms",
+                name, parallelism, virtualThreads ? " virtual" : "", itemsIn, itemsOut, throughput(),
+                utilization() * 100, idleNanos / 1_000_000, blockedNanos / 1_000_000);
+    }
+}
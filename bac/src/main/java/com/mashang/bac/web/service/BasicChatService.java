@@ -3,19 +3,21 @@ package com.mashang.bac.web.service;
 import com.mashang.bac.web.app.LoveApp;
 import com.mashang.bac.web.advisor.MyAdvisor;
 import com.mashang.bac.web.advisor.ProhibitedWordAdvisor;
-import com.mashang.bac.web.chatmemory.InMemoryChatMemory;
+import com.mashang.bac.web.advisor.TokenBudgetMemoryAdvisor;
+import com.mashang.bac.web.chatmemory.ConversationSummarizer;
+import com.mashang.bac.web.moderation.ProhibitedWordDictionary;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.ai.chat.prompt.SystemPromptTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.stereotype.Service;
 
-import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_RETRIEVE_SIZE_KEY;
+import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY;
 
 /**
  * 基础对话服务
@@ -27,9 +29,10 @@ public class BasicChatService {
     private final ChatClient client;
     private final Resource systemResource;
 
-    public BasicChatService(ChatModel dashscopeChatModel, ResourceLoader resourceLoader) {
-        // 使用内存存储，避免序列化问题
-        ChatMemory chatMemory = new InMemoryChatMemory();
+    public BasicChatService(ChatModel dashscopeChatModel, ResourceLoader resourceLoader,
+                            ProhibitedWordDictionary prohibitedWordDictionary,
+                            ChatMemory jdbcChatMemory, ConversationSummarizer conversationSummarizer,
+                            @Value("${app.chat-memory.token-budget:2000}") int tokenBudget) {
         this.systemResource = resourceLoader.getResource("classpath:/prompts/system-message.st");
         SystemPromptTemplate systemPromptTemplate = new SystemPromptTemplate(systemResource);
         // 读取模板
@@ -40,12 +43,12 @@ public class BasicChatService {
                 .defaultSystem(render)
                 // 设置拦截器
                 .defaultAdvisors(
-                        // 设置入多轮对话拦截器对象
-                        new MessageChatMemoryAdvisor(chatMemory),
+                        // 多轮对话拦截器-按 token 预算选取历史，更早的对话后台压缩成摘要
+                        new TokenBudgetMemoryAdvisor(jdbcChatMemory, conversationSummarizer, tokenBudget),
                         // 使用自定义拦截器
                         new MyAdvisor(),
-                        // 违禁词拦截器
-                        new ProhibitedWordAdvisor()
+                        // 违禁词拦截器-共享词库，支持热更新
+                        new ProhibitedWordAdvisor(prohibitedWordDictionary)
                 )
                 .build();
     }
@@ -62,8 +65,8 @@ public class BasicChatService {
                 .prompt()
                 // 用户提示词-相当于发送的消息
                 .user(message)
-                // 拦截器
-                .advisors(sp -> sp.param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                // 按会话id隔离对话记忆
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
                 // 呼叫
                 .call()
                 // 获得响应对象
@@ -89,9 +92,7 @@ public class BasicChatService {
                 .prompt()
                 .system(render + "每次对话后都要生成恋爱结果，标题为{加炜}的恋爱报告，内容为建议列表")
                 .user(message)
-                .advisors(spec -> spec.param("CHAT_MEMORY_CONVERSATION_ID_KEY", chatId)
-                        // 对话记忆10条
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
                 .call()
                 .entity(LoveApp.LoveReport.class);
         log.info("loveReport: {}", loveReport);
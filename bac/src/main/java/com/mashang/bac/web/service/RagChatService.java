@@ -4,11 +4,14 @@ import com.alibaba.cloud.ai.dashscope.api.DashScopeApi;
 import com.alibaba.cloud.ai.dashscope.rag.DashScopeDocumentRetriever;
 import com.alibaba.cloud.ai.dashscope.rag.DashScopeDocumentRetrieverOptions;
 import com.mashang.bac.web.advisor.MyAdvisor;
-import com.mashang.bac.web.chatmemory.InMemoryChatMemory;
+import com.mashang.bac.web.advisor.SemanticCacheAdvisor;
+import com.mashang.bac.web.advisor.TokenBudgetMemoryAdvisor;
+import com.mashang.bac.web.chatmemory.ConversationSummarizer;
+import com.mashang.bac.web.rag.LoveAppIngestionTask;
+import com.mashang.bac.web.rag.cache.SemanticAnswerCache;
 import com.mashang.bac.web.rag.factory.LoveAppRagCustomAdvisorFactory;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
 import org.springframework.ai.chat.client.advisor.QuestionAnswerAdvisor;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.model.ChatModel;
@@ -29,7 +32,6 @@ import org.springframework.stereotype.Service;
 import java.util.List;
 
 import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY;
-import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.CHAT_MEMORY_RETRIEVE_SIZE_KEY;
 
 /**
  * RAG对话服务
@@ -46,15 +48,20 @@ public class RagChatService {
     private final ChatModel dashscopeChatModel;
     private final VectorStore loveAppVectorStore;
     private final VectorStore pgVectorVectorStore;
+    private final LoveAppIngestionTask loveAppIngestionTask;
+    private final SemanticAnswerCache semanticAnswerCache;
 
     public RagChatService(ChatModel dashscopeChatModel, ResourceLoader resourceLoader, 
-                         VectorStore loveAppVectorStore, VectorStore pgVectorVectorStore) {
+                         VectorStore loveAppVectorStore, VectorStore pgVectorVectorStore,
+                         ChatMemory jdbcChatMemory, ConversationSummarizer conversationSummarizer,
+                         LoveAppIngestionTask loveAppIngestionTask, SemanticAnswerCache semanticAnswerCache,
+                         @Value("${app.chat-memory.token-budget:2000}") int tokenBudget) {
         this.dashscopeChatModel = dashscopeChatModel;
         this.loveAppVectorStore = loveAppVectorStore;
         this.pgVectorVectorStore = pgVectorVectorStore;
+        this.loveAppIngestionTask = loveAppIngestionTask;
+        this.semanticAnswerCache = semanticAnswerCache;
         
-        // 使用内存存储，避免序列化问题
-        ChatMemory chatMemory = new InMemoryChatMemory();
         this.systemResource = resourceLoader.getResource("classpath:/prompts/system-message.st");
         SystemPromptTemplate systemPromptTemplate = new SystemPromptTemplate(systemResource);
         // 读取模板
@@ -65,8 +72,8 @@ public class RagChatService {
                 .defaultSystem(render)
                 // 设置拦截器
                 .defaultAdvisors(
-                        // 设置入多轮对话拦截器对象
-                        new MessageChatMemoryAdvisor(chatMemory),
+                        // 多轮对话拦截器-按 token 预算选取历史，更早的对话后台压缩成摘要
+                        new TokenBudgetMemoryAdvisor(jdbcChatMemory, conversationSummarizer, tokenBudget),
                         // 使用自定义拦截器
                         new MyAdvisor()
                 )
@@ -81,13 +88,18 @@ public class RagChatService {
      * @return
      */
     public String doChatWithRag(String message, String chatId) {
+        // 知识库还在首次入库，直接返回提示，不去检索空库
+        if (!loveAppIngestionTask.isServable()) {
+            return LoveAppIngestionTask.WARMING_MESSAGE;
+        }
         // 改写
         String writeStr = write(message);
         ChatResponse chatResponse = client
                 .prompt()
                 .user(writeStr)
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
+                // 会话第一轮的相似问题直接复用回答，不再检索和生成；带历史的追问不走缓存
+                .advisors(new SemanticCacheAdvisor(semanticAnswerCache, "rag", "status=已婚"))
                 .advisors(new MyAdvisor())
                 // 请求拦截，塞入一个本地的rag知识库(vectorStore对象就是读取本地的)
                 // 踩坑：名称一定要和自己写的一样
@@ -119,12 +131,17 @@ public class RagChatService {
      * 智能状态识别对话 - AI自动分析用户状态并筛选相关文档
      */
     public String doChatWithSmartRag(String message, String chatId) {
+        // 知识库还在首次入库，直接返回提示，不去检索空库
+        if (!loveAppIngestionTask.isServable()) {
+            return LoveAppIngestionTask.WARMING_MESSAGE;
+        }
         String writeStr = write(message);
         ChatResponse chatResponse = client
                 .prompt()
                 .user(writeStr)
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
+                // 状态由检索器自行分析，按路由整体分区
+                .advisors(new SemanticCacheAdvisor(semanticAnswerCache, "smart", null))
                 .advisors(new MyAdvisor())
                 // 智能状态识别检索器 - AI自动分析用户状态
                 .advisors(LoveAppRagCustomAdvisorFactory.createSmartStatusRagAdvisor(
@@ -141,12 +158,17 @@ public class RagChatService {
      * 多状态组合对话 - 支持多个恋爱状态同时查询
      */
     public String doChatWithMultiStatusRag(String message, String chatId, List<String> statusList) {
+        // 知识库还在首次入库，直接返回提示，不去检索空库
+        if (!loveAppIngestionTask.isServable()) {
+            return LoveAppIngestionTask.WARMING_MESSAGE;
+        }
         String writeStr = write(message);
         ChatResponse chatResponse = client
                 .prompt()
                 .user(writeStr)
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
+                .advisors(new SemanticCacheAdvisor(semanticAnswerCache, "multi",
+                        "status=" + statusList.stream().sorted().toList()))
                 .advisors(new MyAdvisor())
                 // 多状态组合检索器
                 .advisors(LoveAppRagCustomAdvisorFactory.createMultiStatusRagAdvisor(
@@ -163,12 +185,17 @@ public class RagChatService {
      * 年龄+状态组合对话 - 根据年龄和状态精确筛选
      */
     public String doChatWithAgeStatusRag(String message, String chatId, String status, int minAge, int maxAge) {
+        // 知识库还在首次入库，直接返回提示，不去检索空库
+        if (!loveAppIngestionTask.isServable()) {
+            return LoveAppIngestionTask.WARMING_MESSAGE;
+        }
         String writeStr = write(message);
         ChatResponse chatResponse = client
                 .prompt()
                 .user(writeStr)
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
+                .advisors(new SemanticCacheAdvisor(semanticAnswerCache, "age",
+                        "status=" + status + ",age=" + minAge + "-" + maxAge))
                 .advisors(new MyAdvisor())
                 // 年龄+状态组合检索器
                 .advisors(LoveAppRagCustomAdvisorFactory.createAgeStatusRagAdvisor(
@@ -227,8 +254,7 @@ public class RagChatService {
         ChatResponse chatResponse = client
                 .prompt()
                 .user(contextBuilder.toString())
-                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId)
-                        .param(CHAT_MEMORY_RETRIEVE_SIZE_KEY, 10))
+                .advisors(spec -> spec.param(CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
                 .advisors(new MyAdvisor())
                 .call()
                 .chatResponse();
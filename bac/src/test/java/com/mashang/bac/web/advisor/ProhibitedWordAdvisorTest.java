@@ -0,0 +1,105 @@
+package com.mashang.bac.web.advisor;
+
+import com.mashang.bac.web.chatmemory.InMemoryChatMemory;
+import com.mashang.bac.web.moderation.ProhibitedWordDictionary;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.metadata.ChatGenerationMetadata;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import reactor.core.publisher.Flux;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 违禁词拦截器与对话记忆-对话记忆保存打码后的回答，流式输出补发的尾巴不重复携带结束原因
+ */
+class ProhibitedWordAdvisorTest {
+
+    private static final String ANSWER = "回答里有坏词。最后是坏";
+    private static final String MASKED = "回答里有**。最后是坏";
+
+    @TempDir
+    Path dir;
+
+    private final InMemoryChatMemory chatMemory = new InMemoryChatMemory();
+
+    @Test
+    void memoryStoresModeratedCallAnswer() throws Exception {
+        String answer = client().prompt()
+                .user("你好")
+                .advisors(spec -> spec.param(AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY, "call"))
+                .call()
+                .content();
+
+        Assertions.assertEquals(MASKED, answer);
+        List<Message> stored = chatMemory.get("call", 10);
+        Assertions.assertEquals(2, stored.size());
+        Assertions.assertEquals(MASKED, stored.get(1).getText());
+    }
+
+    @Test
+    void memoryStoresModeratedStreamAndTailHasNoFinishReason() throws Exception {
+        List<ChatResponse> chunks = client().prompt()
+                .user("你好")
+                .advisors(spec -> spec.param(AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY, "stream"))
+                .stream()
+                .chatResponse()
+                .collectList()
+                .block();
+
+        StringBuilder text = new StringBuilder();
+        chunks.forEach(chunk -> text.append(chunk.getResult().getOutput().getText()));
+        Assertions.assertEquals(MASKED, text.toString());
+        // 扣留的 "坏" 在流结束后补发，结束原因只出现在模型的最后一个分块上
+        ChatResponse tail = chunks.get(chunks.size() - 1);
+        Assertions.assertEquals("坏", tail.getResult().getOutput().getText());
+        Assertions.assertNull(tail.getResult().getMetadata().getFinishReason());
+        Assertions.assertEquals(1, chunks.stream()
+                .filter(chunk -> "STOP".equals(chunk.getResult().getMetadata().getFinishReason())).count());
+
+        List<Message> stored = chatMemory.get("stream", 10);
+        Assertions.assertEquals(2, stored.size());
+        Assertions.assertEquals(MASKED, stored.get(1).getText());
+    }
+
+    private ChatClient client() throws Exception {
+        Path words = Files.writeString(dir.resolve("words.txt"), "坏词\n");
+        ProhibitedWordDictionary dictionary = new ProhibitedWordDictionary(
+                ProhibitedWordDictionary.DEFAULT_PROHIBITED_WORDS_FILE, words.toString());
+        // 注册顺序与实际执行顺序无关，按 getOrder 排序
+        return ChatClient.builder(new FakeChatModel())
+                .defaultAdvisors(new ProhibitedWordAdvisor(dictionary),
+                        new TokenBudgetMemoryAdvisor(chatMemory, null, TokenBudgetMemoryAdvisor.DEFAULT_TOKEN_BUDGET))
+                .build();
+    }
+
+    /**
+     * 模拟大模型：固定回答，流式时分三块输出，最后一块带结束原因
+     */
+    private static final class FakeChatModel implements ChatModel {
+
+        @Override
+        public ChatResponse call(Prompt prompt) {
+            return new ChatResponse(List.of(new Generation(new AssistantMessage(ANSWER))));
+        }
+
+        @Override
+        public Flux<ChatResponse> stream(Prompt prompt) {
+            ChatGenerationMetadata stop = ChatGenerationMetadata.builder().finishReason("STOP").build();
+            return Flux.just(
+                    new ChatResponse(List.of(new Generation(new AssistantMessage("回答里有坏")))),
+                    new ChatResponse(List.of(new Generation(new AssistantMessage("词。最后")))),
+                    new ChatResponse(List.of(new Generation(new AssistantMessage("是坏"), stop))));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.mashang.bac.web.advisor;
+
+import com.mashang.bac.web.chatmemory.InMemoryChatMemory;
+import com.mashang.bac.web.rag.cache.SemanticAnswerCache;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor;
+import org.springframework.ai.chat.client.advisor.api.AdvisedRequest;
+import org.springframework.ai.chat.client.advisor.api.AdvisedResponse;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 语义缓存与对话记忆-缓存排在对话记忆之后，相同的追问在历史不同的会话之间不能复用回答
+ */
+class SemanticCacheAdvisorTest {
+
+    private final InMemoryChatMemory chatMemory = new InMemoryChatMemory();
+    private final SemanticAnswerCache cache = new SemanticAnswerCache(new TextHashEmbeddingModel(), true, 0.92,
+            Duration.ofHours(1), 100, 16, Set.of());
+    private final TokenBudgetMemoryAdvisor memoryAdvisor = new TokenBudgetMemoryAdvisor(chatMemory, null,
+            TokenBudgetMemoryAdvisor.DEFAULT_TOKEN_BUDGET);
+    private final SemanticCacheAdvisor cacheAdvisor = new SemanticCacheAdvisor(cache, "rag", null);
+    private final AtomicInteger modelCalls = new AtomicInteger();
+
+    @Test
+    void followUpsInDifferentConversationsNeverShareAnEntry() {
+        // 第一轮没有历史，相同的问题可以复用
+        String first = ask("a", "我和对象吵架了");
+        Assertions.assertEquals(first, ask("b", "我和对象吵架了"));
+        Assertions.assertEquals(1, modelCalls.get());
+        Assertions.assertEquals(1, cache.getHits());
+
+        // 历史不同的两个会话问同一句追问，各自调用模型，也不写入缓存
+        String followUpA = ask("a", "那我该怎么办？");
+        String followUpB = ask("b", "那我该怎么办？");
+        Assertions.assertEquals(3, modelCalls.get());
+        Assertions.assertTrue(followUpA.startsWith("a:"));
+        Assertions.assertTrue(followUpB.startsWith("b:"));
+        Assertions.assertEquals(1, cache.getEntries());
+        Assertions.assertEquals(2, cache.getBypassed());
+
+        // 新会话第一轮问同一句，也不会拿到别的会话的追问回答
+        ask("c", "那我该怎么办？");
+        Assertions.assertEquals(4, modelCalls.get());
+        Assertions.assertEquals(4, chatMemory.get("a", 10).size());
+    }
+
+    private String ask(String chatId, String question) {
+        AdvisedRequest request = AdvisedRequest.builder()
+                .chatModel(prompt -> {
+                    throw new UnsupportedOperationException();
+                })
+                .userText(question)
+                .adviseContext(Map.of(AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY, chatId))
+                .build();
+        AdvisedResponse response = memoryAdvisor.aroundCall(request,
+                afterMemory -> cacheAdvisor.aroundCall(afterMemory, this::callModel));
+        return response.response().getResult().getOutput().getText();
+    }
+
+    /**
+     * 模拟大模型：回答带上会话 id 和看到的历史条数
+     */
+    private AdvisedResponse callModel(AdvisedRequest request) {
+        modelCalls.incrementAndGet();
+        String chatId = String.valueOf(request.adviseContext().get(AbstractChatMemoryAdvisor.CHAT_MEMORY_CONVERSATION_ID_KEY));
+        String answer = chatId + ":" + request.messages().size() + ":" + request.userText();
+        return new AdvisedResponse(new ChatResponse(List.of(new Generation(new AssistantMessage(answer)))),
+                request.adviseContext());
+    }
+
+    /**
+     * 相同文本得到相同向量，不同文本的向量基本正交
+     */
+    private static final class TextHashEmbeddingModel implements EmbeddingModel {
+
+        @Override
+        public EmbeddingResponse call(EmbeddingRequest request) {
+            List<Embedding> embeddings = new ArrayList<>();
+            for (String text : request.getInstructions()) {
+                Random random = new Random(text.hashCode());
+                float[] vector = new float[64];
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] = (float) random.nextGaussian();
+                }
+                embeddings.add(new Embedding(vector, embeddings.size()));
+            }
+            return new EmbeddingResponse(embeddings);
+        }
+
+        @Override
+        public float[] embed(Document document) {
+            return embed(document.getText());
+        }
+    }
+}
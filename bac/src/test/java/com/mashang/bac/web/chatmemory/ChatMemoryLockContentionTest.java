@@ -0,0 +1,301 @@
+package com.mashang.bac.web.chatmemory;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 对话记忆锁竞争-分段锁与全局锁的吞吐对比，以及同一会话并发轮次的版本检查与合并
+ * <p>
+ * {@link JdbcChatMemory} 使用内存里的 {@link FakeJdbcTemplate}，写入间隔 1ms、每 4 条提前写入，并发轮次期间会不断落库。
+ */
+class ChatMemoryLockContentionTest {
+
+    private static final int THREADS = 16;
+    private static final int CONVERSATIONS = 64;
+    private static final int TURNS = 20;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void stripedLocksVersusGlobalLock() throws Exception {
+        // 预热后计时
+        run(new FileBasedChatMemory(dir.resolve("warmup").toString(), null, StripedLocks.DEFAULT_STRIPES));
+        long globalNanos = run(new FileBasedChatMemory(dir.resolve("global").toString(), null, 1));
+        long stripedNanos = run(new FileBasedChatMemory(dir.resolve("striped").toString(), null, StripedLocks.DEFAULT_STRIPES));
+
+        System.out.printf("%d 线程 / %d 个会话 / 每个会话 %d 轮：全局锁 %d ms，分段锁(%d) %d ms%n",
+                THREADS, CONVERSATIONS, TURNS, globalNanos / 1_000_000,
+                StripedLocks.DEFAULT_STRIPES, stripedNanos / 1_000_000);
+    }
+
+    @Test
+    void concurrentTurnsStayContiguous() throws Exception {
+        assertTurnsStayContiguous(new InMemoryChatMemory());
+        assertTurnsStayContiguous(new FileBasedChatMemory(dir.toString()));
+        JdbcChatMemory jdbcChatMemory = jdbcChatMemory();
+        try {
+            assertTurnsStayContiguous(jdbcChatMemory);
+        } finally {
+            jdbcChatMemory.destroy();
+        }
+    }
+
+    @Test
+    void duplicateSubmissionIsMerged() {
+        JdbcChatMemory jdbcChatMemory = jdbcChatMemory();
+        for (VersionedChatMemory chatMemory : List.of(new InMemoryChatMemory(),
+                new FileBasedChatMemory(dir.toString()), jdbcChatMemory)) {
+            long version = chatMemory.getVersion("chat");
+            VersionedChatMemory.AppendResult first = chatMemory.appendTurn("chat", version,
+                    List.of(new UserMessage("你好"), new AssistantMessage("回答一")));
+            VersionedChatMemory.AppendResult retry = chatMemory.appendTurn("chat", version,
+                    List.of(new UserMessage("你好"), new AssistantMessage("回答二")));
+
+            Assertions.assertFalse(first.conflict());
+            Assertions.assertTrue(retry.conflict());
+            Assertions.assertEquals(0, retry.appended());
+            Assertions.assertEquals(2, chatMemory.get("chat", 10).size());
+            Assertions.assertEquals(2, chatMemory.getVersion("chat"));
+            chatMemory.clear("chat");
+        }
+        jdbcChatMemory.destroy();
+    }
+
+    @Test
+    void jdbcVersionSurvivesFlush() {
+        FakeJdbcTemplate jdbcTemplate = new FakeJdbcTemplate();
+        JdbcChatMemory chatMemory = new JdbcChatMemory(jdbcTemplate, null, JdbcChatMemory.DEFAULT_TABLE_NAME,
+                Duration.ofHours(1), 1000, false);
+        try {
+            chatMemory.appendTurn("chat", 0, List.of(new UserMessage("问题"), new AssistantMessage("回答")));
+            Assertions.assertEquals(2, chatMemory.getPendingCount());
+            chatMemory.flush();
+            Assertions.assertEquals(0, chatMemory.getPendingCount());
+            Assertions.assertEquals(2, jdbcTemplate.size());
+            chatMemory.add("chat", new UserMessage("追问"));
+
+            // 一半在数据库一半在缓冲区，版本号是两者之和；用旧版本号追加会检测到冲突
+            Assertions.assertEquals(3, chatMemory.getVersion("chat"));
+            VersionedChatMemory.AppendResult stale = chatMemory.appendTurn("chat", 2,
+                    List.of(new UserMessage("另一个问题"), new AssistantMessage("另一个回答")));
+            Assertions.assertTrue(stale.conflict());
+            Assertions.assertEquals(5, stale.version());
+            Assertions.assertEquals(0, chatMemory.getVersion("other"));
+
+            // 每个会话只 count 一次，之后的写入和落库在本地累加
+            Assertions.assertEquals(2, jdbcTemplate.countQueries.get());
+            chatMemory.flush();
+            Assertions.assertEquals(5, chatMemory.getVersion("chat"));
+            Assertions.assertEquals(2, jdbcTemplate.countQueries.get());
+
+            chatMemory.clear("chat");
+            Assertions.assertEquals(0, chatMemory.getVersion("chat"));
+            Assertions.assertEquals(3, jdbcTemplate.countQueries.get());
+        } finally {
+            chatMemory.destroy();
+        }
+    }
+
+    private static JdbcChatMemory jdbcChatMemory() {
+        return new JdbcChatMemory(new FakeJdbcTemplate(), null, JdbcChatMemory.DEFAULT_TABLE_NAME,
+                Duration.ofMillis(1), 4, false);
+    }
+
+    /**
+     * 所有线程基于同一版本同时提交不同的轮次，每一轮都应完整写入且用户消息后紧跟对应的回答
+     */
+    private static void assertTurnsStayContiguous(VersionedChatMemory chatMemory) throws Exception {
+        long version = chatMemory.getVersion("chat");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<VersionedChatMemory.AppendResult>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int turn = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                return chatMemory.appendTurn("chat", version,
+                        List.of(new UserMessage("问题" + turn), new AssistantMessage("回答" + turn)));
+            }));
+        }
+        start.countDown();
+        int conflicts = 0;
+        for (Future<VersionedChatMemory.AppendResult> future : futures) {
+            conflicts += future.get().conflict() ? 1 : 0;
+        }
+        executor.shutdown();
+
+        List<Message> history = chatMemory.get("chat", THREADS * 2);
+        Assertions.assertEquals(THREADS * 2, history.size());
+        Assertions.assertEquals(THREADS - 1, conflicts);
+        for (int i = 0; i < history.size(); i += 2) {
+            Assertions.assertEquals(MessageType.USER, history.get(i).getMessageType());
+            Assertions.assertEquals(history.get(i).getText().replace("问题", "回答"), history.get(i + 1).getText());
+        }
+    }
+
+    private static long run(FileBasedChatMemory chatMemory) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        long begin = System.nanoTime();
+        for (int c = 0; c < CONVERSATIONS; c++) {
+            String chatId = "chat-" + c;
+            futures.add(executor.submit(() -> {
+                for (int t = 0; t < TURNS; t++) {
+                    long version = chatMemory.getVersion(chatId);
+                    chatMemory.get(chatId, 10);
+                    chatMemory.appendTurn(chatId, version,
+                            List.of(new UserMessage(chatId + "问题" + t), new AssistantMessage(chatId + "回答" + t)));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        for (int c = 0; c < CONVERSATIONS; c++) {
+            Assertions.assertEquals(TURNS * 2, chatMemory.getVersion("chat-" + c));
+        }
+        return elapsed;
+    }
+
+    /**
+     * 只支持 {@link JdbcChatMemory} 用到的几条语句，消息按写入顺序存在列表里，事务提交时才可见
+     */
+    private static final class FakeJdbcTemplate extends JdbcTemplate {
+
+        private final List<Object[]> rows = new ArrayList<>();
+        private final AtomicInteger countQueries = new AtomicInteger();
+
+        synchronized int size() {
+            return rows.size();
+        }
+
+        @Override
+        public <T> T execute(ConnectionCallback<T> action) {
+            List<Object[]> staged = new ArrayList<>();
+            Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "getAutoCommit" -> true;
+                        case "prepareStatement" -> statement(staged);
+                        case "commit" -> {
+                            synchronized (this) {
+                                rows.addAll(staged);
+                            }
+                            yield null;
+                        }
+                        default -> null;
+                    });
+            try {
+                return action.doInConnection(connection);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public synchronized int update(String sql, Object... args) {
+            int before = rows.size();
+            rows.removeIf(row -> row[0].equals(args[0]));
+            return before - rows.size();
+        }
+
+        @Override
+        public <T> List<T> query(String sql, RowMapper<T> rowMapper, Object... args) {
+            List<Object[]> tail = tail((String) args[0], ((Number) args[1]).intValue());
+            List<T> result = new ArrayList<>();
+            for (Object[] row : tail) {
+                byte[] payload = (byte[]) row[3];
+                ResultSet resultSet = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[]{ResultSet.class}, (proxy, method, methodArgs) -> payload);
+                try {
+                    result.add(rowMapper.mapRow(resultSet, result.size()));
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public <T> T queryForObject(String sql, Class<T> requiredType, Object... args) {
+            List<Object[]> tail = tail((String) args[0], Integer.MAX_VALUE);
+            if (args.length == 1) {
+                countQueries.incrementAndGet();
+                return requiredType.cast((long) tail.size());
+            }
+            // 按预算倒序累加
+            long budget = ((Number) args[2]).longValue();
+            int count = 0;
+            long running = 0;
+            for (Object[] row : tail) {
+                running += (Integer) row[2];
+                if (running > budget) {
+                    break;
+                }
+                count++;
+            }
+            return requiredType.cast(count);
+        }
+
+        /**
+         * 会话最近的若干行，按 seq 倒序
+         */
+        private synchronized List<Object[]> tail(String conversationId, int limit) {
+            List<Object[]> result = new ArrayList<>();
+            for (int i = rows.size() - 1; i >= 0 && result.size() < limit; i--) {
+                if (rows.get(i)[0].equals(conversationId)) {
+                    result.add(rows.get(i));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 多行 INSERT，每行 4 个参数：conversation_id, message_type, tokens, payload
+         */
+        private PreparedStatement statement(List<Object[]> staged) {
+            Map<Integer, Object> parameters = new HashMap<>();
+            return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "setString", "setInt", "setBytes" -> parameters.put((Integer) args[0], args[1]);
+                        case "executeUpdate" -> {
+                            for (int i = 1; i <= parameters.size(); i += 4) {
+                                staged.add(new Object[]{parameters.get(i), parameters.get(i + 1),
+                                        parameters.get(i + 2), parameters.get(i + 3)});
+                            }
+                            yield parameters.size() / 4;
+                        }
+                        default -> null;
+                    });
+        }
+    }
+}
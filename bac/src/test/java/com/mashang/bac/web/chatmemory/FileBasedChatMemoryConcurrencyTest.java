@@ -0,0 +1,115 @@
+package com.mashang.bac.web.chatmemory;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件对话记忆并发压测-大量会话并发读写，校验没有丢失或损坏的历史；以及崩溃留下未索引的日志尾巴后继续追加
+ */
+class FileBasedChatMemoryConcurrencyTest {
+
+    private static final int CONVERSATIONS = 300;
+    private static final int TURNS = 20;
+    private static final int THREADS = 32;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentConversationsKeepCompleteHistories() throws Exception {
+        FileBasedChatMemory chatMemory = new FileBasedChatMemory(dir.toString());
+        ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+
+        // 每个会话的每一轮都是独立任务并打乱顺序，保证同一会话也会被多个线程同时写入
+        List<int[]> tasks = new ArrayList<>();
+        for (int c = 0; c < CONVERSATIONS; c++) {
+            for (int t = 0; t < TURNS; t++) {
+                tasks.add(new int[]{c, t});
+            }
+        }
+        Collections.shuffle(tasks);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int[] task : tasks) {
+            futures.add(executor.submit(() -> {
+                String chatId = "chat-" + task[0];
+                chatMemory.add(chatId, List.of(
+                        new UserMessage(chatId + ":user:" + task[1]),
+                        new AssistantMessage(chatId + ":assistant:" + task[1])));
+                // 写入期间并发读取，读到的每条消息都必须完整且属于该会话
+                for (Message message : chatMemory.get(chatId, 10)) {
+                    if (message.getText() == null || !message.getText().startsWith(chatId + ":")) {
+                        errors.add("会话 " + chatId + " 读到错误消息: " + message.getText());
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        Assertions.assertTrue(errors.isEmpty(), () -> String.join("\n", errors));
+
+        // 重新打开存储，校验每个会话的完整历史
+        FileBasedChatMemory reopened = new FileBasedChatMemory(dir.toString());
+        for (int c = 0; c < CONVERSATIONS; c++) {
+            String chatId = "chat-" + c;
+            List<Message> history = reopened.get(chatId, Integer.MAX_VALUE);
+            Assertions.assertEquals(TURNS * 2, history.size(), chatId);
+            Set<String> expected = new HashSet<>();
+            for (int t = 0; t < TURNS; t++) {
+                expected.add(chatId + ":user:" + t);
+                expected.add(chatId + ":assistant:" + t);
+            }
+            Set<String> actual = new HashSet<>();
+            history.forEach(message -> actual.add(message.getText()));
+            Assertions.assertEquals(expected, actual, chatId);
+        }
+    }
+
+    @Test
+    void orphanTailIsDroppedBeforeAppend() throws Exception {
+        FileBasedChatMemory chatMemory = new FileBasedChatMemory(dir.toString());
+        chatMemory.add("chat", List.of(new UserMessage("A"), new AssistantMessage("B")));
+        chatMemory.add("chat", new UserMessage("X 写完日志后崩溃，没有写入索引"));
+        // 模拟崩溃：去掉 X 的索引项和累计 token 数，日志里的帧保留
+        for (String suffix : List.of(".idx", ".tok")) {
+            try (FileChannel channel = FileChannel.open(dir.resolve("chat" + suffix), StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - Long.BYTES);
+            }
+        }
+        Assertions.assertEquals(2, chatMemory.getVersion("chat"));
+
+        chatMemory.add("chat", new AssistantMessage("C"));
+        Assertions.assertEquals(List.of("B", "C"), chatMemory.get("chat", 2).stream().map(Message::getText).toList());
+        Assertions.assertEquals(List.of("A", "B", "C"),
+                chatMemory.get("chat", 10).stream().map(Message::getText).toList());
+
+        FileBasedChatMemory expected = new FileBasedChatMemory(dir.resolve("expected").toString());
+        expected.add("chat", List.of(new UserMessage("A"), new AssistantMessage("B"), new AssistantMessage("C")));
+        for (int budget : new int[]{0, 10, 20, 1000}) {
+            Assertions.assertEquals(expected.countWithinTokenBudget("chat", budget),
+                    chatMemory.countWithinTokenBudget("chat", budget), "budget " + budget);
+        }
+    }
+}
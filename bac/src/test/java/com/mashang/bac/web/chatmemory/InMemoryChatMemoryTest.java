@@ -0,0 +1,41 @@
+package com.mashang.bac.web.chatmemory;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.util.List;
+
+/**
+ * 内存对话记忆分层-只读访问不会为不存在的会话创建空缓冲区，被降级的会话读取时加载回内存
+ */
+class InMemoryChatMemoryTest {
+
+    @Test
+    void readsOfUnknownConversationsStayOffHeap() {
+        InMemoryChatMemory chatMemory = new InMemoryChatMemory();
+        for (int i = 0; i < 100; i++) {
+            String id = "probe-" + i;
+            Assertions.assertEquals(List.of(), chatMemory.get(id, 10));
+            Assertions.assertEquals(0, chatMemory.getVersion(id));
+            Assertions.assertEquals(0, chatMemory.countWithinTokenBudget(id, 2000));
+        }
+        Assertions.assertEquals(0, chatMemory.getResidentConversations());
+        Assertions.assertEquals(0, chatMemory.getEstimatedHeapBytes());
+    }
+
+    @Test
+    void demotedConversationIsPromotedOnRead() {
+        InMemoryChatMemory chatMemory = new InMemoryChatMemory(InMemoryChatMemory.DEFAULT_CAPACITY,
+                InMemoryChatMemory.DEFAULT_MAX_IDLE_MILLIS, 1, InMemoryChatMemory.DEFAULT_MAX_HEAP_BYTES,
+                new OffHeapChatMemory());
+        chatMemory.add("a", new UserMessage("第一个会话"));
+        chatMemory.add("b", new UserMessage("第二个会话"));
+        Assertions.assertTrue(chatMemory.getDemotions() > 0);
+        Assertions.assertTrue(chatMemory.getResidentConversations() <= 1);
+
+        Assertions.assertEquals("第一个会话", chatMemory.get("a", 10).get(0).getText());
+        Assertions.assertEquals(1, chatMemory.getPromotions());
+        Assertions.assertEquals(1, chatMemory.getVersion("a"));
+    }
+}
@@ -0,0 +1,140 @@
+package com.mashang.bac.web.chatmemory.codec;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.model.Media;
+import org.springframework.util.MimeTypeUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 二进制消息编解码器-往返正确性，以及与 Kryo 的体积、吞吐对比
+ */
+class BinaryMessageCodecTest {
+
+    private static final int SAMPLE_SIZE = 2_000;
+    private static final int ROUNDS = 20;
+
+    private final BinaryMessageCodec binary = new BinaryMessageCodec(new KryoMessageCodec());
+    private final KryoMessageCodec kryo = new KryoMessageCodec();
+
+    @Test
+    void roundTripAllStoredTypes() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("model", "qwen-plus");
+        metadata.put("tokens", 128);
+        metadata.put("timestamp", 1_700_000_000_000L);
+        metadata.put("score", 0.75);
+        metadata.put("ratio", 0.5f);
+        metadata.put("cached", true);
+        metadata.put("empty", null);
+        metadata.put("tags", List.of("恋爱", "咨询"));
+        metadata.put("usage", Map.of("prompt", 10, "completion", -3));
+
+        UserMessage user = new UserMessage("你好，世界",
+                List.of(Media.builder().mimeType(MimeTypeUtils.IMAGE_PNG).data(new byte[]{1, 2, 3}).build()), metadata);
+        AssistantMessage assistant = new AssistantMessage("回答", metadata,
+                List.of(new AssistantMessage.ToolCall("call-1", "function", "search", "{\"q\":\"北京\"}")));
+        SystemMessage system = new SystemMessage("你是恋爱咨询师");
+        ToolResponseMessage tool = new ToolResponseMessage(
+                List.of(new ToolResponseMessage.ToolResponse("call-1", "search", "晴")), metadata);
+
+        for (Message message : List.of(user, assistant, system, tool)) {
+            Message decoded = roundTrip(message);
+            Assertions.assertEquals(message.getClass(), decoded.getClass());
+            Assertions.assertEquals(message.getText(), decoded.getText());
+            Assertions.assertEquals(message.getMessageType(), decoded.getMessageType());
+            Assertions.assertEquals(message.getMetadata(), decoded.getMetadata());
+        }
+
+        UserMessage decodedUser = (UserMessage) roundTrip(user);
+        Assertions.assertEquals(1, decodedUser.getMedia().size());
+        Assertions.assertEquals(MimeTypeUtils.IMAGE_PNG, decodedUser.getMedia().get(0).getMimeType());
+        Assertions.assertArrayEquals(new byte[]{1, 2, 3}, decodedUser.getMedia().get(0).getDataAsByteArray());
+        Assertions.assertEquals(assistant.getToolCalls(), ((AssistantMessage) roundTrip(assistant)).getToolCalls());
+        Assertions.assertEquals(tool.getResponses(), ((ToolResponseMessage) roundTrip(tool)).getResponses());
+        Assertions.assertNull(roundTrip(new AssistantMessage(null, Map.of(), assistant.getToolCalls())).getText());
+    }
+
+    @Test
+    void readsKryoDataThroughFallback() {
+        byte[] legacy = kryo.encode(new AssistantMessage("旧数据"));
+        Assertions.assertEquals("旧数据", binary.decode(legacy, 0, legacy.length).getText());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new BinaryMessageCodec().decode(legacy, 0, legacy.length));
+    }
+
+    @Test
+    void rejectsNewerSchemaVersion() {
+        byte[] bytes = binary.encode(new UserMessage("hi"));
+        bytes[1] = (byte) (BinaryMessageCodec.SCHEMA_VERSION + 1);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> binary.decode(bytes, 0, bytes.length));
+    }
+
+    @Test
+    void smallerAndFasterThanKryo() {
+        List<Message> samples = samples();
+        long binaryBytes = 0;
+        long kryoBytes = 0;
+        for (Message message : samples) {
+            binaryBytes += binary.encode(message).length;
+            kryoBytes += kryo.encode(message).length;
+        }
+
+        // 预热后计时
+        measure(binary, samples);
+        measure(kryo, samples);
+        long binaryNanos = measure(binary, samples);
+        long kryoNanos = measure(kryo, samples);
+
+        System.out.printf("平均每条消息：binary %d 字节 / kryo %d 字节；%d 轮编解码耗时：binary %d ms / kryo %d ms%n",
+                binaryBytes / samples.size(), kryoBytes / samples.size(), ROUNDS,
+                binaryNanos / 1_000_000, kryoNanos / 1_000_000);
+        Assertions.assertTrue(binaryBytes < kryoBytes, "二进制格式应比 Kryo 更紧凑");
+    }
+
+    private Message roundTrip(Message message) {
+        byte[] bytes = binary.encode(message);
+        // 同时覆盖数组和非数组(内存映射)两种缓冲区
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        Message fromDirect = binary.decode(direct);
+        Assertions.assertEquals(message.getText(), fromDirect.getText());
+        return binary.decode(bytes, 0, bytes.length);
+    }
+
+    private static long measure(MessageCodec codec, List<Message> samples) {
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Message message : samples) {
+                byte[] bytes = codec.encode(message);
+                codec.decode(bytes, 0, bytes.length);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 模拟实际对话：用户提问 + 带少量元数据的助手回答
+     */
+    private static List<Message> samples() {
+        List<Message> samples = new ArrayList<>(SAMPLE_SIZE);
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            if (i % 2 == 0) {
+                samples.add(new UserMessage("第 " + i + " 个问题：我和对象最近总是吵架，应该怎么沟通？"));
+            } else {
+                samples.add(new AssistantMessage("建议先冷静下来，找一个双方都放松的时间，用\"我感到\"开头表达自己的感受。" + i,
+                        Map.of("id", "chatcmpl-" + i, "finishReason", "STOP")));
+            }
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,71 @@
+package com.mashang.bac.web.moderation;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * 违禁词词库热更新-重载后原子替换自动机，文件为空或词数骤减时保留旧自动机
+ */
+class ProhibitedWordDictionaryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reloadSwapsMatcher() throws Exception {
+        Path file = write(List.of("坏词", "违禁"));
+        ProhibitedWordDictionary dictionary = dictionary(file);
+        AhoCorasickMatcher before = dictionary.current();
+        Assertions.assertTrue(before.matches("这是坏词"));
+        Assertions.assertFalse(before.matches("这是新增词"));
+
+        write(List.of("坏词", "违禁", "新增词"));
+        dictionary.reload();
+
+        AhoCorasickMatcher after = dictionary.current();
+        Assertions.assertNotSame(before, after);
+        Assertions.assertEquals(3, after.size());
+        Assertions.assertTrue(after.matches("这是新增词"));
+        // 正在使用旧自动机的请求不受影响
+        Assertions.assertFalse(before.matches("这是新增词"));
+    }
+
+    @Test
+    void reloadKeepsMatcherWhenFileIsEmptyOrShrinks() throws Exception {
+        Path file = write(words(10));
+        ProhibitedWordDictionary dictionary = dictionary(file);
+        AhoCorasickMatcher original = dictionary.current();
+
+        write(List.of());
+        dictionary.reload();
+        Assertions.assertSame(original, dictionary.current());
+
+        write(words(4));
+        dictionary.reload();
+        Assertions.assertSame(original, dictionary.current());
+
+        // 删掉一半以内的词是正常编辑
+        write(words(6));
+        dictionary.reload();
+        Assertions.assertEquals(6, dictionary.current().size());
+    }
+
+    private ProhibitedWordDictionary dictionary(Path file) {
+        return new ProhibitedWordDictionary(ProhibitedWordDictionary.DEFAULT_PROHIBITED_WORDS_FILE, file.toString());
+    }
+
+    private Path write(List<String> words) throws Exception {
+        return Files.write(dir.resolve("words.txt"), words, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> words(int count) {
+        return IntStream.range(0, count).mapToObj(i -> "违禁词" + i).toList();
+    }
+}
@@ -0,0 +1,52 @@
+package com.mashang.bac.web.moderation;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+/**
+ * 流式违禁词检查-违禁词被拆到多个分块(中间夹着填充字符)也能识别，只扣留可能组成违禁词的末尾字符
+ */
+class StreamingModeratorTest {
+
+    private final AhoCorasickMatcher matcher = AhoCorasickMatcher.compile(List.of("坏词", "违禁内容"));
+
+    @Test
+    void maskAcrossChunks() {
+        StreamingModerator moderator = new StreamingModerator(matcher, StreamingModerator.Mode.MASK);
+        StringBuilder out = new StringBuilder();
+
+        // 没有可能的前缀时立即放行
+        Assertions.assertEquals("你好，", moderator.accept("你好，"));
+        // "坏" 可能是违禁词的开头，先扣留
+        Assertions.assertEquals("这是", moderator.accept("这是坏"));
+        out.append(moderator.accept("\u200B"));
+        out.append(moderator.accept("词！"));
+        out.append(moderator.flush());
+
+        Assertions.assertEquals("***！", out.toString());
+        Assertions.assertEquals("坏词", moderator.getMatchedWord());
+        Assertions.assertFalse(moderator.isBlocked());
+    }
+
+    @Test
+    void blockAcrossChunks() {
+        StreamingModerator moderator = new StreamingModerator(matcher, StreamingModerator.Mode.BLOCK);
+
+        Assertions.assertEquals("前面的", moderator.accept("前面的违禁"));
+        Assertions.assertEquals("", moderator.accept("内容后面"));
+        Assertions.assertTrue(moderator.isBlocked());
+        Assertions.assertEquals("", moderator.accept("更多内容"));
+        Assertions.assertEquals("违禁内容", moderator.getMatchedWord());
+    }
+
+    @Test
+    void unfinishedPrefixIsReleasedOnFlush() {
+        StreamingModerator moderator = new StreamingModerator(matcher, StreamingModerator.Mode.MASK);
+
+        Assertions.assertEquals("结尾", moderator.accept("结尾违禁"));
+        Assertions.assertEquals("违禁", moderator.flush());
+        Assertions.assertNull(moderator.getMatchedWord());
+    }
+}
@@ -0,0 +1,47 @@
+package com.mashang.bac.web.moderation;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+/**
+ * 违禁词文本规范化-全角、大小写、繁简、填充字符的折叠，以及规范化文本到原文的偏移映射
+ */
+class TextNormalizerTest {
+
+    @Test
+    void offsetsMapBackToOriginal() {
+        String text = "Ｂａｄ\u200B坏 詞！";
+        TextNormalizer.NormalizedText normalized = TextNormalizer.normalize(text);
+
+        Assertions.assertEquals("bad坏词", normalized.text());
+        Assertions.assertEquals(0, normalized.originalStart(0));
+        Assertions.assertEquals(4, normalized.originalStart(3));
+        // "坏词" 在原文中连同中间的空格一起是 [4, 7)
+        Assertions.assertEquals(7, normalized.originalEnd(5));
+        Assertions.assertEquals("坏 詞", text.substring(normalized.originalStart(3), normalized.originalEnd(5)));
+
+        AhoCorasickMatcher.Match match = AhoCorasickMatcher.compile(List.of("坏词")).findFirst(text);
+        Assertions.assertEquals(new AhoCorasickMatcher.Match(4, 7, "坏词"), match);
+    }
+
+    @Test
+    void latinWordsAreNotJoinedAcrossSpaces() {
+        AhoCorasickMatcher matcher = AhoCorasickMatcher.compile(List.of("sex", "坏词"));
+
+        Assertions.assertEquals("is exciting", TextNormalizer.normalize("is   exciting").text());
+        Assertions.assertFalse(matcher.matches("This is exciting"));
+        Assertions.assertFalse(matcher.matches("It is\nexciting"));
+        Assertions.assertFalse(matcher.matches("Ｉｓ\u3000ｅｘｃｉｔｉｎｇ"));
+        // 中文之间的空白、拉丁字母之间的零宽字符和标点仍然丢弃
+        Assertions.assertTrue(matcher.matches("坏 词"));
+        Assertions.assertTrue(matcher.matches("s\u200Bex"));
+        Assertions.assertTrue(matcher.matches("s.e.x"));
+
+        StreamingModerator moderator = new StreamingModerator(matcher, StreamingModerator.Mode.MASK);
+        String out = moderator.accept("This is") + moderator.accept(" exciting") + moderator.flush();
+        Assertions.assertEquals("This is exciting", out);
+        Assertions.assertNull(moderator.getMatchedWord());
+    }
+}
@@ -0,0 +1,171 @@
+package com.mashang.bac.web.rag.hnsw;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.filter.FilterExpressionBuilder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 本地 HNSW 向量库-关闭后重新打开数据不变(含覆盖写入和删除)，带过滤条件的 topK 只返回满足条件的文档
+ * <p>
+ * 向量各分量取正，任意两个向量的余弦相似度都大于 0，不会被默认的相似度阈值截掉。
+ */
+class HnswVectorStoreTest {
+
+    private static final int DIMENSIONS = 32;
+    private static final int DOCUMENTS = 300;
+    private static final int K = 10;
+
+    @TempDir
+    Path dir;
+
+    private final Map<String, float[]> vectors = new HashMap<>();
+    private final EmbeddingModel embeddingModel = new LookupEmbeddingModel();
+
+    @Test
+    void reopenRoundTrip() throws Exception {
+        try (HnswVectorStore store = open()) {
+            addDocuments(store);
+            // 覆盖写入一个，删除一个
+            store.add(List.of(document("doc-1", "改写后的内容", "single")), List.of(vector("doc-1")));
+            store.delete(List.of("doc-2"));
+            Assertions.assertEquals(DOCUMENTS - 1, store.size());
+        }
+
+        try (HnswVectorStore store = open()) {
+            Assertions.assertEquals(DOCUMENTS - 1, store.size());
+            Document self = search(store, "doc-7", null).get(0);
+            Assertions.assertEquals("doc-7", self.getId());
+            Assertions.assertEquals("内容 7", self.getText());
+            Assertions.assertEquals("single", self.getMetadata().get("status"));
+            Assertions.assertEquals(7, ((Number) self.getMetadata().get("order")).intValue());
+
+            Document replaced = search(store, "doc-1", null).get(0);
+            Assertions.assertEquals("doc-1", replaced.getId());
+            Assertions.assertEquals("改写后的内容", replaced.getText());
+            Assertions.assertTrue(search(store, "doc-2", null).stream().noneMatch(doc -> doc.getId().equals("doc-2")));
+        }
+    }
+
+    @Test
+    void filteredTopK() throws Exception {
+        try (HnswVectorStore store = open()) {
+            addDocuments(store);
+            List<Document> results = search(store, "doc-8", "married");
+
+            Assertions.assertEquals(K, results.size());
+            Assertions.assertEquals("doc-8", results.get(0).getId());
+            Assertions.assertTrue(results.stream().allMatch(doc -> "married".equals(doc.getMetadata().get("status"))));
+            for (int i = 1; i < results.size(); i++) {
+                Assertions.assertTrue(results.get(i - 1).getScore() >= results.get(i).getScore());
+            }
+            Set<String> found = new HashSet<>(results.stream().map(Document::getId).toList());
+            found.retainAll(bruteForce("doc-8", "married"));
+            Assertions.assertTrue(found.size() >= K - 1, "recall@" + K + " = " + found.size());
+        }
+    }
+
+    private HnswVectorStore open() {
+        return HnswVectorStore.builder(embeddingModel)
+                .directory(dir)
+                .dimensions(DIMENSIONS)
+                .m(16)
+                .efConstruction(100)
+                .efSearch(64)
+                .build();
+    }
+
+    /**
+     * 偶数号为 married，奇数号为 single
+     */
+    private void addDocuments(HnswVectorStore store) {
+        List<Document> documents = new ArrayList<>();
+        List<float[]> embeddings = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            Document document = document("doc-" + i, "内容 " + i, i % 2 == 0 ? "married" : "single");
+            document.getMetadata().put("order", i);
+            documents.add(document);
+            embeddings.add(vector(document.getId()));
+        }
+        store.add(documents, embeddings);
+    }
+
+    private List<Document> search(HnswVectorStore store, String query, String status) {
+        SearchRequest.Builder request = SearchRequest.builder().query(query).topK(K);
+        if (status != null) {
+            request.filterExpression(new FilterExpressionBuilder().eq("status", status).build());
+        }
+        return store.similaritySearch(request.build());
+    }
+
+    private Set<String> bruteForce(String query, String status) {
+        float[] target = HnswIndex.normalize(vector(query));
+        List<String> ids = new ArrayList<>();
+        for (int i = status.equals("married") ? 0 : 1; i < DOCUMENTS; i += 2) {
+            ids.add("doc-" + i);
+        }
+        ids.sort(Comparator.comparingDouble(id -> -dot(target, HnswIndex.normalize(vector(id)))));
+        return new HashSet<>(ids.subList(0, K));
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static Document document(String id, String text, String status) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("status", status);
+        return new Document(id, text, metadata);
+    }
+
+    private float[] vector(String key) {
+        return vectors.computeIfAbsent(key, k -> {
+            Random random = new Random(k.hashCode());
+            float[] vector = new float[DIMENSIONS];
+            for (int i = 0; i < DIMENSIONS; i++) {
+                vector[i] = (float) Math.abs(random.nextGaussian());
+            }
+            return vector;
+        });
+    }
+
+    /**
+     * 查询文本就是文档 id，返回该文档的向量
+     */
+    private final class LookupEmbeddingModel implements EmbeddingModel {
+
+        @Override
+        public EmbeddingResponse call(EmbeddingRequest request) {
+            List<Embedding> embeddings = new ArrayList<>();
+            for (String text : request.getInstructions()) {
+                embeddings.add(new Embedding(vector(text), embeddings.size()));
+            }
+            return new EmbeddingResponse(embeddings);
+        }
+
+        @Override
+        public float[] embed(Document document) {
+            return vector(document.getId());
+        }
+    }
+}
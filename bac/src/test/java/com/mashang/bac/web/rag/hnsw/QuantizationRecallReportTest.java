@@ -0,0 +1,187 @@
+package com.mashang.bac.web.rag.hnsw;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 量化召回率报告-同一张图分别用原始向量、int8 和 PQ 编码遍历，对比 recall@10、遍历读取的字节数和查询耗时
+ * <p>
+ * 低维潜在空间里成簇的点随机投影到高维再加少量噪声，近似真实向量的分布。
+ * 完整报告用 1536 维(与灵积向量一致)，耗时较长，打了 benchmark 标签，默认不执行，
+ * 用 {@code mvn test -Pbenchmark -Dtest=QuantizationRecallReportTest} 运行；常规测试只跑一个小规模的召回率检查。
+ */
+@Slf4j
+class QuantizationRecallReportTest {
+
+    private static final int LATENT = 64;
+    private static final int CLUSTERS = 50;
+    private static final int K = 10;
+    private static final int EF_SEARCH = 64;
+
+    /**
+     * 与灵积向量相同维度的完整报告
+     */
+    private static final Scenario FULL = new Scenario(1536, 4000, 200, 96, 2000);
+    /**
+     * 常规测试用的小规模数据，几秒内跑完
+     */
+    private static final Scenario SMALL = new Scenario(128, 1000, 50, 16, 500);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void quantizedRecallStaysCloseToExact() throws Exception {
+        List<Report> reports = run(SMALL);
+        assertRecall(reports.get(0), reports.get(1), reports.get(3), reports.get(4));
+    }
+
+    @Test
+    @Tag("benchmark")
+    void recallVersusMemoryAndLatency() throws Exception {
+        List<Report> reports = run(FULL);
+        log.info("方式        精排倍数  recall@10  每向量遍历字节  遍历数据(KB)  平均查询(ms)");
+        for (Report report : reports) {
+            log.info(String.format("%-10s  %-8d  %-9.3f  %-14d  %-12.1f  %.3f", report.quantization(),
+                    report.rerankFactor(), report.recall(), report.bytesPerVector(),
+                    report.traversalBytes() / 1024.0, report.averageMillis()));
+        }
+        assertRecall(reports.get(0), reports.get(1), reports.get(3), reports.get(4));
+    }
+
+    private static void assertRecall(Report none, Report int8, Report pq, Report pqNoRerank) {
+        Assertions.assertTrue(none.recall() >= 0.9, "none " + none.recall());
+        Assertions.assertTrue(int8.recall() >= none.recall() - 0.05, "int8 " + int8.recall());
+        Assertions.assertTrue(pq.recall() >= none.recall() - 0.15, "pq " + pq.recall());
+        Assertions.assertTrue(pq.recall() >= pqNoRerank.recall(), "pq 精排 " + pq.recall());
+    }
+
+    /**
+     * 建图后依次测量：原始向量、int8(精排 4 倍)、int8(不精排)、PQ(精排 4 倍)、PQ(不精排)
+     */
+    private List<Report> run(Scenario scenario) throws Exception {
+        int dimensions = scenario.dimensions();
+        Random random = new Random(7);
+        float[][] projection = new float[LATENT][dimensions];
+        for (float[] row : projection) {
+            for (int d = 0; d < dimensions; d++) {
+                row[d] = (float) random.nextGaussian();
+            }
+        }
+        float[][] centers = new float[CLUSTERS][LATENT];
+        for (float[] center : centers) {
+            for (int d = 0; d < LATENT; d++) {
+                center[d] = (float) random.nextGaussian();
+            }
+        }
+        float[][] data = new float[scenario.vectors()][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = HnswIndex.normalize(sample(centers[random.nextInt(CLUSTERS)], projection, random));
+        }
+        float[][] queries = new float[scenario.queries()][];
+        List<Set<Integer>> truth = new ArrayList<>();
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = HnswIndex.normalize(sample(centers[random.nextInt(CLUSTERS)], projection, random));
+            truth.add(bruteForce(data, queries[q]));
+        }
+
+        long begin = System.nanoTime();
+        try (HnswIndex index = new HnswIndex(dir, dimensions, 16, 64)) {
+            for (int i = 0; i < data.length; i++) {
+                Assertions.assertEquals(i, index.insert(data[i], i));
+            }
+        }
+        log.info("{} 个 {} 维向量建图 {} ms", data.length, dimensions, (System.nanoTime() - begin) / 1_000_000);
+
+        // 同一目录按不同量化方式重新打开，图不变，只训练量化器并编码
+        return List.of(
+                measure(scenario, Quantization.NONE, 1, queries, truth),
+                measure(scenario, Quantization.INT8, 4, queries, truth),
+                measure(scenario, Quantization.INT8, 1, queries, truth),
+                measure(scenario, Quantization.PQ, 4, queries, truth),
+                measure(scenario, Quantization.PQ, 1, queries, truth));
+    }
+
+    private Report measure(Scenario scenario, Quantization quantization, int rerankFactor, float[][] queries,
+                           List<Set<Integer>> truth) throws Exception {
+        try (HnswIndex index = new HnswIndex(dir, scenario.dimensions(), 16, 64, quantization,
+                scenario.pqSubspaces(), scenario.trainSize())) {
+            Assertions.assertEquals(quantization, index.activeQuantization());
+            // 预热
+            for (int round = 0; round < 3; round++) {
+                for (float[] query : queries) {
+                    index.search(query, K, EF_SEARCH, K * rerankFactor, node -> true);
+                }
+            }
+            int hits = 0;
+            long begin = System.nanoTime();
+            for (int q = 0; q < queries.length; q++) {
+                for (HnswIndex.Neighbor neighbor : index.search(queries[q], K, EF_SEARCH, K * rerankFactor,
+                        node -> true)) {
+                    hits += truth.get(q).contains(neighbor.node()) ? 1 : 0;
+                }
+            }
+            double averageMillis = (System.nanoTime() - begin) / 1e6 / queries.length;
+            int bytesPerVector = switch (quantization) {
+                case NONE -> scenario.dimensions() * Float.BYTES;
+                case INT8 -> scenario.dimensions();
+                case PQ -> scenario.pqSubspaces();
+            };
+            return new Report(quantization, rerankFactor, (double) hits / (queries.length * K), bytesPerVector,
+                    index.traversalBytes(), averageMillis);
+        }
+    }
+
+    private static float[] sample(float[] center, float[][] projection, Random random) {
+        float[] vector = new float[projection[0].length];
+        for (int l = 0; l < LATENT; l++) {
+            float latent = center[l] + (float) random.nextGaussian() * 0.5f;
+            for (int d = 0; d < vector.length; d++) {
+                vector[d] += latent * projection[l][d];
+            }
+        }
+        for (int d = 0; d < vector.length; d++) {
+            vector[d] += (float) random.nextGaussian() * 0.5f;
+        }
+        return vector;
+    }
+
+    private static Set<Integer> bruteForce(float[][] data, float[] query) {
+        List<Integer> order = new ArrayList<>(data.length);
+        float[] similarities = new float[data.length];
+        for (int i = 0; i < data.length; i++) {
+            order.add(i);
+            for (int d = 0; d < query.length; d++) {
+                similarities[i] += query[d] * data[i][d];
+            }
+        }
+        order.sort((a, b) -> Float.compare(similarities[b], similarities[a]));
+        return new HashSet<>(order.subList(0, K));
+    }
+
+    /**
+     * 数据规模
+     *
+     * @param dimensions  向量维度
+     * @param vectors     向量数
+     * @param queries     查询数
+     * @param pqSubspaces PQ 子空间个数
+     * @param trainSize   训练量化器所需的向量数
+     */
+    private record Scenario(int dimensions, int vectors, int queries, int pqSubspaces, int trainSize) {
+    }
+
+    private record Report(Quantization quantization, int rerankFactor, double recall, int bytesPerVector,
+                          long traversalBytes, double averageMillis) {
+    }
+}